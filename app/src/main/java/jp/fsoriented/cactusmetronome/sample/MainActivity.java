@@ -58,7 +58,7 @@ public class MainActivity extends ActionBarActivity {
 
         // 再生するクリック音のリストを作成する
         ArrayList<Click> list = new ArrayList<Click>();
-        int samples = BpmUtil.getSampleLength(tempo);
+        int samples = BpmUtil.getSampleLength(tempo, mMetronome.getSampleRate());
         int beatsPerMeasure = 4;
         NoteEnum note = NoteEnum.BASIC_4;
         for (int i=0; i<beatsPerMeasure ; i++) {
@@ -74,10 +74,17 @@ public class MainActivity extends ActionBarActivity {
         mMetronome.finish();
     }
 
+    @Override
+    protected void onDestroy() {
+        // 再生スレッドを終了する
+        mMetronome.release();
+        super.onDestroy();
+    }
+
     private static class BpmUtil {
-        public static int getSampleLength(double bpm) {
+        public static int getSampleLength(double bpm, int sampleRate) {
             // 1beatあたりの長さ（sample）
-            return (int)(60 * Metronome.FREQUENCY / bpm);
+            return (int)(60 * sampleRate / bpm);
         }
     }
 
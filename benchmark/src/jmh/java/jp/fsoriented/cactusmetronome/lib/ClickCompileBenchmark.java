@@ -0,0 +1,79 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Click#compile(Click[], int, int, boolean)}の速度を、クリックの数とパターンの長さを変えて計測する.
+ *
+ * クリック音の波形はキャッシュされるので、主にパターンへの足し合わせと変換の時間を計測する。
+ * 比較のため、int型の作業用配列で足し合わせる以前の、16bitのまま足し合わせる実装も計測する（{@link #shortLoopReference()}）。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ClickCompileBenchmark {
+
+    /** クリックの数 */
+    @Param({"1", "4", "16", "64"})
+    public int clickCount;
+
+    /** パターンの長さ（サンプル） */
+    @Param({"22050", "88200", "352800"})
+    public int patternLength;
+
+    /** クリックパターン */
+    private Click[] spec;
+    /** クリックごとの波形（以前の実装の計測用） */
+    private short[][] waves;
+
+    @Setup
+    public void setup() {
+        spec = new Click[clickCount];
+        ClickCallback accent = new DefaultHighClickCallback();
+        ClickCallback beat = new DefaultClickCallback();
+        for (int i = 0; i < clickCount; i++) {
+            spec[i] = new Click(patternLength / clickCount * i, 4410, i == 0 ? accent : beat);
+        }
+        waves = new short[clickCount][];
+        for (int i = 0; i < clickCount; i++) {
+            waves[i] = Click.waveformOf(spec[i], 44100);
+        }
+    }
+
+    @Benchmark
+    public short[] compile() {
+        return Click.compile(spec, 44100, patternLength, true);
+    }
+
+    @Benchmark
+    public short[] compileWithoutNormalize() {
+        return Click.compile(spec, 44100, patternLength, false);
+    }
+
+    /**
+     * int型の作業用配列を使う以前の、{@link Click#compile(Click[], int, int, boolean)}の足し合わせ.
+     *
+     * 以前は波形もクリックごとに生成していたが、足し合わせだけを比べるため、{@link #compile()}と同じくキャッシュした波形を使う。
+     */
+    @Benchmark
+    public short[] shortLoopReference() {
+        short[] patternBuffer = new short[patternLength];
+        for (int c = 0; c < spec.length; c++) {
+            short[] wave = waves[c];
+            int when = spec[c].when;
+            for (int i = 0; i < wave.length; i++) {
+                patternBuffer[(when + i) % patternLength] += wave[i];
+            }
+        }
+        return patternBuffer;
+    }
+}
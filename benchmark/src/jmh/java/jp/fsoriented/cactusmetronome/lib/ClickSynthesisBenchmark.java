@@ -0,0 +1,74 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * デフォルトのクリック音の{@link ClickCallback#writeClick(short[], int, Click)}の速度を計測する.
+ *
+ * キャッシュを通さずにコールバックを直接呼び出すので、波形の生成そのものの時間になる。
+ * 比較のため、サンプルごとに{@code Math.sin}を呼ぶ以前の実装も計測する（{@link #mathSinReference()}）。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ClickSynthesisBenchmark {
+
+    /** クリック音の長さ（サンプル） */
+    @Param({"2000", "4410", "44100"})
+    public int clickLength;
+
+    private DefaultClickCallback beat;
+    private DefaultHighClickCallback accent;
+    private Click click;
+    private short[] buffer;
+
+    @Setup
+    public void setup() {
+        beat = new DefaultClickCallback();
+        accent = new DefaultHighClickCallback();
+        click = new Click(0, clickLength, beat);
+        buffer = new short[clickLength];
+    }
+
+    @Benchmark
+    public short[] defaultClick() {
+        beat.writeClick(buffer, 44100, click);
+        return buffer;
+    }
+
+    @Benchmark
+    public short[] defaultHighClick() {
+        accent.writeClick(buffer, 44100, click);
+        return buffer;
+    }
+
+    /**
+     * {@link OscillatorClickCallback}以前の、{@link DefaultClickCallback}の実装
+     */
+    @Benchmark
+    public short[] mathSinReference() {
+        int pos1 = (int) (click.length * 0.2);
+        int pos2 = (int) (click.length * 0.35);
+        double denominatorG3 = 44100 / 2.0 / 391.99;
+        double denominatorG4 = 44100 / 2.0 / (391.99 * 2);
+        for (int i = 0; i < pos2; i++) {
+            if (i < pos1) {
+                buffer[i] = (short) (Math.sin(i * Math.PI / denominatorG3) * 12000);
+                buffer[i] += (short) (Math.sin(i * Math.PI / denominatorG4) * 15000);
+            } else {
+                buffer[i] = (short) (Math.sin(i * Math.PI / denominatorG3) * 12000 * ((double) (pos2 - i) / (pos2 - pos1)));
+                buffer[i] += (short) (Math.sin(i * Math.PI / denominatorG4) * 15000 * ((double) (pos2 - i) / (pos2 - pos1)));
+            }
+        }
+        return buffer;
+    }
+}
@@ -0,0 +1,68 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link MetronomeEngine}の再生スレッドが、ブロック１つ分（{@link AudioThread#BLOCK_FRAMES}サンプル）に
+ * 複数の{@link Metronome}の波形を足し合わせる速度を、{@code Metronome}の数を変えて計測する.
+ *
+ * 再生スレッドではオブジェクトを生成しないので、アロケーションは0 B/opになるはずである。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EngineBenchmark {
+
+    /** 同時に鳴らす{@code Metronome}の数 */
+    @Param({"1", "8", "32"})
+    public int channelCount;
+
+    /** 出力のチャンネル数 */
+    @Param({"1", "2"})
+    public int outputChannels;
+
+    private EngineChannel[] channels;
+    private MixBus bus;
+    private MixBus scratch;
+    private long frame;
+
+    @Setup
+    public void setup() {
+        MetronomeEngine engine = new MetronomeEngine(new StreamAudioSink.Factory(new NullOutputStream(), false, 0), 44100);
+        ClickCallback accent = new DefaultHighClickCallback();
+        ClickCallback beat = new DefaultClickCallback();
+        channels = new EngineChannel[channelCount];
+        for (int c = 0; c < channelCount; c++) {
+            // パートごとに拍の数を変えて、クリックの位置をずらす
+            int beats = 2 + c % 5;
+            Click[] spec = new Click[beats];
+            for (int i = 0; i < beats; i++) {
+                spec[i] = new Click(88200 / beats * i, 4410, i == 0 ? accent : beat, 1.0f, (c % 3 - 1) * 0.5f);
+            }
+            channels[c] = engine.newChannel(0);
+            channels[c].setVolume(1.0f / channelCount);
+            channels[c].setPattern(new ScheduledPattern(Click.compile(spec, 44100, 88200), spec, 88200, SwapMode.RESTART));
+        }
+        bus = new MixBus(outputChannels, AudioThread.BLOCK_FRAMES);
+        scratch = new MixBus(outputChannels, AudioThread.BLOCK_FRAMES);
+    }
+
+    @Benchmark
+    public MixBus mixBlock() {
+        bus.clear(0, AudioThread.BLOCK_FRAMES);
+        for (int c = 0; c < channels.length; c++) {
+            channels[c].mix(bus, scratch, 0, AudioThread.BLOCK_FRAMES, frame);
+        }
+        frame += AudioThread.BLOCK_FRAMES;
+        return bus;
+    }
+}
@@ -0,0 +1,78 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FLACファイルの保存の速度を、WAVファイルの保存と比べて計測する.
+ *
+ * {@link WavExportBenchmark}と同じパターンを同じ回数だけ繰り返して書き込む。
+ * 比較のために、同じ条件でのWAVファイルの保存も計測する。
+ * 戻り値はファイルの大きさなので、大きさの違いは結果を出力して確かめる。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FlacExportBenchmark {
+
+    /** パターンを繰り返す回数（120BPMの4拍子で、1回が2秒） */
+    @Param({"1", "30", "300"})
+    public int repeats;
+
+    private File file;
+    private short[] pattern;
+    private OfflineRenderer renderer;
+
+    @Setup
+    public void setup() throws IOException {
+        file = File.createTempFile("metronome-bench", ".flac");
+        Click[] spec = new Click[4];
+        for (int i = 0; i < spec.length; i++) {
+            spec[i] = new Click(22050 * i, 4410, i == 0 ? new DefaultHighClickCallback() : new DefaultClickCallback());
+        }
+        pattern = Click.compile(spec, 44100, 88200, true);
+        Metronome metronome = new Metronome(new StreamAudioSink.Factory(new NullOutputStream(), false, 0), 44100);
+        metronome.setPattern(spec, 88200);
+        renderer = metronome.createOfflineRenderer(2);
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * 比較の基準: 生成済みのパターンをWAV形式で書き込む時間
+     */
+    @Benchmark
+    public long writeWaveFile() throws IOException {
+        return WaveFileWriter.writeFile(file, pattern, 44100, repeats);
+    }
+
+    /**
+     * 生成済みのパターンをFLAC形式で書き込む時間
+     */
+    @Benchmark
+    public long writeFlacFile() throws IOException {
+        return FlacFileWriter.writeFile(file, pattern, 44100, repeats);
+    }
+
+    /**
+     * ステレオの波形をブロックごとに生成しながら、FLAC形式で書き込む時間
+     */
+    @Benchmark
+    public long exportStereoFlacFile() throws IOException {
+        return renderer.exportFlacFile(file, 0, 88200L * repeats);
+    }
+}
@@ -0,0 +1,17 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+import java.io.OutputStream;
+
+/**
+ * 書き込まれたデータを捨てる出力先. ベンチマークで{@link StreamAudioSink}の出力先に使う。
+ */
+class NullOutputStream extends OutputStream {
+
+    @Override
+    public void write(int b) {
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+    }
+}
@@ -0,0 +1,99 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * クリックの数が多いパターンで、{@link Click}の配列と{@link PackedPattern}を比べる.
+ *
+ * 細かい音符を並べた練習用のパターン（1小節を{@code clickCount}等分）を、波形の生成と、
+ * ブロック１つ分（{@link AudioThread#BLOCK_FRAMES}サンプル）に含まれるクリックの検索で計測する。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PackedPatternBenchmark {
+
+    /** クリックの数 */
+    @Param({"256", "1024", "4096"})
+    public int clickCount;
+
+    /** パターンの長さ（サンプル） */
+    private static final int PATTERN_LENGTH = 441000;
+
+    /** クリックパターン */
+    private Click[] spec;
+    /** 同じクリックパターン */
+    private PackedPattern packed;
+    /** 検索するブロックの先頭 */
+    private int position;
+
+    @Setup
+    public void setup() {
+        spec = new Click[clickCount];
+        ClickCallback accent = new DefaultHighClickCallback();
+        ClickCallback beat = new DefaultClickCallback();
+        for (int i = 0; i < clickCount; i++) {
+            spec[i] = new Click(PATTERN_LENGTH / clickCount * i, 441, i % 4 == 0 ? accent : beat);
+        }
+        packed = PackedPattern.of(spec, PATTERN_LENGTH);
+    }
+
+    @Benchmark
+    public short[] compileClicks() {
+        return Click.compile(spec, 44100, PATTERN_LENGTH, false);
+    }
+
+    @Benchmark
+    public short[] compilePacked() {
+        return Click.compile(packed, 44100, false);
+    }
+
+    /**
+     * すべてのクリックを調べて、ブロックに含まれるものを数える（{@code Click}の配列での通知と同じ方法）
+     */
+    @Benchmark
+    public int scanClicks() {
+        int from = nextBlock();
+        int count = 0;
+        for (Click click : spec) {
+            int when = click.when % PATTERN_LENGTH;
+            if (when >= from && when < from + AudioThread.BLOCK_FRAMES) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 二分探索で、ブロックに含まれるクリックを数える
+     */
+    @Benchmark
+    public int searchPacked() {
+        int from = nextBlock();
+        int count = 0;
+        for (int i = packed.nextIndex(from); i < packed.size() && packed.getWhen(i) < from + AudioThread.BLOCK_FRAMES; i++) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * 次のブロックの先頭を返す
+     */
+    private int nextBlock() {
+        position += AudioThread.BLOCK_FRAMES;
+        if (position >= PATTERN_LENGTH) {
+            position = 0;
+        }
+        return position;
+    }
+}
@@ -0,0 +1,64 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 画面の更新ごとに呼ばれる、{@link Click#ratio}の計算の速度を計測する.
+ *
+ * 以前は{@code MeasureThread.calcRatio}が一定間隔で計算していたが、現在は{@link Metronome#updateRatios()}と
+ * {@link Metronome#getRatio(Click)}が、呼び出されたときに再生位置から計算する。
+ * 実時間で再生する{@link StreamAudioSink}を出力先にして、実際に再生中の状態で計測する。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RatioBenchmark {
+
+    /** クリックの数 */
+    @Param({"4", "16", "64"})
+    public int clickCount;
+
+    private Metronome metronome;
+    private Click[] spec;
+
+    @Setup
+    public void setup() {
+        metronome = new Metronome(new StreamAudioSink.Factory(new NullOutputStream(), true, 4096), 44100);
+        spec = new Click[clickCount];
+        for (int i = 0; i < clickCount; i++) {
+            spec[i] = new Click(88200 / clickCount * i, 2000, new DefaultClickCallback());
+        }
+        metronome.setPattern(spec, 88200);
+        metronome.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        metronome.finish();
+    }
+
+    @Benchmark
+    public void updateRatios() {
+        metronome.updateRatios();
+    }
+
+    @Benchmark
+    public double getRatio() {
+        return metronome.getRatio(spec[0]);
+    }
+
+    @Benchmark
+    public int getPatternPosition() {
+        return metronome.getPatternPosition();
+    }
+}
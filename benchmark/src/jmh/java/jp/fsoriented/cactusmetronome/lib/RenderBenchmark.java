@@ -0,0 +1,116 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 再生スレッドが、ブロック１つ分（{@link AudioThread#BLOCK_FRAMES}サンプル）の波形を生成する速度を計測する.
+ *
+ * 再生スレッドではオブジェクトを生成しないので、どのベンチマークもアロケーションは0 B/opになるはずである。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RenderBenchmark {
+
+    private final MixBus bus = new MixBus(1, AudioThread.BLOCK_FRAMES);
+    private final MixBus stereoBus = new MixBus(2, AudioThread.BLOCK_FRAMES);
+    private final short[] block = new short[AudioThread.BLOCK_FRAMES];
+    private final float[] stereoBlock = new float[AudioThread.BLOCK_FRAMES * 2];
+    private final BeatEventQueue events = new BeatEventQueue();
+    private PatternRenderer pattern;
+    private StreamRenderer tempoMap;
+    private StreamRenderer layers;
+    private long frame;
+
+    @Setup
+    public void setup() {
+        ClickCallback accent = new DefaultHighClickCallback();
+        ClickCallback beat = new DefaultClickCallback();
+        Click[] spec = new Click[4];
+        for (int i = 0; i < spec.length; i++) {
+            spec[i] = new Click(22050 * i, 4410, i == 0 ? accent : beat);
+        }
+        pattern = new PatternRenderer();
+        pattern.setEventsEnabled(true);
+        pattern.schedule(new ScheduledPattern(Click.compile(spec, 44100, 88200, true), spec, 88200, SwapMode.RESTART));
+
+        TempoMap map = new TempoMap(60, 4).rampLinear(1000000, 240);
+        tempoMap = new TempoMapRenderer.Factory(map, accent, beat, 4410, 44100).newRenderer();
+
+        Layer three = new Layer(new Click[]{new Click(0, 4410, accent), new Click(14700, 4410, beat), new Click(29400, 4410, beat)}, 44100);
+        Click[] panned = new Click[spec.length];
+        for (int i = 0; i < spec.length; i++) {
+            panned[i] = new Click(spec[i].when, 4410, beat, i == 0 ? 1.0f : 0.5f, i % 2 == 0 ? -0.5f : 0.5f);
+        }
+        Layer four = new Layer(panned, 88200);
+        layers = new LayerRenderer.Factory(new Layer[]{three, four}, 44100).newRenderer();
+    }
+
+    /**
+     * 生成済みのパターンからコピーする
+     */
+    @Benchmark
+    public short[] patternBlock() {
+        pattern.render(bus, 0, block.length);
+        bus.toShort(block, block.length);
+        drain();
+        return block;
+    }
+
+    /**
+     * テンポの変化に従ってクリック音を足し合わせる
+     */
+    @Benchmark
+    public short[] tempoMapBlock() {
+        tempoMap.render(bus, 0, block.length, frame, events);
+        bus.toShort(block, block.length);
+        frame += block.length;
+        drain();
+        return block;
+    }
+
+    /**
+     * ポリリズムのレイヤーを足し合わせる
+     */
+    @Benchmark
+    public short[] layerBlock() {
+        layers.render(bus, 0, block.length, frame, events);
+        bus.toShort(block, block.length);
+        frame += block.length;
+        drain();
+        return block;
+    }
+
+    /**
+     * ポリリズムのレイヤーを、音量と定位をつけてステレオのfloat型で足し合わせる
+     */
+    @Benchmark
+    public float[] layerStereoFloatBlock() {
+        layers.render(stereoBus, 0, block.length, frame, events);
+        stereoBus.toFloat(stereoBlock, block.length);
+        frame += block.length;
+        drain();
+        return stereoBlock;
+    }
+
+    /**
+     * 通知のキューがあふれないように空にする
+     */
+    private void drain() {
+        BeatEventQueue queue = pattern.getEvents();
+        while (!queue.isEmpty()) {
+            queue.remove();
+        }
+        while (!events.isEmpty()) {
+            events.remove();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * WAVファイルの保存の速度を計測する.
+ *
+ * パターンを繰り返してファイルに書き込む時間を、繰り返す回数を変えて計測する。
+ * 結果はファイルシステムの速度に左右されるので、同じマシンで比較すること。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class WavExportBenchmark {
+
+    /** パターンを繰り返す回数（120BPMの4拍子で、1回が2秒） */
+    @Param({"1", "30", "300"})
+    public int repeats;
+
+    private File file;
+    private Click[] spec;
+    private short[] pattern;
+    private Metronome metronome;
+
+    @Setup
+    public void setup() throws IOException {
+        file = File.createTempFile("metronome-bench", ".wav");
+        spec = new Click[4];
+        for (int i = 0; i < spec.length; i++) {
+            spec[i] = new Click(22050 * i, 4410, i == 0 ? new DefaultHighClickCallback() : new DefaultClickCallback());
+        }
+        pattern = Click.compile(spec, 44100, 88200, true);
+        metronome = new Metronome(new StreamAudioSink.Factory(new NullOutputStream(), false, 0), 44100);
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * 生成済みのパターンを書き込む時間
+     */
+    @Benchmark
+    public long writeFile() throws IOException {
+        return WaveFileWriter.writeFile(file, pattern, 44100, repeats);
+    }
+
+    /**
+     * パターンの生成を含めた、{@link Metronome#exportWavFile(File, Click[], int, long)}全体の時間
+     */
+    @Benchmark
+    public void exportWavFile() throws IOException {
+        metronome.exportWavFile(file, spec, 88200, repeats);
+    }
+}
@@ -0,0 +1,93 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+/**
+ * クリック音の波形（16bit PCM）の出力先を表すインターフェース.
+ *
+ * {@link Metronome}の再生スレッドは、このインターフェースを通してのみ音を出力する。
+ * Android端末上では{@link AudioTrackSink}を使う。JVM上でのベンチマークや負荷試験では{@link StreamAudioSink}を使う。
+ * メソッドはすべて再生スレッドから呼ばれる。ただし{@code stop}、{@code pause}、{@code play}、{@code flush}、{@code setVolume}、{@code getPlaybackPosition}は他のスレッドからも呼ばれる。
+ */
+public interface AudioSink {
+
+    /**
+     * 波形を書き込む.
+     *
+     * 出力先のバッファに空きがなければ、空くまでブロックしてよい。
+     *
+     * @param buffer 波形データ
+     * @param offset 書き込む範囲の先頭
+     * @param length 書き込むデータ数
+     * @return 書き込んだデータ数。エラーのときは負の値
+     */
+    public int write(short[] buffer, int offset, int length);
+
+    /**
+     * 書き込み済みでまだ再生されていないデータを破棄する.
+     */
+    public void flush();
+
+    /**
+     * 再生を開始する.
+     */
+    public void play();
+
+    /**
+     * 再生を停止する.
+     */
+    public void stop();
+
+    /**
+     * 再生を一時停止する.
+     *
+     * 書き込み済みでまだ再生されていないデータは破棄せず、{@code play}を呼ぶと続きから再生する。
+     * 一時停止中は{@code getPlaybackPosition}が進まない。
+     */
+    public void pause();
+
+    /**
+     * 0-1でボリュームを指定する.
+     *
+     * @param vol ボリューム[0..1]
+     */
+    public void setVolume(float vol);
+
+    /**
+     * 出力先が持つ資源を解放する. 解放後は使用できない。
+     */
+    public void release();
+
+    /**
+     * {@code play}を呼んでから実際に再生されたデータ数を返す.
+     *
+     * 書き込んだデータ数ではなく、出力装置が再生し終えた位置（再生ヘッド）を返す。
+     * 再生位置の計算に使うので、任意のスレッドから呼べて、十分に軽くなければならない。
+     *
+     * @return 再生されたデータ数
+     */
+    public long getPlaybackPosition();
+
+    /**
+     * {@link AudioSink}を生成するファクトリ.
+     *
+     * {@link Metronome}は、再生を開始するたびに新しい{@code AudioSink}を生成する。
+     */
+    public interface Factory {
+        /**
+         * 出力先を生成する.
+         *
+         * @param frequency サンプリング周波数(Hz)
+         * @return 出力先
+         */
+        public AudioSink createAudioSink(int frequency);
+
+        /**
+         * 出力先のネイティブなサンプリング周波数を返す.
+         *
+         * この周波数で出力すると、出力先で周波数の変換が行われず、遅延と処理が最も少なくなる。
+         * {@link Metronome}は、サンプリング周波数が指定されなければこの周波数を使う。
+         *
+         * @return サンプリング周波数(Hz)
+         */
+        public int getNativeSampleRate();
+    }
+}
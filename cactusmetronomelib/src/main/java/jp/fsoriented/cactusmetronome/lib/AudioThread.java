@@ -1,38 +1,73 @@
 package jp.fsoriented.cactusmetronome.lib;
 
-import android.media.AudioFormat;
-import android.media.AudioManager;
-import android.media.AudioTrack;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * （内部クラス）再生スレッド.
  *
- * クリック音の波形（44.1kHz 16bit）を再生するスレッドである。
- * スレッドを終了するには、{@code notifyFinish}を呼び出す。
+ * クリック音の波形を、{@link #BLOCK_FRAMES}サンプルのブロックに区切って{@link AudioSink}に書き込むスレッドである。
+ * 波形はfloat型の{@link MixBus}に生成し、書き込む直前に出力先の形式（{@link FormattedAudioSink}でなければモノラル16bit）に変換する。
+ * パターンの変更と停止は、ブロックの境目で反映される。
+ *
+ * スレッドは{@link Metronome}ごとに１つだけ生成し、再生を開始・終了しても使い回す。
+ * {@code begin}で出力先を受け取って再生を始め、{@code end}で出力先を解放して待機状態に戻る。
+ * {@code end}は出力先の解放が終わるまで戻らないので、続けて{@code begin}しても、前の出力先と同時に鳴ることはない。
+ * {@code pause}は出力先を保持したまま書き込みを止めるので、{@code resume}ですぐに続きから再生できる。
+ * スレッドを終了するには、{@code terminate}を呼び出す。スレッドに割り込んだ場合も終了する。
+ * ブロックごとに、書き込みの結果と時間、音の途切れ、書き込む間隔のずれを{@link PlaybackMetrics}に記録する。
  */
-class AudioThread extends Thread {
+class AudioThread extends Thread implements PlaybackSession {
 
     private static final String LOG_TAG = "metronome";
 
-    /** 再生するクリック音のパターン。 */
-    private short[] pattern;
-    /** スレッドの終了フラグ */
-    private volatile boolean exit;
-    /** 再生オブジェクト */
-    private AudioTrack audioTrack;
+    /** １回の書き込みで出力するブロックの長さ（サンプル） */
+    static final int BLOCK_FRAMES = 512;
+
+    /** 状態：再生していない */
+    private static final int IDLE = 0;
+    /** 状態：再生中 */
+    private static final int PLAYING = 1;
+    /** 状態：一時停止中 */
+    private static final int PAUSED = 2;
+    /** 状態：スレッドを終了する */
+    private static final int TERMINATED = 3;
+
+    /** 再生スレッドがまだ受け取っていない、パターンの変更要求 */
+    private final AtomicReference<ScheduledPattern> pendingChange = new AtomicReference<ScheduledPattern>();
+    /** サンプリング周波数(Hz) */
+    private final int frequency;
+    /** 反映時間の記録先 */
+    private final ResponseLatency latency;
+    /** 再生の状態の記録先 */
+    private final PlaybackMetrics metrics;
+    /** 状態の変更を待ち合わせるためのロック */
+    private final Object lock = new Object();
+    /** 要求された状態. 変更は{@code lock}を取得して行う */
+    private volatile int requested = IDLE;
+    /** 再生スレッドが出力先を使っているかどうか. {@code lock}で保護する */
+    private boolean running;
+    /** 終了が要求された時刻 */
+    private volatile long finishRequestedAt;
+    /** クリックが鳴る位置を通知するかどうか */
+    private volatile boolean eventsEnabled;
+    /** 出力先 */
+    private volatile AudioSink audioSink;
+    /** パターンをブロックに切り出すオブジェクト. 再生を開始するたびに生成する */
+    private volatile PatternRenderer renderer = new PatternRenderer();
 
     /**
-     * コンストラクタ
+     * コンストラクタ. スレッドは、{@code begin}が呼ばれるまで待機する。
+     *
+     * @param frequency サンプリング周波数(Hz)
+     * @param latency 反映時間の記録先
+     * @param metrics 再生の状態の記録先
      */
-    public AudioThread() {
-        super();
-        exit = false;
-        audioTrack = new AudioTrack(AudioManager.STREAM_MUSIC, // 音楽再生用のオーディオストリーム
-                Metronome.FREQUENCY, // サンプリングレート
-                AudioFormat.CHANNEL_OUT_MONO, // モノラル
-                AudioFormat.ENCODING_PCM_16BIT, // 16bit PCM
-                AudioTrack.getMinBufferSize(Metronome.FREQUENCY, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT),// 合計バッファサイズ
-                AudioTrack.MODE_STREAM); // ストリームモード
+    public AudioThread(int frequency, ResponseLatency latency, PlaybackMetrics metrics) {
+        super("CactusMetronome-Audio");
+        setDaemon(true);
+        this.frequency = frequency;
+        this.latency = latency;
+        this.metrics = metrics;
     }
 
     /**
@@ -40,28 +75,255 @@ class AudioThread extends Thread {
      */
     public void run() {
         //Log.i(LOG_TAG, "AudioThread start");
-        audioTrack.play();
-        while (!exit) {
-            if (pattern != null) {
-                audioTrack.write(pattern, 0, pattern.length);
-            } else {
+        raisePriority();
+        while (true) {
+            AudioSink sink;
+            synchronized (lock) {
                 try {
-                    Thread.sleep(100);
+                    while (requested == IDLE) {
+                        lock.wait();
+                    }
                 } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    requested = TERMINATED;
+                }
+                if (requested == TERMINATED) {
+                    break;
                 }
+                sink = audioSink;
+                running = true;
+            }
+            play(sink, renderer);
+            sink.release();
+            if (finishRequestedAt != 0) {
+                latency.recordFinish(System.nanoTime() - finishRequestedAt);
+            }
+            synchronized (lock) {
+                running = false;
+                lock.notifyAll();
             }
         }
-        audioTrack.release();
         //Log.i(LOG_TAG, "AudioThread finish");
     }
 
     /**
-     * スレッドを終了する
+     * 再生が終了するまで、ブロックを書き込む
+     *
+     * @param sink 出力先
+     * @param renderer パターンをブロックに切り出すオブジェクト
      */
-    public void notifyFinish() {
-        exit = true;
-        if (audioTrack != null) {
-            audioTrack.stop();
+    private void play(AudioSink sink, PatternRenderer renderer) {
+        // 出力の形式は再生中に変わらないので、バッファは再生を開始するときに用意する
+        int channels = 1;
+        boolean floatOutput = false;
+        if (sink instanceof FormattedAudioSink) {
+            channels = ((FormattedAudioSink) sink).getChannelCount();
+            floatOutput = ((FormattedAudioSink) sink).isFloatOutput();
+        }
+        MixBus bus = new MixBus(channels, BLOCK_FRAMES);
+        short[] block = floatOutput ? null : new short[BLOCK_FRAMES * channels];
+        float[] floatBlock = floatOutput ? new float[BLOCK_FRAMES * channels] : null;
+        long blockMillis = Math.max(1, BLOCK_FRAMES * 1000L / frequency);
+        long blockNanos = BLOCK_FRAMES * 1000000000L / frequency;
+        // 途切れずに書き込み続けている間だけ、途切れと間隔のずれを計測する
+        boolean writing = false;
+        long lastWriteStart = 0;
+        long framesWritten = 0;
+        sink.play();
+        while (true) {
+            int state = requested;
+            if (state == PAUSED) {
+                writing = false;
+                synchronized (lock) {
+                    try {
+                        while (requested == PAUSED) {
+                            lock.wait();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        requested = TERMINATED;
+                    }
+                }
+                continue;
+            }
+            if (state != PLAYING) {
+                return;
+            }
+            ScheduledPattern change = pendingChange.getAndSet(null);
+            if (change != null) {
+                renderer.setPlayedFrame(sink.getPlaybackPosition());
+                renderer.schedule(change);
+            }
+            if (renderer.hasPattern()) {
+                renderer.render(bus, 0, BLOCK_FRAMES);
+                if (floatOutput) {
+                    bus.toFloat(floatBlock, BLOCK_FRAMES);
+                } else {
+                    bus.toShort(block, BLOCK_FRAMES);
+                }
+                long start = System.nanoTime();
+                if (writing) {
+                    metrics.recordJitter(start - lastWriteStart - blockNanos);
+                    if (sink.getPlaybackPosition() >= framesWritten) {
+                        metrics.recordUnderrun();
+                    }
+                }
+                int written = floatOutput
+                        ? ((FormattedAudioSink) sink).write(floatBlock, 0, BLOCK_FRAMES * channels)
+                        : sink.write(block, 0, BLOCK_FRAMES * channels);
+                if (written > 0) {
+                    written /= channels;
+                }
+                metrics.recordWrite(BLOCK_FRAMES, written, System.nanoTime() - start);
+                if (written > 0) {
+                    framesWritten += written;
+                }
+                writing = true;
+                lastWriteStart = start;
+                long changeRequestedAt = renderer.takeAppliedRequestedAt();
+                if (changeRequestedAt != 0) {
+                    latency.recordPattern(System.nanoTime() - changeRequestedAt);
+                }
+            } else {
+                writing = false;
+                try {
+                    Thread.sleep(blockMillis);
+                } catch (InterruptedException e) {
+                    // 割り込まれたら終了する. 呼び出し元が確認できるよう、割り込み状態は戻しておく
+                    Thread.currentThread().interrupt();
+                    synchronized (lock) {
+                        requested = TERMINATED;
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 再生スレッドの優先度を、音声用に上げる.
+     *
+     * Android端末上では{@code THREAD_PRIORITY_URGENT_AUDIO}にする。JVM上では、Javaのスレッドの最大の優先度にとどめる。
+     */
+    private static void raisePriority() {
+        Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
+        try {
+            android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
+        } catch (LinkageError e) {
+            // Androidのクラスがない（JVM上）
+        } catch (RuntimeException e) {
+            // Androidのクラスがスタブである（JVM上のテストなど）
+        }
+    }
+
+    /**
+     * 再生を開始する. 前回の再生が終わっていなければ、その出力先の解放を待つ。
+     *
+     * @param sink 出力先。再生を終了するときに解放される
+     */
+    public void begin(AudioSink sink) {
+        synchronized (lock) {
+            waitUntilStopped();
+            audioSink = sink;
+            PatternRenderer r = new PatternRenderer();
+            r.setEventsEnabled(eventsEnabled);
+            renderer = r;
+            pendingChange.set(null);
+            finishRequestedAt = 0;
+            requested = PLAYING;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * 出力先を保持したまま、再生を一時停止する
+     */
+    public void pauseSession() {
+        synchronized (lock) {
+            if (requested != PLAYING) {
+                return;
+            }
+            requested = PAUSED;
+            audioSink.pause();
+        }
+    }
+
+    /**
+     * 一時停止した再生を、続きから再開する
+     */
+    public void resumeSession() {
+        synchronized (lock) {
+            if (requested != PAUSED) {
+                return;
+            }
+            audioSink.play();
+            requested = PLAYING;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * 再生を終了し、出力先を解放する. 解放が終わるまで戻らない。
+     *
+     * 出力先の停止は、終了の要求を公開する前に{@code lock}を取得したまま行う。
+     * 再生スレッドは終了の要求を見てから解放するので、停止した後の出力先を使うのは再生スレッドだけになる。
+     */
+    public void end() {
+        finishRequestedAt = System.nanoTime();
+        synchronized (lock) {
+            if (requested != PLAYING && requested != PAUSED) {
+                return;
+            }
+            AudioSink sink = audioSink;
+            if (running) {
+                // 書き込み中であれば、これでブロックが解除される. 解放は再生スレッドが行う
+                sink.stop();
+                sink.flush();
+            } else {
+                // 再生スレッドが受け取る前に終了した
+                sink.release();
+            }
+            requested = IDLE;
+            lock.notifyAll();
+            waitUntilStopped();
+        }
+    }
+
+    /**
+     * 再生が終了したかどうかを返す. スレッドの終了が要求されたときもtrueを返す。
+     *
+     * @return 終了していればtrue
+     */
+    public boolean isEnded() {
+        return requested == IDLE || requested == TERMINATED;
+    }
+
+    /**
+     * スレッドを終了する. 再生中であれば、再生を終了してから終了する。スレッドが終了するまで戻らない。
+     */
+    public void terminate() {
+        end();
+        synchronized (lock) {
+            requested = TERMINATED;
+            lock.notifyAll();
+        }
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 再生スレッドが出力先を使い終わるまで待つ. {@code lock}を取得して呼び出す。
+     */
+    private void waitUntilStopped() {
+        try {
+            while (running) {
+                lock.wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -71,25 +333,69 @@ class AudioThread extends Thread {
      * @param vol ボリューム[0..1]
      */
     public void setVolume(float vol) {
-        if (audioTrack != null) {
-            audioTrack.setStereoVolume(vol, vol);
+        AudioSink sink = audioSink;
+        if (sink != null) {
+            sink.setVolume(vol);
         }
     }
 
     /**
-     * クリックパターンを設定する
-     * @param pattern クリック音のパターン（44.1kHz 16bit）
+     * クリックパターンを設定する. 次のブロックの先頭で、{@code pattern.mode}に従って切り替えが行われる。
+     *
+     * 前回の設定がまだ反映されていなければ、前回の設定は破棄される。
+     *
+     * @param pattern クリック音のパターン
+     */
+    public void setPattern(ScheduledPattern pattern) {
+        pendingChange.set(pattern);
+    }
+
+    /**
+     * 最後に切り替えたパターンを返す
+     *
+     * @return 最後に切り替えたパターン。まだなければnull
+     */
+    public ScheduledPattern getPublishedPattern() {
+        return renderer.getPublished();
+    }
+
+    /**
+     * クリックが鳴る位置を通知するかどうかを指定する
+     *
+     * @param enabled 通知するならtrue
+     */
+    public void setBeatEventsEnabled(boolean enabled) {
+        eventsEnabled = enabled;
+        renderer.setEventsEnabled(enabled);
+    }
+
+    /**
+     * クリックが鳴る位置の通知先を返す. 読み出せるのは１スレッドだけである。
+     *
+     * @return 通知先のキュー
+     */
+    public BeatEventQueue getBeatEvents() {
+        return renderer.getEvents();
+    }
+
+    /**
+     * 出力装置が再生し終えた位置を返す.
+     *
+     * 再生スレッドが書き出した位置とは異なり、出力先のバッファに残っている分は含まない。
+     *
+     * @return 再生開始からのサンプル数
      */
-    public void setPattern(short[] pattern) {
-        this.pattern = pattern;
+    public long getPlaybackFrame() {
+        return audioSink.getPlaybackPosition();
     }
 
     /**
      * 最初から再生する
      */
     public void seekToStart() {
-        if (audioTrack != null) {
-            audioTrack.flush();
+        AudioSink sink = audioSink;
+        if (sink != null) {
+            sink.flush();
         }
     }
 }
@@ -0,0 +1,221 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Build;
+
+/**
+ * {@code AudioTrack}に出力する{@link AudioSink}.
+ *
+ * Android端末上で使う、デフォルトの出力先である。デフォルトではモノラル16bit PCMのストリームモードで再生する。
+ * チャンネル数（1か2）と、float型のPCM（{@code ENCODING_PCM_FLOAT}）で出力するかどうかも指定できる。
+ * float型はAPI 21以上でだけ使い、それより古い端末では16bitで出力する。
+ *
+ * バッファの大きさは、{@code AudioTrack.getMinBufferSize}の倍数で指定する。
+ * 大きくすると、再生スレッドの処理が遅れても音が途切れにくくなるが、パターンの変更や停止が聞こえるまでの遅延が増える。
+ * 再生位置は再生ヘッドから求めるので、バッファの大きさは再生位置やクリックの通知のタイミングには影響しない。
+ */
+public class AudioTrackSink implements FormattedAudioSink {
+
+    /** 再生オブジェクト */
+    private final AudioTrack audioTrack;
+    /** チャンネル数 */
+    private final int channels;
+    /** float型で出力するかどうか */
+    private final boolean floatOutput;
+    /** バッファの大きさ（サンプル） */
+    private final int bufferFrames;
+    /** 前回読み出した再生ヘッドの位置（符号なし32bit） */
+    private long lastHeadPosition;
+    /** 再生ヘッドの位置が一周した回数 */
+    private long headWraps;
+
+    /**
+     * サンプリング周波数を指定して、{@code AudioTrackSink}のインスタンスを生成するコンストラクタ
+     *
+     * @param frequency サンプリング周波数(Hz)
+     */
+    public AudioTrackSink(int frequency) {
+        this(frequency, 1);
+    }
+
+    /**
+     * サンプリング周波数とバッファの大きさを指定して、{@code AudioTrackSink}のインスタンスを生成するコンストラクタ
+     *
+     * @param frequency サンプリング周波数(Hz)
+     * @param bufferMultiple バッファの大きさ（{@code AudioTrack.getMinBufferSize}の何倍か。1以上）
+     */
+    public AudioTrackSink(int frequency, int bufferMultiple) {
+        this(frequency, bufferMultiple, 1, false);
+    }
+
+    /**
+     * 出力の形式も指定して、{@code AudioTrackSink}のインスタンスを生成するコンストラクタ
+     *
+     * @param frequency サンプリング周波数(Hz)
+     * @param bufferMultiple バッファの大きさ（{@code AudioTrack.getMinBufferSize}の何倍か。1以上）
+     * @param channels チャンネル数（1か2）
+     * @param preferFloat float型で出力するならtrue。API 21未満の端末では無視して16bitで出力する
+     */
+    public AudioTrackSink(int frequency, int bufferMultiple, int channels, boolean preferFloat) {
+        if (bufferMultiple < 1) {
+            throw new RuntimeException("Buffer multiple(" + bufferMultiple + ") should be positive.");
+        }
+        if (channels != 1 && channels != 2) {
+            throw new RuntimeException("Channel count(" + channels + ") should be 1 or 2.");
+        }
+        this.channels = channels;
+        this.floatOutput = preferFloat && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+        int channelConfig = channels == 2 ? AudioFormat.CHANNEL_OUT_STEREO : AudioFormat.CHANNEL_OUT_MONO;
+        int encoding = floatOutput ? AudioFormat.ENCODING_PCM_FLOAT : AudioFormat.ENCODING_PCM_16BIT;
+        int bufferBytes = AudioTrack.getMinBufferSize(frequency, channelConfig, encoding) * bufferMultiple;
+        audioTrack = new AudioTrack(AudioManager.STREAM_MUSIC, // 音楽再生用のオーディオストリーム
+                frequency, // サンプリングレート
+                channelConfig, // モノラルかステレオ
+                encoding, // 16bitかfloat型のPCM
+                bufferBytes,// 合計バッファサイズ
+                AudioTrack.MODE_STREAM); // ストリームモード
+        bufferFrames = bufferBytes / ((floatOutput ? 4 : 2) * channels);
+    }
+
+    /**
+     * バッファの大きさを返す. 書き込んでから再生ヘッドに達するまでの、最大の遅延になる。
+     *
+     * @return バッファの大きさ（サンプル）
+     */
+    public int getBufferFrames() {
+        return bufferFrames;
+    }
+
+    @Override
+    public int getChannelCount() {
+        return channels;
+    }
+
+    @Override
+    public boolean isFloatOutput() {
+        return floatOutput;
+    }
+
+    @Override
+    public int write(short[] buffer, int offset, int length) {
+        return audioTrack.write(buffer, offset, length);
+    }
+
+    @Override
+    public int write(float[] buffer, int offset, int length) {
+        return audioTrack.write(buffer, offset, length, AudioTrack.WRITE_BLOCKING);
+    }
+
+    @Override
+    public void flush() {
+        audioTrack.flush();
+    }
+
+    @Override
+    public void play() {
+        audioTrack.play();
+    }
+
+    @Override
+    public void stop() {
+        audioTrack.stop();
+    }
+
+    @Override
+    public void pause() {
+        audioTrack.pause();
+    }
+
+    @Override
+    public void setVolume(float vol) {
+        audioTrack.setStereoVolume(vol, vol);
+    }
+
+    @Override
+    public void release() {
+        audioTrack.release();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * {@code AudioTrack.getPlaybackHeadPosition}は32bitで一周するので、一周した回数を数えて64bitに拡張する。
+     */
+    @Override
+    public synchronized long getPlaybackPosition() {
+        long head = audioTrack.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+        if (head < lastHeadPosition) {
+            headWraps++;
+        }
+        lastHeadPosition = head;
+        return (headWraps << 32) + head;
+    }
+
+    /**
+     * {@link AudioTrackSink}を生成するファクトリ
+     */
+    public static class Factory implements AudioSink.Factory {
+        /** バッファの大きさ（{@code AudioTrack.getMinBufferSize}の何倍か） */
+        private final int bufferMultiple;
+        /** チャンネル数 */
+        private final int channels;
+        /** float型で出力するかどうか */
+        private final boolean preferFloat;
+
+        /**
+         * 最小のバッファで再生するファクトリを生成するコンストラクタ
+         */
+        public Factory() {
+            this(1);
+        }
+
+        /**
+         * バッファの大きさを指定して、ファクトリを生成するコンストラクタ.
+         *
+         * 1で遅延が最小になる。音が途切れる端末では、2から4程度を指定する。
+         *
+         * @param bufferMultiple バッファの大きさ（{@code AudioTrack.getMinBufferSize}の何倍か。1以上）
+         */
+        public Factory(int bufferMultiple) {
+            this(bufferMultiple, 1, false);
+        }
+
+        /**
+         * バッファの大きさと出力の形式を指定して、ファクトリを生成するコンストラクタ.
+         *
+         * ステレオにすると、{@link Click}の定位が有効になる。
+         *
+         * @param bufferMultiple バッファの大きさ（{@code AudioTrack.getMinBufferSize}の何倍か。1以上）
+         * @param channels チャンネル数（1か2）
+         * @param preferFloat float型で出力するならtrue。API 21未満の端末では無視して16bitで出力する
+         */
+        public Factory(int bufferMultiple, int channels, boolean preferFloat) {
+            if (bufferMultiple < 1) {
+                throw new RuntimeException("Buffer multiple(" + bufferMultiple + ") should be positive.");
+            }
+            if (channels != 1 && channels != 2) {
+                throw new RuntimeException("Channel count(" + channels + ") should be 1 or 2.");
+            }
+            this.bufferMultiple = bufferMultiple;
+            this.channels = channels;
+            this.preferFloat = preferFloat;
+        }
+
+        @Override
+        public AudioSink createAudioSink(int frequency) {
+            return new AudioTrackSink(frequency, bufferMultiple, channels, preferFloat);
+        }
+
+        /**
+         * {@inheritDoc}
+         *
+         * {@code AudioTrack.getNativeOutputSampleRate}が返す、音楽再生用のストリームの周波数を返す。
+         */
+        @Override
+        public int getNativeSampleRate() {
+            return AudioTrack.getNativeOutputSampleRate(AudioManager.STREAM_MUSIC);
+        }
+    }
+}
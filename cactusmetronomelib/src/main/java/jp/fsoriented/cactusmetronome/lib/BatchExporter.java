@@ -0,0 +1,192 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 多数のクリックパターンを、並列にWAVファイルとして保存するクラス.
+ *
+ * {@link ExportJob}のリストを受け取り、スレッドプールで１ファイルずつ並列に生成して保存する。
+ * {@link CacheableClickCallback}のクリック音の波形は全スレッドで共有するので、同じクリック音をファイルごとに生成し直すことはない。
+ * 独自の{@link ClickCallback}を使う場合は、{@code CacheableClickCallback}を実装すると共有される。
+ *
+ * 保存した結果は{@link Result}で返し、失敗したファイルがあっても残りのファイルは保存する。
+ */
+public class BatchExporter {
+
+    /** サンプリング周波数(Hz) */
+    private final int sampleRate;
+    /** 並列に保存するスレッドの数 */
+    private final int threads;
+    /** 音量を正規化するかどうか */
+    private volatile boolean normalize;
+
+    /**
+     * CPUのコア数だけのスレッドで保存する{@code BatchExporter}を生成するコンストラクタ
+     *
+     * @param sampleRate サンプリング周波数(Hz)
+     */
+    public BatchExporter(int sampleRate) {
+        this(sampleRate, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * スレッドの数を指定して、{@code BatchExporter}を生成するコンストラクタ
+     *
+     * @param sampleRate サンプリング周波数(Hz)
+     * @param threads 並列に保存するスレッドの数
+     */
+    public BatchExporter(int sampleRate, int threads) {
+        if (sampleRate <= 0) {
+            throw new RuntimeException("Sample rate(" + sampleRate + ") should be positive.");
+        }
+        if (threads <= 0) {
+            throw new RuntimeException("Threads(" + threads + ") should be positive.");
+        }
+        this.sampleRate = sampleRate;
+        this.threads = threads;
+    }
+
+    /**
+     * クリック音を重ねたときに、音量を正規化するかどうかを指定する. デフォルトは{@link Metronome}と同じくfalse（飽和させる）。
+     *
+     * @param enabled 正規化するならtrue
+     * @see Metronome#setNormalizeEnabled(boolean)
+     */
+    public void setNormalizeEnabled(boolean enabled) {
+        normalize = enabled;
+    }
+
+    /**
+     * すべてのジョブを並列に保存する. すべてのジョブが終わるまで戻らない。
+     *
+     * @param jobs 保存するファイルの内容
+     * @return 保存した結果
+     * @throws InterruptedException 待機中に割り込まれたとき。実行中のジョブは中断される
+     */
+    public Result export(List<ExportJob> jobs) throws InterruptedException {
+        final boolean normalize = this.normalize;
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, jobs.size())));
+        try {
+            ArrayList<Future<Long>> futures = new ArrayList<Future<Long>>(jobs.size());
+            for (final ExportJob job : jobs) {
+                futures.add(executor.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws IOException {
+                        short[] pattern = Click.compile(job.clicks(), sampleRate, job.getSamplesPerPattern(), normalize);
+                        return WaveFileWriter.writeFile(job.getFile(), pattern, sampleRate, job.getRepeats());
+                    }
+                }));
+            }
+            int files = 0;
+            long bytes = 0;
+            LinkedHashMap<ExportJob, Exception> failures = new LinkedHashMap<ExportJob, Exception>();
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    bytes += futures.get(i).get();
+                    files++;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    failures.put(jobs.get(i), cause instanceof Exception ? (Exception) cause : e);
+                }
+            }
+            return new Result(files, bytes, System.nanoTime() - start, failures);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * {@link BatchExporter#export(List)}の結果. スループットを計測するための値を持つ。
+     */
+    public static class Result {
+        /** 保存できたファイルの数 */
+        private final int fileCount;
+        /** 保存できたファイルの大きさの合計（バイト） */
+        private final long bytesWritten;
+        /** 全体にかかった時間（ナノ秒） */
+        private final long elapsedNanos;
+        /** 失敗したジョブと、その原因 */
+        private final Map<ExportJob, Exception> failures;
+
+        /**
+         * コンストラクタ
+         */
+        Result(int fileCount, long bytesWritten, long elapsedNanos, Map<ExportJob, Exception> failures) {
+            this.fileCount = fileCount;
+            this.bytesWritten = bytesWritten;
+            this.elapsedNanos = elapsedNanos;
+            this.failures = Collections.unmodifiableMap(failures);
+        }
+
+        /**
+         * 保存できたファイルの数を返す
+         *
+         * @return ファイルの数
+         */
+        public int getFileCount() {
+            return fileCount;
+        }
+
+        /**
+         * 保存できたファイルの大きさの合計を返す
+         *
+         * @return 大きさの合計（バイト）
+         */
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        /**
+         * 全体にかかった時間を返す
+         *
+         * @return 時間（ナノ秒）
+         */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * 1秒あたりに保存したファイルの数を返す
+         *
+         * @return ファイル数/秒
+         */
+        public double getFilesPerSecond() {
+            return elapsedNanos > 0 ? fileCount * 1e9 / elapsedNanos : 0;
+        }
+
+        /**
+         * 1秒あたりに保存したデータ量を返す
+         *
+         * @return MB/秒（1MB = 1048576バイト）
+         */
+        public double getMegabytesPerSecond() {
+            return elapsedNanos > 0 ? bytesWritten / 1048576.0 * 1e9 / elapsedNanos : 0;
+        }
+
+        /**
+         * 失敗したジョブと、その原因を返す
+         *
+         * @return 失敗したジョブと原因（ジョブの順）。すべて成功すれば空
+         */
+        public Map<ExportJob, Exception> getFailures() {
+            return failures;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d files, %d bytes in %.3f s (%.1f files/s, %.1f MB/s), %d failed",
+                    fileCount, bytesWritten, elapsedNanos / 1e9, getFilesPerSecond(), getMegabytesPerSecond(), failures.size());
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+/**
+ * （内部クラス）再生スレッドから通知スレッドへ、クリックが鳴った位置を渡すキュー.
+ *
+ * 書き込み側と読み出し側がそれぞれ１スレッドであることを前提にした、固定長のリングバッファである。
+ * 配列はあらかじめ確保しておき、{@code offer}と{@code poll}ではオブジェクトを生成しない。
+ * 一杯のときに追加しようとしたイベントは捨て、その数を数える。
+ */
+class BeatEventQueue {
+
+    /** キューの容量。2のべき乗 */
+    private static final int CAPACITY = 256;
+    /** インデックスのマスク */
+    private static final int MASK = CAPACITY - 1;
+
+    /** クリックのインデックス */
+    private final int[] indices = new int[CAPACITY];
+    /** クリックが鳴る位置 */
+    private final long[] frames = new long[CAPACITY];
+    /** 次に読み出す位置（読み出し側だけが書き換える） */
+    private volatile long head;
+    /** 次に書き込む位置（書き込み側だけが書き換える） */
+    private volatile long tail;
+    /** 捨てたイベントの数 */
+    private volatile long dropped;
+
+    /**
+     * イベントを追加する. 書き込み側のスレッドから呼び出す。
+     *
+     * @param clickIndex クリックのインデックス
+     * @param frame クリックが鳴る位置（再生開始からのサンプル数）
+     * @return 追加できればtrue
+     */
+    public boolean offer(int clickIndex, long frame) {
+        long t = tail;
+        if (t - head >= CAPACITY) {
+            dropped++;
+            return false;
+        }
+        int i = (int) (t & MASK);
+        indices[i] = clickIndex;
+        frames[i] = frame;
+        tail = t + 1;
+        return true;
+    }
+
+    /**
+     * キューが空かどうか. 読み出し側のスレッドから呼び出す。
+     *
+     * @return 空ならtrue
+     */
+    public boolean isEmpty() {
+        return head == tail;
+    }
+
+    /**
+     * 先頭のイベントの位置を返す. 読み出し側のスレッドから、キューが空でないときに呼び出す。
+     *
+     * @return クリックが鳴る位置
+     */
+    public long peekFrame() {
+        return frames[(int) (head & MASK)];
+    }
+
+    /**
+     * 先頭のイベントのクリックのインデックスを返す. 読み出し側のスレッドから、キューが空でないときに呼び出す。
+     *
+     * @return クリックのインデックス
+     */
+    public int peekIndex() {
+        return indices[(int) (head & MASK)];
+    }
+
+    /**
+     * 先頭のイベントを取り除く. 読み出し側のスレッドから、キューが空でないときに呼び出す。
+     */
+    public void remove() {
+        head = head + 1;
+    }
+
+    /**
+     * 捨てたイベントの数を返す
+     *
+     * @return 捨てたイベントの数
+     */
+    public long getDroppedCount() {
+        return dropped;
+    }
+}
@@ -0,0 +1,27 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+/**
+ * クリックが鳴ったことを受け取るリスナー.
+ *
+ * {@link Metronome#addBeatListener(BeatListener, boolean)}で登録する。
+ * 通知は{@link Metronome#dispatchBeatEvents()}を呼び出したスレッドで行われる。
+ */
+public interface BeatListener {
+    /**
+     * クリックが鳴った（出力装置で再生された）ことを通知する.
+     *
+     * @param clickIndex 鳴ったクリックの、パターン内でのインデックス
+     * @param frame クリックが鳴った位置（再生開始からのサンプル数）
+     */
+    public void onBeat(int clickIndex, long frame);
+
+    /**
+     * 現在の再生位置を通知する.
+     *
+     * 登録時に位相の通知を指定したリスナーにだけ、{@link Metronome#dispatchBeatEvents()}の呼び出しごとに１回通知される。
+     *
+     * @param position パターン上の位置（サンプル）
+     * @param patternLength パターンの長さ（サンプル）
+     */
+    public void onPhase(int position, int patternLength);
+}
@@ -0,0 +1,29 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+/**
+ * 生成した波形をキャッシュしてよい{@link ClickCallback}であることを表すインターフェース.
+ *
+ * このインターフェースを実装するコールバックは、次の条件を満たさなければならない。
+ * <ul>
+ *     <li>書き込む波形が、コールバック自身と、{@code click.length}と、サンプリング周波数だけで決まること。
+ *     {@code click.when}などには依存しないこと。</li>
+ *     <li>同じ波形を書き込むコールバックどうしは、{@code equals}がtrueを返し、{@code hashCode}が同じ値を返すこと。
+ *     状態を持たないコールバックであれば、同じクラスのインスタンスを等しいとみなせばよい。</li>
+ * </ul>
+ * 条件を満たすコールバックは、パターンの生成時に波形を生成し直さず、キャッシュした波形を使い回す。
+ */
+public interface CacheableClickCallback extends ClickCallback {
+
+    /**
+     * コールバック自身が保持している波形を返す.
+     *
+     * 録音した音のように波形をすでに保持しているコールバックは、それを返せばキャッシュに同じ波形を重ねて持たずに済む。
+     * 返した波形は共有されるので、呼び出し側は書き換えてはならない。
+     * 保持していないとき、または{@code length}より長いときはnullを返す。その場合は{@code writeClick}で生成してキャッシュする。
+     *
+     * @param frequency サンプリング周波数(Hz)
+     * @param length クリック音の長さ（サンプル）
+     * @return 波形。配列の長さが鳴らすデータ数で、{@code length}以下であること。なければnull
+     */
+    public short[] getSharedWaveform(int frequency, int length);
+}
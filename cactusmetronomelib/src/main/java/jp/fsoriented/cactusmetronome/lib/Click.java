@@ -1,7 +1,10 @@
 package jp.fsoriented.cactusmetronome.lib;
 
+import java.util.Arrays;
+import java.util.HashMap;
+
 /**
- * クリック音のタイミング、長さ、波形を持つクラス.
+ * クリック音のタイミング、長さ、波形、音量、定位を持つクラス.
  */
 public class Click {
     /**
@@ -16,12 +19,21 @@ public class Click {
      * クリック音の波形を生成するコールバック
      */
     /*package*/ final ClickCallback callback;
+    /**
+     * クリック音の音量の倍率
+     */
+    /*package*/ final float gain;
+    /**
+     * クリック音の定位（-1が左、0が中央、1が右）
+     */
+    /*package*/ final float pan;
 
     /**
      * このクリックの状態.
      *
      * 状態とは、次のクリックのタイミングまでの経過時間を[0..1]の割合で示したものである。
      * {@code ratio}が0のときが、クリックのタイミングである。
+     * 再生中に{@link Metronome#updateRatios()}を呼び出したときに更新される。
      */
     public volatile double ratio;
 
@@ -33,9 +45,35 @@ public class Click {
      * @param callback 波形を生成するコールバック
      */
     public Click(int when, int length, ClickCallback callback) {
+        this(when, length, callback, 1.0f, 0.0f);
+    }
+
+    /**
+     * 音量と定位も指定して、{@code Click}のインスタンスを生成するコンストラクタ.
+     *
+     * 音量と定位は波形を足し合わせるときに適用するので、アクセントなど音量だけが異なるクリックのために
+     * 別の{@link ClickCallback}を用意する必要はなく、波形も共有される。
+     * 定位はステレオで出力するときだけ有効で、中央では左右とも{@code gain}倍、左に振ると右の音量だけが下がる（逆も同様）。
+     * あらかじめ生成するパターン（{@link Metronome#setPattern(Click[], int)}、{@link CompiledPattern}）はモノラルなので、定位は無視される。
+     *
+     * @param when クリックのタイミング
+     * @param length クリック音の長さ
+     * @param callback 波形を生成するコールバック
+     * @param gain 音量の倍率（0以上）
+     * @param pan 定位[-1..1]。-1が左、0が中央、1が右
+     */
+    public Click(int when, int length, ClickCallback callback, float gain, float pan) {
+        if (!(gain >= 0)) {
+            throw new RuntimeException("Gain(" + gain + ") should not be negative.");
+        }
+        if (!(pan >= -1 && pan <= 1)) {
+            throw new RuntimeException("Pan(" + pan + ") is out of range. [-1..1]");
+        }
         this.callback = callback;
         this.when = when;
         this.length = length;
+        this.gain = gain;
+        this.pan = pan;
     }
 
     /**
@@ -49,7 +87,27 @@ public class Click {
     }
 
     /**
-     * {@code Click}の配列をもとに、クリック音のパターン（波形）を生成する
+     * 音量の倍率を返す
+     *
+     * @return 音量の倍率
+     */
+    public float getGain() {
+        return gain;
+    }
+
+    /**
+     * 定位を返す
+     *
+     * @return 定位[-1..1]。-1が左、0が中央、1が右
+     */
+    public float getPan() {
+        return pan;
+    }
+
+    /**
+     * {@code Click}の配列をもとに、クリック音のパターン（波形）を生成する.
+     *
+     * 重なったクリック音はint型で足し合わせてから、16bitの範囲に収まるように飽和させる（桁あふれで符号が反転しない）。
      *
      * @param spec クリック音の情報。１小節分の{@code Click}の配列。
      * @param frequency 周波数。{@code Metronome.FREQUENCY}を指定する。
@@ -58,33 +116,338 @@ public class Click {
      */
     /*package*/
     static short[] compile(Click[] spec, int frequency, int length) {
+        return compile(spec, frequency, length, false);
+    }
+
+    /**
+     * {@code Click}の配列をもとに、クリック音のパターン（波形）を生成する.
+     *
+     * 重なったクリック音はint型で足し合わせる。{@code normalize}がtrueで、足し合わせた結果が16bitの範囲を超えるときは、
+     * 最大値が16bitの範囲に収まるようにパターン全体の音量を下げる。そうでなければ、範囲外の値を飽和させる。
+     *
+     * @param spec クリック音の情報。１小節分の{@code Click}の配列。
+     * @param frequency 周波数。{@code Metronome.FREQUENCY}を指定する。
+     * @param length クリック音の長さ（サンプル）
+     * @param normalize 音量を下げて範囲に収めるならtrue、飽和させるならfalse
+     * @return クリック音のパターン
+     */
+    /*package*/
+    static short[] compile(Click[] spec, int frequency, int length, boolean normalize) {
         if (spec == null || spec.length == 0) {
             throw new RuntimeException("Click spec should not be empty or null.");
         }
         if (length <= 0) {
             throw new RuntimeException("Pattern length should not be zero.");
         }
-        // make pattern buffer
-        short[] patternBuffer = new short[length];
-        // make click buffer
-        int maxLength = 0;
-        for (Click click : spec) {
-            if (maxLength < click.length) {
-                maxLength = click.length;
-            }
-        }
-        short[] buffer = new short[maxLength];
-        // create a click and compose
         for (Click click : spec) {
             if (click.when > length || click.when < 0) {
                 throw new RuntimeException("click.when(" + click.when + ") is out of range. [0-" + length + ")");
             }
-            int size = click.callback.writeClick(buffer, frequency, click);
-            for (int i = 0; i < size; i++) {
-                patternBuffer[(click.when + i) % length] += buffer[i];
+        }
+        // create waveforms
+        short[][] waves = new short[spec.length][];
+        int[] sizes = new int[spec.length];
+        for (int c = 0; c < spec.length; c++) {
+            Click click = spec[c];
+            if (click.callback instanceof CacheableClickCallback) {
+                waves[c] = WaveformCache.SHARED.get(click, frequency);
+            } else {
+                // キャッシュできない波形は、作業用バッファを使い回さずにクリックごとに保持する
+                waves[c] = new short[click.length];
+                sizes[c] = click.callback.writeClick(waves[c], frequency, click);
+                continue;
+            }
+            sizes[c] = waves[c].length;
+        }
+        int[] whens = new int[spec.length];
+        float[] gains = new float[spec.length];
+        for (int c = 0; c < spec.length; c++) {
+            whens[c] = spec[c].when;
+            gains[c] = spec[c].gain;
+        }
+        return compose(spec.length, whens, waves, sizes, gains, length, normalize);
+    }
+
+    /**
+     * {@link PackedPattern}をもとに、クリック音のパターン（波形）を生成する.
+     *
+     * 波形はボイスとクリック音の長さの組み合わせごとに１つだけ生成し、同じ組み合わせのクリックで共有する。
+     * キャッシュできないコールバックには、位置が0の{@code Click}を渡して波形を書き込ませる。
+     *
+     * @param packed クリックの並び
+     * @param frequency サンプリング周波数(Hz)
+     * @param normalize 音量を下げて範囲に収めるならtrue、飽和させるならfalse
+     * @return クリック音のパターン
+     */
+    /*package*/
+    static short[] compile(PackedPattern packed, int frequency, boolean normalize) {
+        int count = packed.size();
+        int[] whens = packed.whens();
+        int[] lengths = packed.lengths();
+        byte[] voiceIds = packed.voiceIds();
+        HashMap<Long, short[]> shared = new HashMap<Long, short[]>();
+        short[][] waves = new short[count][];
+        int[] sizes = new int[count];
+        float[] gains = new float[count];
+        for (int c = 0; c < count; c++) {
+            int voice = voiceIds[c] & 0xFF;
+            Long key = ((long) voice << 32) | lengths[c];
+            short[] wave = shared.get(key);
+            if (wave == null) {
+                wave = waveformOf(new Click(0, lengths[c], packed.getVoice(voice)), frequency);
+                shared.put(key, wave);
+            }
+            waves[c] = wave;
+            sizes[c] = wave.length;
+            gains[c] = packed.getVoiceGain(voice);
+        }
+        return compose(count, whens, waves, sizes, gains, packed.getLength(), normalize);
+    }
+
+    /**
+     * クリック音の波形を足し合わせて、16bitのパターンに変換する.
+     *
+     * 作業用の配列には、クリック音があるパターン上の区間だけを、重なりをまとめて先頭から詰めて置く。
+     * 作業用の配列の長さはパターンの長さによらず、クリック音が鳴っている長さの合計で済む。
+     *
+     * @param count クリックの数
+     * @param whens クリックの位置
+     * @param waves クリック音の波形
+     * @param sizes 波形のデータ数
+     * @param gains 音量の倍率
+     * @param length パターンの長さ（サンプル）
+     * @param normalize 音量を下げて範囲に収めるならtrue、飽和させるならfalse
+     * @return クリック音のパターン
+     */
+    private static short[] compose(int count, int[] whens, short[][] waves, int[] sizes, float[] gains, int length, boolean normalize) {
+        // クリック音がある区間を、パターンの末尾で２つに分けて、先頭の位置の順に並べる（上位32bitが先頭、下位32bitが末尾）
+        long[] ranges = new long[count * 2];
+        int rangeCount = 0;
+        for (int c = 0; c < count; c++) {
+            int size = Math.min(sizes[c], length);
+            if (size == 0) {
+                continue;
+            }
+            int pos = whens[c] % length;
+            if (pos + size <= length) {
+                ranges[rangeCount++] = ((long) pos << 32) | (pos + size);
+            } else {
+                ranges[rangeCount++] = ((long) pos << 32) | length;
+                ranges[rangeCount++] = pos + size - length;
+            }
+        }
+        Arrays.sort(ranges, 0, rangeCount);
+        // 重なる区間をまとめ、作業用の配列上の位置を決める
+        int[] starts = new int[rangeCount];
+        int[] ends = new int[rangeCount];
+        int[] offsets = new int[rangeCount];
+        int merged = 0;
+        for (int r = 0; r < rangeCount; r++) {
+            int start = (int) (ranges[r] >>> 32);
+            int end = (int) ranges[r];
+            if (merged > 0 && start <= ends[merged - 1]) {
+                ends[merged - 1] = Math.max(ends[merged - 1], end);
+            } else {
+                starts[merged] = start;
+                ends[merged] = end;
+                merged++;
+            }
+        }
+        int total = 0;
+        for (int k = 0; k < merged; k++) {
+            offsets[k] = total;
+            total += ends[k] - starts[k];
+        }
+        // make accumulator (wider than short, so that overlapped clicks do not wrap around).
+        int[] accumulator = ACCUMULATOR.get();
+        if (accumulator.length < total) {
+            accumulator = new int[total];
+            ACCUMULATOR.set(accumulator);
+        }
+        Arrays.fill(accumulator, 0, total, 0);
+        // compose
+        for (int c = 0; c < count; c++) {
+            int pos = whens[c] % length;
+            int done = 0;
+            while (done < sizes[c]) {
+                // 区間はパターンの末尾で分けたので、回り込むまでの範囲は１つの区間に収まる
+                int n = Math.min(sizes[c] - done, length - pos);
+                int k = findRange(starts, merged, pos);
+                add(accumulator, offsets[k] + pos - starts[k], waves[c], done, n, gains[c]);
+                done += n;
+                pos = 0;
+            }
+        }
+        // convert to 16bit (only where clicks are; the rest is silence)
+        short[] patternBuffer = new short[length];
+        int peak = 0;
+        if (normalize) {
+            int max = 0;
+            int min = 0;
+            for (int i = 0; i < total; i++) {
+                max = Math.max(max, accumulator[i]);
+                min = Math.min(min, accumulator[i]);
             }
+            peak = Math.max(max, -min);
+        }
+        double gain = peak > Short.MAX_VALUE ? (double) Short.MAX_VALUE / peak : 1.0;
+        for (int k = 0; k < merged; k++) {
+            convert(accumulator, offsets[k], patternBuffer, starts[k], ends[k] - starts[k], gain);
         }
         return patternBuffer;
     }
 
+    /**
+     * クリック音の波形を返す.
+     *
+     * {@link CacheableClickCallback}であればキャッシュした波形を返し、そうでなければ新しく生成する。
+     *
+     * @param click クリック
+     * @param frequency サンプリング周波数(Hz)
+     * @return クリック音の波形。配列の長さが、コールバックが書き込んだデータ数である。書き換えてはならない
+     */
+    /*package*/
+    static short[] waveformOf(Click click, int frequency) {
+        if (click.callback instanceof CacheableClickCallback) {
+            return WaveformCache.SHARED.get(click, frequency);
+        }
+        short[] buffer = new short[click.length];
+        int size = click.callback.writeClick(buffer, frequency, click);
+        return Arrays.copyOf(buffer, size);
+    }
+
+    /** {@code compile}の作業用の配列。スレッドごとに使い回す */
+    private static final ThreadLocal<int[]> ACCUMULATOR = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[0];
+        }
+    };
+
+    /**
+     * 指定された位置を含む区間を、先頭の位置の順に並んだ区間から探す
+     *
+     * @param starts 区間の先頭
+     * @param count 区間の数
+     * @param pos パターン上の位置
+     * @return 区間の番号
+     */
+    private static int findRange(int[] starts, int count, int pos) {
+        int lo = 0;
+        int hi = count - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (starts[mid] <= pos) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * クリック音の波形の一部を、作業用の配列に足す
+     *
+     * @param accumulator 作業用の配列
+     * @param at 足す位置
+     * @param wave クリック音の波形
+     * @param from 波形の先頭からの位置
+     * @param n 足すデータ数
+     * @param gain 音量の倍率
+     */
+    private static void add(int[] accumulator, int at, short[] wave, int from, int n, float gain) {
+        if (gain == 1.0f) {
+            for (int i = 0; i < n; i++) {
+                accumulator[at + i] += wave[from + i];
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                accumulator[at + i] += (int) (wave[from + i] * gain);
+            }
+        }
+    }
+
+    /**
+     * 作業用の配列の区間を、パターンの指定された位置に16bitで書き込む.
+     * {@code gain}が1でなければ音量を掛け、1ならば飽和させる。
+     *
+     * @param accumulator 作業用の配列
+     * @param from 作業用の配列上の先頭
+     * @param out パターン
+     * @param pos パターン上の先頭
+     * @param n データ数
+     * @param gain 音量の倍率
+     */
+    private static void convert(int[] accumulator, int from, short[] out, int pos, int n, double gain) {
+        if (gain != 1.0) {
+            for (int i = 0; i < n; i++) {
+                out[pos + i] = (short) (accumulator[from + i] * gain);
+            }
+            return;
+        }
+        for (int i = 0; i < n; i++) {
+            int value = accumulator[from + i];
+            if (value > Short.MAX_VALUE) {
+                value = Short.MAX_VALUE;
+            } else if (value < Short.MIN_VALUE) {
+                value = Short.MIN_VALUE;
+            }
+            out[pos + i] = (short) value;
+        }
+    }
+
+    /**
+     * クリック音の波形を、パターンの指定された位置に足す（または引く）. パターンの末尾を超えた分は先頭に回り込む。
+     *
+     * @param accumulator パターン
+     * @param length パターンの長さ（{@code accumulator}の先頭から）
+     * @param when 足す位置
+     * @param wave クリック音の波形
+     * @param size 波形のデータ数
+     * @param gain 音量の倍率. 1でなければ、掛けた値の小数部を切り捨てて足すので、足してから引くと元に戻る
+     * @param sign 足すなら1、引くなら-1
+     */
+    /*package*/
+    static void mix(int[] accumulator, int length, int when, short[] wave, int size, float gain, int sign) {
+        int pos = when % length;
+        int done = 0;
+        while (done < size) {
+            // 剰余を毎回計算しないように、回り込むまでの区間ごとに足す
+            int n = Math.min(size - done, length - pos);
+            if (gain == 1.0f) {
+                for (int i = 0; i < n; i++) {
+                    accumulator[pos + i] += sign * wave[done + i];
+                }
+            } else {
+                for (int i = 0; i < n; i++) {
+                    accumulator[pos + i] += sign * (int) (wave[done + i] * gain);
+                }
+            }
+            done += n;
+            pos = 0;
+        }
+    }
+
+    /**
+     * int型のパターンを、16bitの範囲で飽和させて変換する.
+     *
+     * @param accumulator 変換元
+     * @param out 変換先
+     * @param from 変換する範囲の先頭
+     * @param n 変換するデータ数
+     */
+    /*package*/
+    static void saturate(int[] accumulator, short[] out, int from, int n) {
+        for (int i = from; i < from + n; i++) {
+            int value = accumulator[i];
+            if (value > Short.MAX_VALUE) {
+                value = Short.MAX_VALUE;
+            } else if (value < Short.MIN_VALUE) {
+                value = Short.MIN_VALUE;
+            }
+            out[i] = (short) value;
+        }
+    }
+
 }
@@ -4,7 +4,7 @@ package jp.fsoriented.cactusmetronome.lib;
  * クリック音の波形を生成するコールバックのためのインターフェース.
  *
  * このインターフェースの実装は、指定されたバッファにクリック音の波形を書き込まなければならない。
- * クリックの数だけ繰り返し呼ばれる。
+ * クリックの数だけ繰り返し呼ばれる。ただし{@link CacheableClickCallback}を実装していれば、生成した波形が使い回される。
  */
 public interface ClickCallback {
     /**
@@ -0,0 +1,206 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+import java.util.ArrayList;
+
+/**
+ * 生成済みのクリック音のパターン（波形）と、それを構成する{@link Click}を保持するクラス.
+ *
+ * {@link Click}を１つずつ追加、削除、置き換えできる。変更のたびにパターン全体を生成し直すのではなく、
+ * 変更したクリック音の範囲だけ、古い波形を引いて新しい波形を足す。
+ * そのため変更にかかる時間は、パターンの長さではなく、クリック音の長さに比例する。
+ * 重なったクリック音はint型で足し合わせて保持し、16bitの範囲で飽和させたものを再生する。
+ * 飽和させる前の値を保持しているので、重なった部分を削除しても元の波形に正確に戻る。
+ *
+ * {@link Metronome#setPattern(CompiledPattern)}で再生できる。再生中に変更した波形は、次に読み出されたときから聞こえる。
+ * 再生スレッドとはロックせずに同じ波形を読み書きするので、変更した範囲をちょうど再生スレッドが読み出していると、
+ * そのブロックに限り、変更前と変更後の波形が混ざって聞こえることがある（次の周回からは正しく聞こえる）。
+ * 置き換えでは両方のクリックを足し引きしてから再生用の波形を書き換えるので、古いクリックも新しいクリックも鳴らない周回はない。
+ * 一度も乱れてはならないときは、変更後のクリックで{@link Metronome#setPattern(Click[], int)}を呼び出し、パターンごと切り替える。
+ * クリックの状態や{@link BeatListener}への通知にも変更を反映するには、もう一度{@code setPattern}を呼び出す（波形は生成し直さない）。
+ * {@link CacheableClickCallback}でないコールバックは、同じクリックに対して毎回同じ波形を書き込まなければならない（削除のときに同じ波形を引くため）。
+ * このクラスはスレッドセーフではない。変更は１つのスレッドから行うこと。
+ */
+public class CompiledPattern {
+
+    /** パターンの長さ（サンプル） */
+    private final int length;
+    /** サンプリング周波数(Hz) */
+    private final int frequency;
+    /** 足し合わせたパターンの波形 */
+    private final int[] accumulator;
+    /** 16bitの範囲で飽和させた、再生用のパターンの波形 */
+    private final short[] samples;
+    /** パターンを構成するクリック */
+    private final ArrayList<Click> clicks = new ArrayList<Click>();
+    /** キャッシュできないコールバックのための作業用バッファ */
+    private short[] buffer = new short[0];
+
+    /**
+     * 無音のパターンを生成するコンストラクタ
+     *
+     * @param length パターンの長さ（サンプル）
+     * @param frequency サンプリング周波数(Hz)
+     */
+    public CompiledPattern(int length, int frequency) {
+        if (length <= 0) {
+            throw new RuntimeException("Pattern length should not be zero.");
+        }
+        this.length = length;
+        this.frequency = frequency;
+        this.accumulator = new int[length];
+        this.samples = new short[length];
+    }
+
+    /**
+     * {@code Click}の配列をもとにパターンを生成するコンストラクタ
+     *
+     * @param spec クリック音の情報。１小節分の{@code Click}の配列。
+     * @param length パターンの長さ（サンプル）
+     * @param frequency サンプリング周波数(Hz)
+     */
+    public CompiledPattern(Click[] spec, int length, int frequency) {
+        this(length, frequency);
+        for (Click click : spec) {
+            add(click);
+        }
+    }
+
+    /**
+     * クリックを追加し、その波形をパターンに足す
+     *
+     * @param click 追加するクリック
+     */
+    public void add(Click click) {
+        if (click.when > length || click.when < 0) {
+            throw new RuntimeException("click.when(" + click.when + ") is out of range. [0-" + length + ")");
+        }
+        refresh(click, accumulate(click, 1));
+        clicks.add(click);
+    }
+
+    /**
+     * クリックを削除し、その波形をパターンから引く
+     *
+     * @param click 削除するクリック（{@code add}したインスタンス）
+     * @return 削除したらtrue。パターンに含まれていなければfalse
+     */
+    public boolean remove(Click click) {
+        int index = indexOf(click);
+        if (index < 0) {
+            return false;
+        }
+        clicks.remove(index);
+        refresh(click, accumulate(click, -1));
+        return true;
+    }
+
+    /**
+     * クリックを置き換える. 古いクリックの波形を引き、新しいクリックの波形を足す。
+     *
+     * @param oldClick 置き換えられるクリック（{@code add}したインスタンス）
+     * @param newClick 新しいクリック
+     * @return 置き換えたらtrue。古いクリックがパターンに含まれていなければfalse
+     */
+    public boolean replace(Click oldClick, Click newClick) {
+        int index = indexOf(oldClick);
+        if (index < 0) {
+            return false;
+        }
+        if (newClick.when > length || newClick.when < 0) {
+            throw new RuntimeException("click.when(" + newClick.when + ") is out of range. [0-" + length + ")");
+        }
+        // 両方を足し引きしてから再生用の波形を書き換え、どちらのクリックも鳴らない状態を作らない
+        int oldSize = accumulate(oldClick, -1);
+        int newSize = accumulate(newClick, 1);
+        refresh(newClick, newSize);
+        refresh(oldClick, oldSize);
+        clicks.set(index, newClick);
+        return true;
+    }
+
+    /**
+     * クリックの波形を、足し合わせたパターンに足す、または引く. 再生用の波形は変更しない。
+     *
+     * @param click クリック
+     * @param sign 足すなら1、引くなら-1
+     * @return クリックの波形の長さ（サンプル）
+     */
+    private int accumulate(Click click, int sign) {
+        short[] wave;
+        int size;
+        if (click.callback instanceof CacheableClickCallback) {
+            wave = WaveformCache.SHARED.get(click, frequency);
+            size = wave.length;
+        } else {
+            if (buffer.length < click.length) {
+                buffer = new short[click.length];
+            }
+            wave = buffer;
+            size = click.callback.writeClick(buffer, frequency, click);
+        }
+        Click.mix(accumulator, length, click.when, wave, size, click.gain, sign);
+        return size;
+    }
+
+    /**
+     * クリックの範囲だけ、足し合わせたパターンを再生用の波形に変換し直す
+     *
+     * @param click クリック
+     * @param size クリックの波形の長さ（サンプル）
+     */
+    private void refresh(Click click, int size) {
+        int pos = click.when % length;
+        int n = Math.min(size, length);
+        int first = Math.min(n, length - pos);
+        Click.saturate(accumulator, samples, pos, first);
+        Click.saturate(accumulator, samples, 0, n - first);
+    }
+
+    /**
+     * クリックのインデックスを、同一性で探す
+     */
+    private int indexOf(Click click) {
+        for (int i = 0; i < clicks.size(); i++) {
+            if (clicks.get(i) == click) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * パターンを構成するクリックを返す
+     *
+     * @return クリックの配列（コピー）
+     */
+    public Click[] getClicks() {
+        return clicks.toArray(new Click[clicks.size()]);
+    }
+
+    /**
+     * パターンの長さを返す
+     *
+     * @return パターンの長さ（サンプル）
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * サンプリング周波数を返す
+     *
+     * @return サンプリング周波数(Hz)
+     */
+    public int getFrequency() {
+        return frequency;
+    }
+
+    /**
+     * パターンの波形を返す. コピーではないので、書き換えてはならない。
+     *
+     * @return パターンの波形
+     */
+    /*package*/ short[] getSamples() {
+        return samples;
+    }
+}
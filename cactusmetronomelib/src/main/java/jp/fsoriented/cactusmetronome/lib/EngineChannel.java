@@ -0,0 +1,215 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * （内部クラス）{@link MetronomeEngine}の中で鳴る、１つの{@link Metronome}の１回の再生.
+ *
+ * 自分のスレッドと出力先を持たず、エンジンの再生スレッドから{@code mix}で呼び出されて、
+ * {@link PatternRenderer}で生成した波形を音量を掛けてエンジンのバッファに足す。
+ * 再生位置（再生開始からのサンプル数）はこのチャンネルで生成したサンプル数で数え、
+ * エンジンの出力先の再生ヘッドから、開始、一時停止、再開した位置の記録（{@link Segment}）をたどって求める。
+ * ミュート中や音量が0でも波形は生成するので、再生位置とクリックの通知は進み続ける。
+ */
+class EngineChannel implements PlaybackSession {
+
+    /** 再生しているエンジン */
+    private final MetronomeEngine engine;
+    /** パターンをブロックに切り出すオブジェクト */
+    private final PatternRenderer renderer = new PatternRenderer();
+    /** 再生スレッドがまだ受け取っていない、パターンの変更要求 */
+    private final AtomicReference<ScheduledPattern> pendingChange = new AtomicReference<ScheduledPattern>();
+    /** 再生スレッドがまだ受け取っていない、開始・一時停止・再開の要求 */
+    private final AtomicReference<Segment> pendingSegment = new AtomicReference<Segment>();
+    /** 最初に鳴らすまでの遅延（サンプル） */
+    private final int startOffset;
+    /** 音量の倍率 */
+    private volatile float gain = 1.0f;
+    /** 終了したかどうか */
+    private volatile boolean ended;
+
+    /** 再生スレッドが最後に反映した区間. 他のスレッドに公開する */
+    private volatile Segment published;
+    /** このチャンネルで生成したサンプル数. 再生スレッドからのみ使う */
+    private long rendered;
+
+    /**
+     * コンストラクタ. エンジンに追加されるまでは鳴らない。
+     *
+     * @param engine 再生しているエンジン
+     * @param startOffset エンジンに追加されてから、最初に鳴らすまでの遅延（サンプル）
+     */
+    EngineChannel(MetronomeEngine engine, int startOffset) {
+        this.engine = engine;
+        this.startOffset = startOffset;
+        pendingSegment.set(new Segment(false));
+    }
+
+    /**
+     * このチャンネルの波形を、エンジンのバッファに足す. エンジンの再生スレッドから呼び出す。
+     *
+     * @param bus 足し合わせる先のバッファ
+     * @param scratch このチャンネルの波形を生成するための作業用バッファ（{@code bus}と同じチャンネル数）
+     * @param offset ブロックの先頭（バッファ上の位置）
+     * @param frames ブロックの長さ
+     * @param engineFrame ブロックの先頭の、エンジンの再生開始からのサンプル数
+     */
+    void mix(MixBus bus, MixBus scratch, int offset, int frames, long engineFrame) {
+        Segment segment = pendingSegment.getAndSet(null);
+        if (segment != null) {
+            // 最初に反映する区間にだけ、開始の遅延を適用する. 開始の直後に一時停止・再開されて区間が置き換わっても適用される
+            segment.engineStart = engineFrame + (published == null ? startOffset : 0);
+            segment.channelStart = rendered;
+            // 公開済みの区間は変更せず、エンジンの再生ヘッドがまだ通過していない分だけを写してつなぐ
+            segment.previous = published != null ? published.retainFrom(engine.getHeadFrame()) : null;
+            published = segment;
+        }
+        Segment current = published;
+        if (current == null || current.paused || current.engineStart >= engineFrame + frames) {
+            return;
+        }
+        ScheduledPattern change = pendingChange.getAndSet(null);
+        if (change != null) {
+            renderer.setPlayedFrame(getPlaybackFrame());
+            renderer.schedule(change);
+        }
+        // 開始の遅延がブロックの途中で終わるときは、その位置から鳴らす
+        int skip = (int) Math.max(0, current.engineStart - engineFrame);
+        int n = frames - skip;
+        renderer.render(scratch, 0, n);
+        rendered += n;
+        float g = gain;
+        if (g > 0) {
+            bus.add(scratch, 0, offset + skip, n, g);
+        }
+    }
+
+    @Override
+    public void setPattern(ScheduledPattern pattern) {
+        pendingChange.set(pattern);
+    }
+
+    @Override
+    public ScheduledPattern getPublishedPattern() {
+        return renderer.getPublished();
+    }
+
+    @Override
+    public void setBeatEventsEnabled(boolean enabled) {
+        renderer.setEventsEnabled(enabled);
+    }
+
+    @Override
+    public BeatEventQueue getBeatEvents() {
+        return renderer.getEvents();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * エンジンの再生ヘッドの位置を含む区間を探し、その区間の開始位置からの経過を足す。一時停止中の区間では進まない。
+     */
+    @Override
+    public long getPlaybackFrame() {
+        if (ended) {
+            return -1;
+        }
+        long head = engine.getHeadFrame();
+        Segment segment = published;
+        while (segment != null && segment.engineStart > head) {
+            segment = segment.previous;
+        }
+        if (head < 0 || segment == null) {
+            return -1;
+        }
+        return segment.paused ? segment.channelStart : segment.channelStart + head - segment.engineStart;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * エンジンの出力先の音量ではなく、このチャンネルの波形を足すときの倍率を変える。
+     */
+    @Override
+    public void setVolume(float vol) {
+        gain = vol > 0 ? vol : 0f;
+    }
+
+    @Override
+    public void pauseSession() {
+        pendingSegment.set(new Segment(true));
+    }
+
+    @Override
+    public void resumeSession() {
+        pendingSegment.set(new Segment(false));
+    }
+
+    @Override
+    public void end() {
+        ended = true;
+        engine.remove(this);
+    }
+
+    @Override
+    public boolean isEnded() {
+        return ended;
+    }
+
+    /**
+     * エンジンが終了したときに呼ばれる. 以降は再生位置を返さない。
+     */
+    void detach() {
+        ended = true;
+    }
+
+    /**
+     * （内部クラス）開始、一時停止、再開のいずれかから、次の切り替えまでの区間.
+     *
+     * 呼び出し側のスレッドで生成し、再生スレッドが切り替えた時点の位置を設定してから公開する。公開した後は変更しない。
+     */
+    private static class Segment {
+        /** 一時停止中の区間かどうか */
+        final boolean paused;
+        /** 区間の先頭の、エンジンの再生開始からのサンプル数 */
+        long engineStart;
+        /** 区間の先頭の、このチャンネルの再生開始からのサンプル数 */
+        long channelStart;
+        /** 直前の区間 */
+        Segment previous;
+
+        Segment(boolean paused) {
+            this.paused = paused;
+        }
+
+        /**
+         * 位置を含めた写しを返す. {@code previous}は写さない。
+         */
+        Segment copy() {
+            Segment s = new Segment(paused);
+            s.engineStart = engineStart;
+            s.channelStart = channelStart;
+            return s;
+        }
+
+        /**
+         * この区間と、それ以前の区間のうち、指定された位置以降に参照されうるものの写しをつないで返す.
+         *
+         * 指定された位置を含む区間までを残し、それより古いものは外す。この区間とそれ以前の区間は変更しない。
+         *
+         * @param head エンジンの再生ヘッドの位置. 負のときはすべて残す
+         * @return 写しの先頭
+         */
+        Segment retainFrom(long head) {
+            Segment copied = copy();
+            Segment tail = copied;
+            Segment s = this;
+            while ((head < 0 || s.engineStart > head) && s.previous != null) {
+                s = s.previous;
+                tail.previous = s.copy();
+                tail = tail.previous;
+            }
+            return copied;
+        }
+    }
+}
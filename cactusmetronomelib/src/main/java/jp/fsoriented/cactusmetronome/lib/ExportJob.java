@@ -0,0 +1,89 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * {@link BatchExporter}で保存する、１つのWAVファイルの内容を表すクラス.
+ *
+ * 引数は{@link Metronome#exportWavFile(File, Click[], int, long)}と同じである。
+ */
+public class ExportJob {
+
+    /** 保存先のファイル */
+    private final File file;
+    /** クリックパターン */
+    private final Click[] clicks;
+    /** クリックパターン１回分の長さ（サンプル数） */
+    private final int samplesPerPattern;
+    /** クリックパターンを繰り返す回数 */
+    private final long repeats;
+
+    /**
+     * コンストラクタ
+     *
+     * @param file 保存先のファイルパス
+     * @param clicks クリックパターン
+     * @param samplesPerPattern クリックパターン１回分の長さ（サンプル数）
+     * @param repeats クリックパターンを繰り返す回数
+     */
+    public ExportJob(File file, Click[] clicks, int samplesPerPattern, long repeats) {
+        if (file == null) {
+            throw new RuntimeException("File should not be null.");
+        }
+        if (clicks == null) {
+            throw new RuntimeException("Clicks should not be null.");
+        }
+        if (samplesPerPattern <= 0) {
+            throw new RuntimeException("Pattern length(" + samplesPerPattern + ") should be positive.");
+        }
+        if (repeats < 0) {
+            throw new RuntimeException("Repeats(" + repeats + ") should not be negative.");
+        }
+        this.file = file;
+        this.clicks = Arrays.copyOf(clicks, clicks.length);
+        this.samplesPerPattern = samplesPerPattern;
+        this.repeats = repeats;
+    }
+
+    /**
+     * 保存先のファイルを返す
+     *
+     * @return 保存先のファイル
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * クリックパターンを返す
+     *
+     * @return クリックパターン（コピー）
+     */
+    public Click[] getClicks() {
+        return Arrays.copyOf(clicks, clicks.length);
+    }
+
+    /**
+     * クリックパターン１回分の長さを返す
+     *
+     * @return クリックパターン１回分の長さ（サンプル数）
+     */
+    public int getSamplesPerPattern() {
+        return samplesPerPattern;
+    }
+
+    /**
+     * クリックパターンを繰り返す回数を返す
+     *
+     * @return クリックパターンを繰り返す回数
+     */
+    public long getRepeats() {
+        return repeats;
+    }
+
+    /** @return クリックパターン（コピーしない） */
+    /*package*/ Click[] clicks() {
+        return clicks;
+    }
+}
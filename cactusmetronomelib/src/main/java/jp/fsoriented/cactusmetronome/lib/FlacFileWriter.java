@@ -0,0 +1,784 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * （内部クラス）16bit PCMの波形を、FLAC形式（可逆圧縮）で少しずつ書き込むクラス.
+ *
+ * 波形はブロック（{@link #BLOCK_SIZE}サンプル）ごとに圧縮して{@code FileChannel}に書き込む。
+ * 作業用のバッファはすべてコンストラクタで確保するので、書き込む長さによらずメモリの使用量は一定である。
+ *
+ * 圧縮はFLACの固定予測（FIXED、0〜4次）とライス符号で行う。クリック音の波形はほとんどが無音なので、
+ * 無音のブロックはCONSTANTサブフレーム（数バイト）になり、WAV形式の数十分の一の大きさになる。
+ * ステレオのときは、左右・左と差・右と差・和と差のうち小さくなる組み合わせを、ブロックごとに選ぶ。
+ * STREAMINFOの総サンプル数、フレームの大きさ、MD5は{@code finish}で書き換える。
+ */
+class FlacFileWriter {
+
+    /** ブロックの長さ（サンプル） */
+    static final int BLOCK_SIZE = 4096;
+    /** STREAMINFOブロックの中身の大きさ */
+    private static final int STREAMINFO_SIZE = 34;
+    /** ヘッダ（"fLaC"とSTREAMINFO）の大きさ */
+    private static final int HEADER_SIZE = 4 + 4 + STREAMINFO_SIZE;
+    /** 固定予測の最大の次数 */
+    private static final int MAX_FIXED_ORDER = 4;
+    /** ライス符号の区間分割の最大の次数 */
+    private static final int MAX_PARTITION_ORDER = 8;
+    /** ライス符号のパラメータの上限 */
+    private static final int MAX_RICE_PARAMETER = 30;
+    /** 4bitのパラメータ（RICE）で表せるライス符号のパラメータの上限 */
+    private static final int MAX_RICE4_PARAMETER = 14;
+
+    /** サブフレームの種類: 全サンプルが同じ値 */
+    private static final int TYPE_CONSTANT = 0;
+    /** サブフレームの種類: 圧縮しない */
+    private static final int TYPE_VERBATIM = 1;
+    /** サブフレームの種類: 固定予測 */
+    private static final int TYPE_FIXED = 2;
+
+    /** チャンネルの割り当て: 左と差 */
+    private static final int LEFT_SIDE = 8;
+    /** チャンネルの割り当て: 差と右 */
+    private static final int RIGHT_SIDE = 9;
+    /** チャンネルの割り当て: 和と差 */
+    private static final int MID_SIDE = 10;
+
+    /** CRC-8（多項式0x07）の表 */
+    private static final int[] CRC8_TABLE = new int[256];
+    /** CRC-16（多項式0x8005）の表 */
+    private static final int[] CRC16_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc8 = i;
+            int crc16 = i << 8;
+            for (int b = 0; b < 8; b++) {
+                crc8 = (crc8 & 0x80) != 0 ? (crc8 << 1) ^ 0x07 : crc8 << 1;
+                crc16 = (crc16 & 0x8000) != 0 ? (crc16 << 1) ^ 0x8005 : crc16 << 1;
+            }
+            CRC8_TABLE[i] = crc8 & 0xFF;
+            CRC16_TABLE[i] = crc16 & 0xFFFF;
+        }
+    }
+
+    /** 書き込み先 */
+    private final FileChannel channel;
+    /** サンプリング周波数(Hz) */
+    private final int frequency;
+    /** チャンネル数 */
+    private final int channels;
+    /** 圧縮前の波形（チャンネルごと） */
+    private final int[][] input;
+    /** ステレオの和の波形 */
+    private final int[] mid;
+    /** ステレオの差の波形 */
+    private final int[] side;
+    /** 予測の残差 */
+    private final int[] residual = new int[BLOCK_SIZE];
+    /** 区間ごとの残差の合計 */
+    private final long[] partitionSums = new long[1 << MAX_PARTITION_ORDER];
+    /** 圧縮したフレーム */
+    private final BitWriter frame;
+    /** フレームを書き込むためのバッファ（{@code frame}の配列を包む） */
+    private final ByteBuffer frameBuffer;
+    /** MD5を計算するための、圧縮前の波形のバイト列 */
+    private final byte[] rawBytes;
+    /** 圧縮前の波形のMD5 */
+    private final MessageDigest md5;
+
+    /** {@code analyze}で選んだサブフレームの種類 */
+    private int chosenType;
+    /** {@code analyze}で選んだ予測の次数 */
+    private int chosenOrder;
+    /** {@code analyze}で選んだ区間分割の次数 */
+    private int chosenPartitionOrder;
+
+    /** ブロックに溜めたサンプル数 */
+    private int filled;
+    /** 書き込んだサンプル数 */
+    private long totalSamples;
+    /** 書き込んだフレームの数 */
+    private long frameNumber;
+    /** 最小のフレームの大きさ（バイト） */
+    private int minFrameSize = Integer.MAX_VALUE;
+    /** 最大のフレームの大きさ（バイト） */
+    private int maxFrameSize;
+    /** 確定したMD5. {@code finish}までnull */
+    private byte[] digest;
+
+    /**
+     * コンストラクタ. ヘッダの領域を書き込む。
+     *
+     * @param channel 書き込み先。先頭から書き込む
+     * @param frequency サンプリング周波数(Hz)
+     * @param channels チャンネル数（1か2）
+     * @throws IOException 書き込みに失敗したとき
+     */
+    public FlacFileWriter(FileChannel channel, int frequency, int channels) throws IOException {
+        if (channels != 1 && channels != 2) {
+            throw new RuntimeException("Channel count(" + channels + ") should be 1 or 2.");
+        }
+        if (frequency <= 0 || frequency >= 1 << 20) {
+            throw new RuntimeException("Sample rate(" + frequency + ") is out of range.");
+        }
+        this.channel = channel;
+        this.frequency = frequency;
+        this.channels = channels;
+        this.input = new int[channels][BLOCK_SIZE];
+        this.mid = channels == 2 ? new int[BLOCK_SIZE] : null;
+        this.side = channels == 2 ? new int[BLOCK_SIZE] : null;
+        // 最悪でも、差のチャンネル（17bit）を圧縮せずに書いた大きさに収まる
+        this.frame = new BitWriter(16 + channels * (1 + (BLOCK_SIZE * 17 + 7) / 8) + 2);
+        this.frameBuffer = ByteBuffer.wrap(frame.data);
+        this.rawBytes = new byte[BLOCK_SIZE * channels * 2];
+        try {
+            this.md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        channel.position(0);
+        writeHeader();
+        channel.position(HEADER_SIZE);
+    }
+
+    /**
+     * 波形を書き込む. ブロックの長さに満たない分は、次の{@code write}か{@code finish}まで溜めておく。
+     *
+     * @param samples 波形（ステレオのときは左右を交互に並べる）
+     * @param offset 書き込む範囲の先頭
+     * @param length 書き込むデータ数。チャンネル数の倍数であること
+     * @throws IOException 書き込みに失敗したとき
+     */
+    public void write(short[] samples, int offset, int length) throws IOException {
+        if (length % channels != 0) {
+            throw new RuntimeException("Length(" + length + ") should be a multiple of " + channels + ".");
+        }
+        int end = offset + length;
+        int s = offset;
+        while (s < end) {
+            int n = Math.min(BLOCK_SIZE - filled, (end - s) / channels);
+            for (int c = 0; c < channels; c++) {
+                int[] dst = input[c];
+                int p = s + c;
+                for (int i = 0; i < n; i++) {
+                    dst[filled + i] = samples[p];
+                    p += channels;
+                }
+            }
+            s += n * channels;
+            filled += n;
+            if (filled == BLOCK_SIZE) {
+                writeFrame(BLOCK_SIZE);
+                filled = 0;
+            }
+        }
+    }
+
+    /**
+     * 同じ波形を、指定された回数だけ繰り返し書き込む
+     *
+     * @param pattern 波形
+     * @param repeats 繰り返す回数
+     * @throws IOException 書き込みに失敗したとき
+     */
+    public void writeRepeated(short[] pattern, long repeats) throws IOException {
+        for (long r = 0; r < repeats; r++) {
+            write(pattern, 0, pattern.length);
+        }
+    }
+
+    /**
+     * 溜めておいた波形を書き込み、ヘッダを確定させる. チャンネルは閉じない。
+     *
+     * @throws IOException 書き込みに失敗したとき
+     */
+    public void finish() throws IOException {
+        if (filled > 0) {
+            writeFrame(filled);
+            filled = 0;
+        }
+        digest = md5.digest();
+        long position = channel.position();
+        channel.position(0);
+        writeHeader();
+        channel.position(position);
+    }
+
+    /**
+     * パターンを繰り返した波形（モノラル）を、FLACファイルとして保存する. ファイルが既にあれば上書きする。
+     *
+     * @param file 保存先のファイル
+     * @param pattern パターンの波形
+     * @param frequency サンプリング周波数(Hz)
+     * @param repeats パターンを繰り返す回数
+     * @return ファイルの大きさ（バイト）
+     * @throws IOException 保存に失敗したとき
+     */
+    public static long writeFile(File file, short[] pattern, int frequency, long repeats) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            FlacFileWriter writer = new FlacFileWriter(channel, frequency, 1);
+            writer.writeRepeated(pattern, repeats);
+            writer.finish();
+            return channel.size();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * ヘッダ（"fLaC"と、最後のメタデータブロックであるSTREAMINFO）を、現在の状態で書き込む
+     */
+    private void writeHeader() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+        buf.put((byte) 'f').put((byte) 'L').put((byte) 'a').put((byte) 'C');
+        // 最後のメタデータブロック、種類0（STREAMINFO）
+        buf.putInt(0x80000000 | STREAMINFO_SIZE);
+        buf.putShort((short) BLOCK_SIZE);
+        buf.putShort((short) BLOCK_SIZE);
+        putInt24(buf, frameNumber > 0 ? minFrameSize : 0);
+        putInt24(buf, maxFrameSize);
+        // サンプリング周波数(20bit)、チャンネル数-1(3bit)、ビット数-1(5bit)、総サンプル数(36bit)。総サンプル数が表せなければ0（不明）
+        long total = totalSamples < 1L << 36 ? totalSamples : 0;
+        buf.putLong(((long) frequency << 44) | ((long) (channels - 1) << 41) | (15L << 36) | total);
+        // MD5は確定させるまで0（未計算）
+        buf.put(digest != null ? digest : new byte[16]);
+        buf.flip();
+        writeFully(buf);
+    }
+
+    /**
+     * 24bitの整数を書き込む
+     */
+    private static void putInt24(ByteBuffer buf, int value) {
+        buf.put((byte) (value >>> 16)).put((byte) (value >>> 8)).put((byte) value);
+    }
+
+    /**
+     * バッファの残りをすべて書き込む
+     */
+    private void writeFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    /**
+     * 溜めておいたブロックを圧縮して、１フレームとして書き込む
+     *
+     * @param n ブロックの長さ（サンプル）
+     */
+    private void writeFrame(int n) throws IOException {
+        updateDigest(n);
+
+        // チャンネルの割り当てを選ぶ
+        int assignment = channels - 1;
+        if (channels == 2) {
+            int[] left = input[0];
+            int[] right = input[1];
+            for (int i = 0; i < n; i++) {
+                mid[i] = (left[i] + right[i]) >> 1;
+                side[i] = left[i] - right[i];
+            }
+            long bitsLeft = analyze(left, n, 16);
+            long bitsRight = analyze(right, n, 16);
+            long bitsMid = analyze(mid, n, 16);
+            long bitsSide = analyze(side, n, 17);
+            long best = bitsLeft + bitsRight;
+            if (bitsLeft + bitsSide < best) {
+                best = bitsLeft + bitsSide;
+                assignment = LEFT_SIDE;
+            }
+            if (bitsSide + bitsRight < best) {
+                best = bitsSide + bitsRight;
+                assignment = RIGHT_SIDE;
+            }
+            if (bitsMid + bitsSide < best) {
+                assignment = MID_SIDE;
+            }
+        }
+
+        // フレームのヘッダ
+        BitWriter w = frame;
+        w.reset();
+        w.writeBits(0xFFF8, 16);
+        int blockSizeCode = n == BLOCK_SIZE ? 12 : n <= 256 ? 6 : 7;
+        w.writeBits(blockSizeCode, 4);
+        w.writeBits(sampleRateCode(frequency), 4);
+        w.writeBits(assignment, 4);
+        w.writeBits(4, 3);
+        w.writeBits(0, 1);
+        writeUtf8(w, frameNumber);
+        if (blockSizeCode == 6) {
+            w.writeBits(n - 1, 8);
+        } else if (blockSizeCode == 7) {
+            w.writeBits(n - 1, 16);
+        }
+        w.writeBits(crc8(w.data, w.length()), 8);
+
+        // サブフレーム
+        switch (assignment) {
+            case LEFT_SIDE:
+                writeSubframe(w, input[0], n, 16);
+                writeSubframe(w, side, n, 17);
+                break;
+            case RIGHT_SIDE:
+                writeSubframe(w, side, n, 17);
+                writeSubframe(w, input[1], n, 16);
+                break;
+            case MID_SIDE:
+                writeSubframe(w, mid, n, 16);
+                writeSubframe(w, side, n, 17);
+                break;
+            default:
+                for (int c = 0; c < channels; c++) {
+                    writeSubframe(w, input[c], n, 16);
+                }
+                break;
+        }
+        w.align();
+        w.writeBits(crc16(w.data, w.length()), 16);
+
+        int size = w.length();
+        frameBuffer.clear();
+        frameBuffer.limit(size);
+        writeFully(frameBuffer);
+        minFrameSize = Math.min(minFrameSize, size);
+        maxFrameSize = Math.max(maxFrameSize, size);
+        totalSamples += n;
+        frameNumber++;
+    }
+
+    /**
+     * 圧縮前の波形（符号付き16bit、リトルエンディアン、インターリーブ）を、MD5の計算に加える
+     */
+    private void updateDigest(int n) {
+        int b = 0;
+        for (int i = 0; i < n; i++) {
+            for (int c = 0; c < channels; c++) {
+                int value = input[c][i];
+                rawBytes[b++] = (byte) value;
+                rawBytes[b++] = (byte) (value >> 8);
+            }
+        }
+        md5.update(rawBytes, 0, b);
+    }
+
+    /**
+     * サブフレームの種類と、予測・区間分割の次数を選ぶ. 結果は{@code chosen}で始まるフィールドに設定する。
+     *
+     * @param x 波形
+     * @param n 長さ（サンプル）
+     * @param bps 1サンプルのビット数
+     * @return サブフレームの大きさ（ビット）の上限
+     */
+    private long analyze(int[] x, int n, int bps) {
+        boolean constant = true;
+        for (int i = 1; i < n; i++) {
+            if (x[i] != x[0]) {
+                constant = false;
+                break;
+            }
+        }
+        if (constant) {
+            chosenType = TYPE_CONSTANT;
+            return 8 + bps;
+        }
+        long verbatimBits = 8 + (long) n * bps;
+        chosenType = TYPE_VERBATIM;
+        if (n <= MAX_FIXED_ORDER) {
+            return verbatimBits;
+        }
+        int order = bestFixedOrder(x, n);
+        computeResidual(x, n, order);
+        int maxPartitionOrder = maxPartitionOrder(n, order);
+        long best = Long.MAX_VALUE;
+        int bestPartitionOrder = 0;
+        sumPartitions(n, order, maxPartitionOrder);
+        for (int p = maxPartitionOrder; p >= 0; p--) {
+            if (p < maxPartitionOrder) {
+                // 隣り合う区間の合計をまとめて、１つ少ない次数にする
+                for (int j = 0; j < 1 << p; j++) {
+                    partitionSums[j] = partitionSums[2 * j] + partitionSums[2 * j + 1];
+                }
+            }
+            long bits = partitionBits(n, order, p);
+            if (bits <= best) {
+                best = bits;
+                bestPartitionOrder = p;
+            }
+        }
+        long fixedBits = 8 + (long) order * bps + 6 + best;
+        if (fixedBits >= verbatimBits) {
+            return verbatimBits;
+        }
+        chosenType = TYPE_FIXED;
+        chosenOrder = order;
+        chosenPartitionOrder = bestPartitionOrder;
+        return fixedBits;
+    }
+
+    /**
+     * サブフレームを書き込む
+     *
+     * @param w 書き込み先
+     * @param x 波形
+     * @param n 長さ（サンプル）
+     * @param bps 1サンプルのビット数
+     */
+    private void writeSubframe(BitWriter w, int[] x, int n, int bps) {
+        analyze(x, n, bps);
+        switch (chosenType) {
+            case TYPE_CONSTANT:
+                w.writeBits(0x00, 8);
+                w.writeBits(x[0], bps);
+                break;
+            case TYPE_FIXED:
+                w.writeBits(0x10 | (chosenOrder << 1), 8);
+                for (int i = 0; i < chosenOrder; i++) {
+                    w.writeBits(x[i], bps);
+                }
+                writeResidual(w, n, chosenOrder, chosenPartitionOrder);
+                break;
+            default:
+                w.writeBits(0x02, 8);
+                for (int i = 0; i < n; i++) {
+                    w.writeBits(x[i], bps);
+                }
+                break;
+        }
+    }
+
+    /**
+     * 残差の絶対値の合計が最小になる、固定予測の次数を選ぶ
+     */
+    private static int bestFixedOrder(int[] x, int n) {
+        long sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0, sum4 = 0;
+        int last0 = x[3];
+        int last1 = x[3] - x[2];
+        int last2 = last1 - (x[2] - x[1]);
+        int last3 = last2 - (x[2] - x[1] - (x[1] - x[0]));
+        for (int i = 4; i < n; i++) {
+            int e0 = x[i];
+            int e1 = e0 - last0;
+            int e2 = e1 - last1;
+            int e3 = e2 - last2;
+            int e4 = e3 - last3;
+            last0 = e0;
+            last1 = e1;
+            last2 = e2;
+            last3 = e3;
+            sum0 += Math.abs(e0);
+            sum1 += Math.abs(e1);
+            sum2 += Math.abs(e2);
+            sum3 += Math.abs(e3);
+            sum4 += Math.abs(e4);
+        }
+        int order = 0;
+        long min = sum0;
+        if (sum1 < min) {
+            min = sum1;
+            order = 1;
+        }
+        if (sum2 < min) {
+            min = sum2;
+            order = 2;
+        }
+        if (sum3 < min) {
+            min = sum3;
+            order = 3;
+        }
+        if (sum4 < min) {
+            order = 4;
+        }
+        return order;
+    }
+
+    /**
+     * 固定予測の残差を{@code residual}に求める. 先頭の{@code order}個は使わない。
+     */
+    private void computeResidual(int[] x, int n, int order) {
+        switch (order) {
+            case 0:
+                System.arraycopy(x, 0, residual, 0, n);
+                break;
+            case 1:
+                for (int i = 1; i < n; i++) {
+                    residual[i] = x[i] - x[i - 1];
+                }
+                break;
+            case 2:
+                for (int i = 2; i < n; i++) {
+                    residual[i] = x[i] - 2 * x[i - 1] + x[i - 2];
+                }
+                break;
+            case 3:
+                for (int i = 3; i < n; i++) {
+                    residual[i] = x[i] - 3 * x[i - 1] + 3 * x[i - 2] - x[i - 3];
+                }
+                break;
+            default:
+                for (int i = 4; i < n; i++) {
+                    residual[i] = x[i] - 4 * x[i - 1] + 6 * x[i - 2] - 4 * x[i - 3] + x[i - 4];
+                }
+                break;
+        }
+    }
+
+    /**
+     * 区間分割の次数の上限を返す. 各区間の長さが整数で、先頭の区間に残差が１つ以上あること。
+     */
+    private static int maxPartitionOrder(int n, int order) {
+        int p = 0;
+        while (p < MAX_PARTITION_ORDER && (n & (1 << (p + 1)) - 1) == 0 && (n >> (p + 1)) > order) {
+            p++;
+        }
+        return p;
+    }
+
+    /**
+     * 区間ごとに、残差を符号なしに変換した値の合計を{@code partitionSums}に求める
+     */
+    private void sumPartitions(int n, int order, int partitionOrder) {
+        int size = n >> partitionOrder;
+        int i = order;
+        for (int j = 0; j < 1 << partitionOrder; j++) {
+            long sum = 0;
+            int end = (j + 1) * size;
+            for (; i < end; i++) {
+                int r = residual[i];
+                sum += (r << 1) ^ (r >> 31);
+            }
+            partitionSums[j] = sum;
+        }
+    }
+
+    /**
+     * 指定された区間分割の次数で、残差を符号化したときの大きさ（ビット）の上限を返す
+     */
+    private long partitionBits(int n, int order, int partitionOrder) {
+        int size = n >> partitionOrder;
+        long bits = 0;
+        boolean wide = false;
+        for (int j = 0; j < 1 << partitionOrder; j++) {
+            int count = j == 0 ? size - order : size;
+            int k = riceParameter(partitionSums[j], count);
+            wide |= k > MAX_RICE4_PARAMETER;
+            bits += riceBits(partitionSums[j], count, k);
+        }
+        return bits + ((long) (wide ? 5 : 4) << partitionOrder);
+    }
+
+    /**
+     * 残差を書き込む. 区間ごとにライス符号のパラメータを選ぶ。
+     */
+    private void writeResidual(BitWriter w, int n, int order, int partitionOrder) {
+        sumPartitions(n, order, partitionOrder);
+        int parts = 1 << partitionOrder;
+        boolean wide = false;
+        for (int j = 0; j < parts; j++) {
+            int count = j == 0 ? (n >> partitionOrder) - order : n >> partitionOrder;
+            int k = riceParameter(partitionSums[j], count);
+            wide |= k > MAX_RICE4_PARAMETER;
+            // 選んだパラメータは、区間の合計を置き換えて覚えておく
+            partitionSums[j] = k;
+        }
+        w.writeBits(wide ? 1 : 0, 2);
+        w.writeBits(partitionOrder, 4);
+        int size = n >> partitionOrder;
+        int i = order;
+        for (int j = 0; j < parts; j++) {
+            int k = (int) partitionSums[j];
+            w.writeBits(k, wide ? 5 : 4);
+            int end = (j + 1) * size;
+            for (; i < end; i++) {
+                int r = residual[i];
+                w.writeRice((r << 1) ^ (r >> 31), k);
+            }
+        }
+    }
+
+    /**
+     * 符号化した大きさが最小になる、ライス符号のパラメータを返す
+     *
+     * @param sum 符号なしに変換した残差の合計
+     * @param count 残差の数
+     */
+    private static int riceParameter(long sum, int count) {
+        int best = 0;
+        long bestBits = riceBits(sum, count, 0);
+        for (int k = 1; k <= MAX_RICE_PARAMETER && sum >> (k - 1) > 0; k++) {
+            long bits = riceBits(sum, count, k);
+            if (bits < bestBits) {
+                bestBits = bits;
+                best = k;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * ライス符号で符号化したときの大きさ（ビット）の上限. 各値の商の合計は、合計の商を超えない。
+     */
+    private static long riceBits(long sum, int count, int k) {
+        return (sum >> k) + (long) count * (k + 1);
+    }
+
+    /**
+     * フレームのヘッダに書く、サンプリング周波数のコードを返す. 表にない周波数は0（STREAMINFOを参照）にする。
+     */
+    private static int sampleRateCode(int frequency) {
+        switch (frequency) {
+            case 88200:
+                return 1;
+            case 176400:
+                return 2;
+            case 192000:
+                return 3;
+            case 8000:
+                return 4;
+            case 16000:
+                return 5;
+            case 22050:
+                return 6;
+            case 24000:
+                return 7;
+            case 32000:
+                return 8;
+            case 44100:
+                return 9;
+            case 48000:
+                return 10;
+            case 96000:
+                return 11;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * フレームの番号を、UTF-8と同じ形式の可変長で書き込む
+     */
+    private static void writeUtf8(BitWriter w, long value) {
+        if (value < 0x80) {
+            w.writeBits((int) value, 8);
+            return;
+        }
+        // 続くバイト数を求める（続くバイトは6bitずつ）
+        int following = 1;
+        while (following < 6 && value >= 1L << (6 - following + 6 * following)) {
+            following++;
+        }
+        int lead = (0xFF00 >> (following + 1)) & 0xFF;
+        w.writeBits(lead | (int) (value >>> (6 * following)), 8);
+        for (int i = following - 1; i >= 0; i--) {
+            w.writeBits(0x80 | (int) ((value >>> (6 * i)) & 0x3F), 8);
+        }
+    }
+
+    /**
+     * CRC-8を計算する
+     */
+    private static int crc8(byte[] data, int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc = CRC8_TABLE[(crc ^ data[i]) & 0xFF];
+        }
+        return crc;
+    }
+
+    /**
+     * CRC-16を計算する
+     */
+    private static int crc16(byte[] data, int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc = ((crc << 8) ^ CRC16_TABLE[((crc >> 8) ^ data[i]) & 0xFF]) & 0xFFFF;
+        }
+        return crc;
+    }
+
+    /**
+     * （内部クラス）固定長の配列に、上位ビットから順にビット列を書き込むクラス
+     */
+    private static class BitWriter {
+        /** 書き込み先 */
+        final byte[] data;
+        /** 書き込んだバイト数 */
+        private int position;
+        /** まだバイトにしていないビット（下位{@code bits}ビット） */
+        private long pending;
+        /** まだバイトにしていないビット数 */
+        private int bits;
+
+        BitWriter(int capacity) {
+            data = new byte[capacity];
+        }
+
+        /**
+         * 先頭から書き込み直す
+         */
+        void reset() {
+            position = 0;
+            pending = 0;
+            bits = 0;
+        }
+
+        /**
+         * 書き込んだバイト数を返す. バイト境界に揃っているときに呼ぶ。
+         */
+        int length() {
+            return position;
+        }
+
+        /**
+         * 値の下位{@code count}ビットを書き込む
+         *
+         * @param value 値
+         * @param count ビット数（0〜32）
+         */
+        void writeBits(int value, int count) {
+            pending = (pending << count) | (value & ((1L << count) - 1));
+            bits += count;
+            while (bits >= 8) {
+                bits -= 8;
+                data[position++] = (byte) (pending >>> bits);
+            }
+        }
+
+        /**
+         * 符号なしの値をライス符号で書き込む. 商を0の並びと1で、余りを{@code k}ビットで表す。
+         */
+        void writeRice(int value, int k) {
+            int quotient = value >>> k;
+            while (quotient >= 32) {
+                writeBits(0, 32);
+                quotient -= 32;
+            }
+            if (quotient + 1 + k <= 32) {
+                writeBits((1 << k) | (value & ((1 << k) - 1)), quotient + 1 + k);
+            } else {
+                writeBits(1, quotient + 1);
+                writeBits(value, k);
+            }
+        }
+
+        /**
+         * 次のバイト境界まで0で埋める
+         */
+        void align() {
+            if (bits > 0) {
+                writeBits(0, 8 - bits);
+            }
+        }
+    }
+}
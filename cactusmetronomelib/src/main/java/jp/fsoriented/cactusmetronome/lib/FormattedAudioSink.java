@@ -0,0 +1,42 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+/**
+ * モノラル16bit以外の形式でも出力できる{@link AudioSink}.
+ *
+ * 再生スレッドは内部でfloat型の波形を足し合わせ、書き込む直前に出力先の形式に変換する。
+ * 出力先がこのインターフェースを実装していれば、{@code getChannelCount}と{@code isFloatOutput}に従って変換する。
+ * 実装していなければ、モノラル16bitとして{@link AudioSink#write(short[], int, int)}に書き込む。
+ *
+ * ステレオのときは、左右のデータを交互に並べて（インターリーブして）書き込む。
+ * {@code write}の{@code offset}と{@code length}、戻り値はデータ数（チャンネル数×サンプル数）である。
+ * {@link AudioSink#getPlaybackPosition()}は、これまでどおりサンプル数を返す。
+ */
+public interface FormattedAudioSink extends AudioSink {
+
+    /**
+     * チャンネル数を返す
+     *
+     * @return 1（モノラル）か2（ステレオ）
+     */
+    public int getChannelCount();
+
+    /**
+     * float型で出力するかどうかを返す
+     *
+     * @return {@link #write(float[], int, int)}で書き込むならtrue、{@link AudioSink#write(short[], int, int)}ならfalse
+     */
+    public boolean isFloatOutput();
+
+    /**
+     * float型の波形を書き込む.
+     *
+     * 値は[-1..1]の範囲である。出力先のバッファに空きがなければ、空くまでブロックしてよい。
+     * {@code isFloatOutput}がfalseのときは呼ばれない。
+     *
+     * @param buffer 波形データ
+     * @param offset 書き込む範囲の先頭
+     * @param length 書き込むデータ数
+     * @return 書き込んだデータ数。エラーのときは負の値
+     */
+    public int write(float[] buffer, int offset, int length);
+}
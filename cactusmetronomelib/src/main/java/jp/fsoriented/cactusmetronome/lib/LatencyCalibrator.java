@@ -0,0 +1,139 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+import java.util.Arrays;
+
+/**
+ * 聞こえたクリックに合わせてタップしてもらい、出力の遅延を推定するクラス.
+ *
+ * {@link Metronome}で一定のパターンを再生している間、クリックが聞こえるたびに{@link #tap()}を呼び出す。
+ * タップした時点の再生ヘッドの位置と、最も近いクリックの位置との差を記録し、その中央値を出力の遅延とみなす。
+ * 推定値には、タッチ入力の遅延と、タップのくせ（早めや遅め）も含まれる。
+ * 推定した遅延は、{@link #apply()}で{@link Metronome#setOutputLatencyFrames(int)}に設定できる。
+ *
+ * {@code setPattern}で設定した繰り返しのパターンでのみ使える。タップとクリックの差を一意に決めるため、クリックの間隔は十分に空けること。
+ * {@code tap}などはすべて同じスレッド（通常はUIスレッド）から呼び出す。
+ */
+public class LatencyCalibrator {
+
+    /** 推定に必要なタップの数 */
+    public static final int MIN_TAPS = 8;
+    /** 記録するタップの最大数. 超えたら古いものから捨てる */
+    private static final int MAX_TAPS = 32;
+
+    /** 遅延を計測するメトロノーム */
+    private final Metronome metronome;
+    /** タップとクリックの差（サンプル）。古いものから順に並ぶ */
+    private final int[] offsets = new int[MAX_TAPS];
+    /** 記録したタップの数 */
+    private int count;
+    /** 次に記録する位置 */
+    private int next;
+
+    /**
+     * コンストラクタ
+     *
+     * @param metronome 遅延を計測するメトロノーム
+     */
+    public LatencyCalibrator(Metronome metronome) {
+        if (metronome == null) {
+            throw new RuntimeException("Metronome should not be null.");
+        }
+        this.metronome = metronome;
+    }
+
+    /**
+     * クリックが聞こえたタイミングで呼び出す
+     *
+     * @return 記録できればtrue。再生中でないか、繰り返しのパターンを再生していなければfalse
+     */
+    public boolean tap() {
+        long frame = metronome.getHeadFrame();
+        ScheduledPattern current = metronome.findPlayingPattern(frame);
+        if (current == null || current.clicks == null || current.clicks.length == 0) {
+            return false;
+        }
+        int length = current.length;
+        int pos = current.positionAt(frame);
+        // タップの直前と直後のクリックのうち、近いほうとの差をとる. 遅延は負にならないので、前のクリックを優先する
+        int best = Integer.MAX_VALUE;
+        for (Click click : current.clicks) {
+            int offset = ((pos - click.when % length) % length + length) % length;
+            if (offset > length / 2) {
+                offset -= length;
+            }
+            if (Math.abs(offset) < Math.abs(best) || (Math.abs(offset) == Math.abs(best) && offset > best)) {
+                best = offset;
+            }
+        }
+        offsets[next] = best;
+        next = (next + 1) % MAX_TAPS;
+        if (count < MAX_TAPS) {
+            count++;
+        }
+        return true;
+    }
+
+    /**
+     * 記録したタップの数を返す
+     *
+     * @return タップの数
+     */
+    public int getTapCount() {
+        return count;
+    }
+
+    /**
+     * 推定に十分なタップを記録したかどうか
+     *
+     * @return {@link #MIN_TAPS}回以上タップしていればtrue
+     */
+    public boolean isReady() {
+        return count >= MIN_TAPS;
+    }
+
+    /**
+     * 推定した遅延を返す. タップとクリックの差の中央値である。
+     *
+     * @return 遅延（サンプル）。タップが足りなければ-1
+     */
+    public int getEstimatedFrames() {
+        if (!isReady()) {
+            return -1;
+        }
+        int[] sorted = Arrays.copyOf(offsets, count);
+        Arrays.sort(sorted);
+        return Math.max(0, sorted[count / 2]);
+    }
+
+    /**
+     * 推定した遅延を返す
+     *
+     * @return 遅延（ミリ秒）。タップが足りなければ-1
+     */
+    public double getEstimatedMillis() {
+        int frames = getEstimatedFrames();
+        return frames < 0 ? -1 : frames * 1000.0 / metronome.getSampleRate();
+    }
+
+    /**
+     * 推定した遅延を、メトロノームに設定する
+     *
+     * @return 設定できればtrue。タップが足りなければfalse
+     */
+    public boolean apply() {
+        int frames = getEstimatedFrames();
+        if (frames < 0) {
+            return false;
+        }
+        metronome.setOutputLatencyFrames(frames);
+        return true;
+    }
+
+    /**
+     * 記録したタップを消去する
+     */
+    public void reset() {
+        count = 0;
+        next = 0;
+    }
+}
@@ -0,0 +1,106 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+import java.util.Arrays;
+
+/**
+ * 独立した周期で繰り返す、クリック音の層（レイヤー）を表すクラス.
+ *
+ * {@link Metronome#setLayers(Layer...)}で複数のレイヤーを同時に鳴らすと、3対4や5対7のようなポリリズムを表現できる。
+ * レイヤーは再生しながら足し合わせるので、周期の最小公倍数の長さのパターンを生成する必要はなく、
+ * 使用するメモリは各レイヤーのクリック音の合計で済む。
+ *
+ * クリックと周期は生成時に固定される。音量とミュートは再生中に変更でき、そのレイヤーの次のクリックから反映される。
+ */
+public class Layer {
+
+    /** 周期（サンプル） */
+    private final int length;
+    /** クリック。{@code when}の順に並ぶ */
+    private final Click[] clicks;
+    /** 音量の倍率 */
+    private volatile float gain = 1.0f;
+    /** ミュートするかどうか */
+    private volatile boolean muted;
+
+    /**
+     * クリックと周期を指定して、{@code Layer}のインスタンスを生成するコンストラクタ
+     *
+     * @param clicks クリック。{@code when}は[0, length)の範囲であること
+     * @param length 周期（サンプル）
+     */
+    public Layer(Click[] clicks, int length) {
+        if (clicks == null) {
+            throw new RuntimeException("Clicks should not be null.");
+        }
+        if (length <= 0) {
+            throw new RuntimeException("Layer length should not be zero.");
+        }
+        for (Click click : clicks) {
+            if (click.when >= length || click.when < 0) {
+                throw new RuntimeException("click.when(" + click.when + ") is out of range. [0-" + length + ")");
+            }
+        }
+        this.length = length;
+        this.clicks = Arrays.copyOf(clicks, clicks.length);
+        Arrays.sort(this.clicks, Measure.WHEN_ORDER);
+    }
+
+    /**
+     * 周期を返す
+     *
+     * @return 周期（サンプル）
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * クリックを返す
+     *
+     * @return {@code when}の順に並べたクリックの配列（コピー）
+     */
+    public Click[] getClicks() {
+        return Arrays.copyOf(clicks, clicks.length);
+    }
+
+    /** @return クリック（コピーしない） */
+    /*package*/ Click[] clicks() {
+        return clicks;
+    }
+
+    /**
+     * 音量の倍率を指定する. デフォルトは1.0。
+     *
+     * @param gain 音量の倍率[0..8]。範囲外の値は丸められる
+     */
+    public void setGain(float gain) {
+        this.gain = gain;
+    }
+
+    /**
+     * 音量の倍率を返す
+     *
+     * @return 音量の倍率
+     */
+    public float getGain() {
+        return gain;
+    }
+
+    /**
+     * ミュートするかどうかを指定する. ミュート中のレイヤーは、クリック音も通知も発生しない。
+     *
+     * @param muted ミュートするならtrue
+     */
+    public void setMuted(boolean muted) {
+        this.muted = muted;
+    }
+
+    /**
+     * ミュートしているかどうかを返す
+     *
+     * @return ミュートしていればtrue
+     */
+    public boolean isMuted() {
+        return muted;
+    }
+}
@@ -0,0 +1,154 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+/**
+ * （内部クラス）複数の{@link Layer}を、それぞれの周期で繰り返しながら足し合わせる{@link StreamRenderer}.
+ *
+ * レイヤーごとに周期の先頭と次のクリックの番号を持ち、区間ごとに鳴り始めるクリック音を{@link VoiceMixer}に登録する。
+ * 音量とミュートは、区間ごとにレイヤーから読み出す。クリック音の音量は、レイヤーの音量とクリックの音量の積である。
+ * 通知するクリックのインデックスは、レイヤーを先頭から順に並べたときの通し番号（各レイヤー内では{@code when}の順）である。
+ * 通知はレイヤーをまたいで鳴る位置の順に並べる。
+ */
+class LayerRenderer extends VoiceRenderer {
+
+    /** 音量とミュートを読み出すレイヤー */
+    private final Layer[] layers;
+    /** レイヤーごとの周期 */
+    private final int[] lengths;
+    /** レイヤーごとの、クリックの位置 */
+    private final int[][] whens;
+    /** レイヤーごとの、クリック音の波形 */
+    private final short[][][] waves;
+    /** レイヤーごとの、最初のクリックの通し番号 */
+    private final int[] firstIndices;
+
+    /** レイヤーごとの、再生中の周期の先頭（生成を開始してからのサンプル数） */
+    private final long[] cycleStarts;
+    /** レイヤーごとの、次に鳴らすクリックの番号 */
+    private final int[] nextClicks;
+    /** レイヤーごとの、区間の先頭で読み出したミュート */
+    private final boolean[] muted;
+    /** レイヤーごとの、区間の先頭で読み出した音量 */
+    private final float[] gains;
+
+    /**
+     * コンストラクタ. 配列は共有するので、書き換えてはならない。
+     */
+    LayerRenderer(Layer[] layers, int[] lengths, int[][] whens, short[][][] waves, int[] firstIndices) {
+        this.layers = layers;
+        this.lengths = lengths;
+        this.whens = whens;
+        this.waves = waves;
+        this.firstIndices = firstIndices;
+        this.cycleStarts = new long[layers.length];
+        this.nextClicks = new int[layers.length];
+        this.muted = new boolean[layers.length];
+        this.gains = new float[layers.length];
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * すべてのレイヤーから次に鳴るクリックを選んで順に登録するので、通知は鳴る位置の順に並ぶ（同じ位置ならレイヤーの順）。
+     */
+    @Override
+    protected void trigger(long position, int frames, long frame, BeatEventQueue events) {
+        long end = position + frames;
+        for (int l = 0; l < layers.length; l++) {
+            muted[l] = layers[l].isMuted();
+            gains[l] = layers[l].getGain();
+        }
+        while (true) {
+            int layer = -1;
+            long earliest = end;
+            for (int l = 0; l < layers.length; l++) {
+                long t = nextTime(l, end);
+                if (t < earliest) {
+                    earliest = t;
+                    layer = l;
+                }
+            }
+            if (layer < 0) {
+                break;
+            }
+            int next = nextClicks[layer];
+            if (!muted[layer]) {
+                Click click = layers[layer].clicks()[next];
+                int delay = (int) (earliest - position);
+                mixer.trigger(waves[layer][next], delay, gains[layer] * click.gain, click.pan);
+                if (events != null) {
+                    events.offer(firstIndices[layer] + next, frame + delay);
+                }
+            }
+            nextClicks[layer] = next + 1;
+        }
+    }
+
+    /**
+     * レイヤーの次のクリックが鳴る位置を返す. 周期のクリックを鳴らし終えていれば、区間の終わりまでの範囲で次の周期に進める。
+     *
+     * @param l レイヤー
+     * @param end 区間の終わり（生成を開始してからのサンプル数）
+     * @return 次のクリックが鳴る位置。区間の終わりまでに次の周期が始まらなければ{@code Long.MAX_VALUE}
+     */
+    private long nextTime(int l, long end) {
+        int[] w = whens[l];
+        while (nextClicks[l] >= w.length && cycleStarts[l] + lengths[l] < end) {
+            cycleStarts[l] += lengths[l];
+            nextClicks[l] = 0;
+        }
+        return nextClicks[l] < w.length ? cycleStarts[l] + w[nextClicks[l]] : Long.MAX_VALUE;
+    }
+
+    /**
+     * {@link LayerRenderer}を生成するファクトリ.
+     *
+     * 生成時にレイヤーのクリックを配列に展開し、クリック音の波形を生成しておく。
+     */
+    static class Factory implements StreamRenderer.Factory {
+        /** 音量とミュートを読み出すレイヤー */
+        private final Layer[] layers;
+        /** レイヤーごとの周期 */
+        private final int[] lengths;
+        /** レイヤーごとの、クリックの位置 */
+        private final int[][] whens;
+        /** レイヤーごとの、クリック音の波形 */
+        private final short[][][] waves;
+        /** レイヤーごとの、最初のクリックの通し番号 */
+        private final int[] firstIndices;
+
+        /**
+         * コンストラクタ
+         *
+         * @param layers レイヤー
+         * @param frequency サンプリング周波数(Hz)
+         */
+        Factory(Layer[] layers, int frequency) {
+            this.layers = layers.clone();
+            lengths = new int[layers.length];
+            whens = new int[layers.length][];
+            waves = new short[layers.length][][];
+            firstIndices = new int[layers.length];
+            int index = 0;
+            for (int l = 0; l < layers.length; l++) {
+                if (layers[l] == null) {
+                    throw new RuntimeException("Layer should not be null.");
+                }
+                Click[] clicks = layers[l].clicks();
+                lengths[l] = layers[l].getLength();
+                whens[l] = new int[clicks.length];
+                waves[l] = new short[clicks.length][];
+                for (int c = 0; c < clicks.length; c++) {
+                    whens[l][c] = clicks[c].when;
+                    waves[l][c] = Click.waveformOf(clicks[c], frequency);
+                }
+                firstIndices[l] = index;
+                index += clicks.length;
+            }
+        }
+
+        @Override
+        public StreamRenderer newRenderer() {
+            return new LayerRenderer(layers, lengths, whens, waves, firstIndices);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * {@link Sequence}を構成する１小節を表すクラス.
+ *
+ * 小節の長さ（サンプル）と、その中で鳴らす{@link Click}の配列を持つ。{@code Click.when}は小節の頭からの位置である。
+ * 小節ごとに長さが異なってよいので、拍子やテンポの変化は小節を並べて表す。
+ * 同じ{@code Measure}のインスタンスは、何度並べても１つ分のメモリしか使わない。
+ */
+public class Measure {
+
+    /** （内部用）クリックを{@code when}の順に並べる */
+    /*package*/ static final Comparator<Click> WHEN_ORDER = new Comparator<Click>() {
+        @Override
+        public int compare(Click a, Click b) {
+            return a.when < b.when ? -1 : (a.when == b.when ? 0 : 1);
+        }
+    };
+
+    /** 小節の長さ（サンプル） */
+    private final int length;
+    /** クリック。{@code when}の順に並ぶ */
+    private final Click[] clicks;
+
+    /**
+     * 小節の長さとクリックを指定して、{@code Measure}のインスタンスを生成するコンストラクタ
+     *
+     * @param clicks クリック。{@code when}は[0, length)の範囲であること
+     * @param length 小節の長さ（サンプル）
+     */
+    public Measure(Click[] clicks, int length) {
+        if (length <= 0) {
+            throw new RuntimeException("Measure length should not be zero.");
+        }
+        for (Click click : clicks) {
+            if (click.when >= length || click.when < 0) {
+                throw new RuntimeException("click.when(" + click.when + ") is out of range. [0-" + length + ")");
+            }
+        }
+        this.length = length;
+        this.clicks = Arrays.copyOf(clicks, clicks.length);
+        Arrays.sort(this.clicks, WHEN_ORDER);
+    }
+
+    /**
+     * テンポと拍数から、等間隔に拍を刻む小節を生成する.
+     *
+     * 小節の頭の拍は{@code accent}、それ以外の拍は{@code beat}のクリック音で鳴らす。カウントインなどに使う。
+     *
+     * @param beats 拍数
+     * @param bpm テンポ（BPM）
+     * @param sampleRate サンプリング周波数(Hz)
+     * @param accent 小節の頭の拍のクリック音
+     * @param beat それ以外の拍のクリック音
+     * @param clickLength クリック音の長さ（サンプル）
+     * @return 小節
+     */
+    public static Measure ofBeats(int beats, double bpm, int sampleRate, ClickCallback accent, ClickCallback beat, int clickLength) {
+        if (beats <= 0 || !(bpm > 0)) {
+            throw new RuntimeException("Beats(" + beats + ") and BPM(" + bpm + ") should be positive.");
+        }
+        double samplesPerBeat = 60.0 * sampleRate / bpm;
+        Click[] clicks = new Click[beats];
+        for (int i = 0; i < beats; i++) {
+            clicks[i] = new Click((int) Math.round(i * samplesPerBeat), clickLength, i == 0 ? accent : beat);
+        }
+        return new Measure(clicks, (int) Math.round(beats * samplesPerBeat));
+    }
+
+    /**
+     * 小節の長さを返す
+     *
+     * @return 小節の長さ（サンプル）
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * クリックを返す
+     *
+     * @return {@code when}の順に並べたクリックの配列（コピー）
+     */
+    public Click[] getClicks() {
+        return Arrays.copyOf(clicks, clicks.length);
+    }
+
+    /** @return クリック（コピーしない） */
+    /*package*/ Click[] clicks() {
+        return clicks;
+    }
+}
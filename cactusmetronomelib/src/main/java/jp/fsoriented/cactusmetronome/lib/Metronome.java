@@ -1,31 +1,32 @@
 package jp.fsoriented.cactusmetronome.lib;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
 
 /**
  * メトロノームクラス.
  *
- * クリックパターンと、再生する時間（サンプル）を与えると、音を鳴らす。また、Clickリストのratioを常時更新する。
+ * クリックパターンと、再生する時間（サンプル）を与えると、音を鳴らす。
+ * 再生位置は、出力装置の再生ヘッドから、問い合わせがあったときに計算する（{@link #getPatternPosition()}、{@link #updateRatios()}）。
  */
 public class Metronome {
 
     private static final String TAG = "metronome";
 
     /**
-     * 再生スレッド
+     * 再生中（一時停止中を含む）の再生. 単独で再生するときは再生スレッド、エンジンで再生するときはエンジンのチャンネル。再生していなければnull
      */
-    private AudioThread mAudioThread;
+    private PlaybackSession mSession;
     /**
-     * 計測スレッド
+     * 再生スレッド. 再生を終了しても、{@code release}が呼ばれるまで使い回す
      */
-    private MeasureThread mMeasureThread;
+    private AudioThread mWorker;
+    /**
+     * 一時停止中かどうか
+     */
+    private boolean mPaused;
     /**
      * クリックパターン
      */
@@ -34,182 +35,980 @@ public class Metronome {
      * パターンの長さ（サンプル数）
      */
     private int mPatternLength;
+    /**
+     * 生成済みのクリックパターン. {@code setPattern(CompiledPattern)}で設定したときだけnullでない
+     */
+    private CompiledPattern mCompiledPattern;
+    /**
+     * プリミティブ型の配列で表したクリックパターン. {@code setPattern(PackedPattern)}で設定したときだけnullでない
+     */
+    private PackedPattern mPackedPattern;
+    /**
+     * ブロックごとに波形を生成するオブジェクトのファクトリ. {@code setTempoMap}などで設定したときだけnullでない
+     */
+    private StreamRenderer.Factory mRendererFactory;
+    /**
+     * 出力先のファクトリ. エンジンで再生するときはnull
+     */
+    private final AudioSink.Factory mSinkFactory;
+    /**
+     * 再生するエンジン. 単独で再生するときはnull
+     */
+    private final MetronomeEngine mEngine;
+    /**
+     * ボリューム
+     */
+    private float mVolume = 1.0f;
+    /**
+     * ミュートしているかどうか
+     */
+    private boolean mMuted;
+    /**
+     * 再生を開始してから、最初に鳴らすまでの遅延（サンプル）. エンジンで再生するときだけ使う
+     */
+    private int mStartOffsetFrames;
+    /**
+     * 操作が再生に反映されるまでの時間の記録
+     */
+    private final ResponseLatency mLatency = new ResponseLatency();
+    /**
+     * 再生の状態の記録
+     */
+    private final PlaybackMetrics mMetrics = new PlaybackMetrics();
+    /**
+     * 再生中にパターンを変更したときの切り替え方法
+     */
+    private volatile SwapMode mSwapMode = SwapMode.RESTART;
+    /**
+     * 重なったクリック音が16bitの範囲を超えたときに、音量を下げて収めるかどうか
+     */
+    private boolean mNormalize;
+    /**
+     * クリックの通知先
+     */
+    private BeatListener[] mBeatListeners = new BeatListener[0];
+    /**
+     * 位相の通知先
+     */
+    private BeatListener[] mPhaseListeners = new BeatListener[0];
 
     /**
-     * サンプリング周波数. 対応しているのは44.1kHzのみ。
+     * サンプリング周波数(Hz)
+     */
+    private final int mFrequency;
+    /**
+     * 再生ヘッドの位置から、実際に音が聞こえるまでの遅延（サンプル）
+     */
+    private volatile int mOutputLatencyFrames;
+
+    /**
+     * 従来のサンプリング周波数(44.1kHz).
+     *
+     * @deprecated サンプリング周波数は{@code Metronome}ごとに異なる。{@link #getSampleRate()}を使う。
      */
+    @Deprecated
     public static final int FREQUENCY = 44100;
 
+    /**
+     * {@code AudioTrack}に出力する{@code Metronome}のインスタンスを生成するコンストラクタ.
+     *
+     * サンプリング周波数は、端末の出力のネイティブな周波数になる。
+     */
+    public Metronome() {
+        this(new AudioTrackSink.Factory());
+    }
+
+    /**
+     * 出力先のファクトリを指定して、{@code Metronome}のインスタンスを生成するコンストラクタ.
+     *
+     * JVM上で再生スレッドを動かすには、{@link StreamAudioSink.Factory}などを指定する。
+     * サンプリング周波数は、{@link AudioSink.Factory#getNativeSampleRate()}になる。
+     *
+     * @param sinkFactory 出力先のファクトリ
+     */
+    public Metronome(AudioSink.Factory sinkFactory) {
+        this(sinkFactory, sinkFactory != null ? sinkFactory.getNativeSampleRate() : 0);
+    }
+
+    /**
+     * 出力先のファクトリとサンプリング周波数を指定して、{@code Metronome}のインスタンスを生成するコンストラクタ.
+     *
+     * 出力先のネイティブな周波数と異なる周波数を指定すると、出力先で周波数が変換されるので、遅延と処理が増えることがある。
+     *
+     * @param sinkFactory 出力先のファクトリ
+     * @param sampleRate サンプリング周波数(Hz)
+     */
+    public Metronome(AudioSink.Factory sinkFactory, int sampleRate) {
+        if (sinkFactory == null) {
+            throw new RuntimeException("Sink factory should not be null.");
+        }
+        if (sampleRate <= 0) {
+            throw new RuntimeException("Sample rate(" + sampleRate + ") should be positive.");
+        }
+        mSinkFactory = sinkFactory;
+        mEngine = null;
+        mFrequency = sampleRate;
+    }
+
+    /**
+     * エンジンで再生する{@code Metronome}のインスタンスを生成するコンストラクタ. {@link MetronomeEngine#createMetronome()}から呼ばれる。
+     *
+     * @param engine 再生するエンジン
+     */
+    /*package*/ Metronome(MetronomeEngine engine) {
+        mSinkFactory = null;
+        mEngine = engine;
+        mFrequency = engine.getSampleRate();
+    }
+
+    /**
+     * サンプリング周波数を返す.
+     *
+     * {@link Click}のタイミングと長さ、パターンの長さは、この周波数でのサンプル数で指定する。
+     *
+     * @return サンプリング周波数(Hz)
+     */
+    public int getSampleRate() {
+        return mFrequency;
+    }
+
     /**
      * メトロノームの再生を開始する.
      *
      * 事前に{@code }setPattern}を呼び出して、即座に再生が始まる。そうでなければ、{@code setPattern}で再生が始まる。
+     * 一時停止中であれば、続きから再生を再開する。
+     * 再生スレッドは最初の呼び出しで生成し、以降は{@link #release()}まで使い回す。
+     * {@link MetronomeEngine}で生成したときは、再生スレッドを生成せずにエンジンに追加する。
+     * エンジンの{@link MetronomeEngine#release()}で再生が打ち切られていれば、最初から再生し直す。
      */
     public void start() {
-        if (mAudioThread == null) {
-            mAudioThread = new AudioThread();
-            mMeasureThread = new MeasureThread();
-            if (mClicks != null) {
-                short[] pattern = Click.compile(mClicks, FREQUENCY, mPatternLength);
-                mAudioThread.setPattern(pattern);
-                mMeasureThread.reset(mClicks, mPatternLength);
+        dropEndedSession();
+        if (mSession != null) {
+            if (mPaused) {
+                mSession.resumeSession();
+                mPaused = false;
             }
-            mAudioThread.start();
-            mMeasureThread.start();
+            return;
+        }
+        if (mEngine != null) {
+            mEngine.add(openChannel());
+            return;
+        }
+        if (mWorker == null || !mWorker.isAlive()) {
+            mWorker = new AudioThread(mFrequency, mLatency, mMetrics);
+            mWorker.start();
         }
+        mWorker.begin(mSinkFactory.createAudioSink(mFrequency));
+        open(mWorker);
+    }
+
+    /**
+     * エンジンのチャンネルを生成し、パターンを渡す. エンジンに追加するまでは鳴らない。
+     *
+     * @return 生成したチャンネル。すでに再生中であれば、一時停止中なら再開してnull
+     */
+    /*package*/ EngineChannel openChannel() {
+        dropEndedSession();
+        if (mSession != null) {
+            start();
+            return null;
+        }
+        EngineChannel channel = mEngine.newChannel(mStartOffsetFrames);
+        open(channel);
+        return channel;
+    }
+
+    /**
+     * 再生が外から打ち切られていれば（エンジンの{@code release}など）、終了したものとして再生を手放す.
+     * 設定（パターンなど）は保持するので、次の{@code start}で同じ設定から再生できる。
+     */
+    private void dropEndedSession() {
+        if (mSession != null && mSession.isEnded()) {
+            mSession = null;
+            mPaused = false;
+        }
+    }
+
+    /**
+     * 再生を開始した再生スレッドまたはチャンネルに、設定を渡す
+     *
+     * @param session 再生
+     */
+    private void open(PlaybackSession session) {
+        mSession = session;
+        mSession.setVolume(mMuted ? 0f : mVolume);
+        mSession.setBeatEventsEnabled(mBeatListeners.length > 0);
+        if (mRendererFactory != null) {
+            mSession.setPattern(new ScheduledPattern(mRendererFactory.newRenderer(), SwapMode.RESTART));
+        } else if (mPackedPattern != null) {
+            mSession.setPattern(new ScheduledPattern(compile(mPackedPattern), mPackedPattern, SwapMode.RESTART));
+        } else if (mCompiledPattern != null) {
+            mSession.setPattern(new ScheduledPattern(mCompiledPattern.getSamples(), mClicks, mPatternLength, SwapMode.RESTART));
+        } else if (mClicks != null) {
+            short[] pattern = compile(mClicks, mPatternLength);
+            mSession.setPattern(new ScheduledPattern(pattern, mClicks, mPatternLength, SwapMode.RESTART));
+        }
+    }
+
+    /**
+     * メトロノームの再生を一時停止する.
+     *
+     * 出力先とパターンを保持したまま書き込みを止めるので、{@link #start()}ですぐに続きから再生できる。
+     * 一時停止中は再生位置が進まない。パターンの変更は受け付け、再開したときに反映される。
+     */
+    public void pause() {
+        if (mSession != null && !mPaused) {
+            mSession.pauseSession();
+            mPaused = true;
+        }
+    }
+
+    /**
+     * 再生中かどうかを返す
+     *
+     * @return 再生中（一時停止中を含む）であればtrue
+     */
+    public boolean isPlaying() {
+        dropEndedSession();
+        return mSession != null;
+    }
+
+    /**
+     * 一時停止中かどうかを返す
+     *
+     * @return 一時停止中であればtrue
+     */
+    public boolean isPaused() {
+        dropEndedSession();
+        return mPaused;
     }
 
     /**
      * メトロノームの再生を終了する。
+     *
+     * 出力先を停止して解放し終えるまで戻らない。そのため、続けて{@link #start()}を呼んでも、前の再生と重なることはない。
+     * 再生スレッドは終了せず、次の{@code start}で使い回す。
      */
     public void finish() {
-        if (mAudioThread != null) {
-            mAudioThread.notifyFinish();
-            mAudioThread = null;
-            mMeasureThread.notifyFinish();
-            mMeasureThread = null;
+        if (mSession != null) {
+            mSession.end();
+            mSession = null;
+            mPaused = false;
         }
         mClicks = null;
         mPatternLength = 0;
+        mCompiledPattern = null;
+        mPackedPattern = null;
+        mRendererFactory = null;
+    }
+
+    /**
+     * 再生スレッドを終了する.
+     *
+     * 再生中であれば再生を終了し、スレッドが終了するまで待つ。{@code Activity}の{@code onDestroy}などで呼び出す。
+     * 呼び出した後でも、{@link #start()}で再生を開始すると、新しい再生スレッドを生成する。
+     */
+    public void release() {
+        finish();
+        if (mWorker != null) {
+            mWorker.terminate();
+            mWorker = null;
+        }
+    }
+
+    /**
+     * 0-1でボリュームを指定する.
+     *
+     * 再生中であれば即座に反映される。まだ再生前であれば、{@code start}が呼ばれるまで設定を保持する。
+     *
+     * @param vol ボリューム[0..1]
+     */
+    public void setVolume(float vol) {
+        mVolume = vol;
+        if (mSession != null && !mMuted) {
+            mSession.setVolume(vol);
+        }
+    }
+
+    /**
+     * ミュートするかどうかを指定する.
+     *
+     * ミュート中も再生は続くので、再生位置とクリックの通知は進み、ミュートを解除するとそのまま続きが聞こえる。
+     * 再生中であれば即座に反映される。
+     *
+     * @param muted ミュートするならtrue
+     */
+    public void setMuted(boolean muted) {
+        mMuted = muted;
+        if (mSession != null) {
+            mSession.setVolume(muted ? 0f : mVolume);
+        }
+    }
+
+    /**
+     * ミュートしているかどうかを返す
+     *
+     * @return ミュートしていればtrue
+     */
+    public boolean isMuted() {
+        return mMuted;
+    }
+
+    /**
+     * 再生を開始してから、最初に鳴らすまでの遅延を指定する. デフォルトは0。
+     *
+     * {@link MetronomeEngine}で再生するときだけ有効で、次の{@code start}から適用される。
+     * {@link MetronomeEngine#startAll(Metronome...)}で揃えて開始したパートを、サンプル単位でずらすのに使う。
+     * 遅延の間は再生位置が負（{@link #getPatternPosition()}は-1）になり、クリックも通知されない。
+     *
+     * @param frames 遅延（サンプル）
+     */
+    public void setStartOffsetFrames(int frames) {
+        if (frames < 0) {
+            throw new RuntimeException("Start offset(" + frames + ") should not be negative.");
+        }
+        mStartOffsetFrames = frames;
+    }
+
+    /**
+     * 再生を開始してから、最初に鳴らすまでの遅延を返す
+     *
+     * @return 遅延（サンプル）
+     */
+    public int getStartOffsetFrames() {
+        return mStartOffsetFrames;
+    }
+
+    /**
+     * 再生するエンジンを返す
+     *
+     * @return エンジン。単独で再生するときはnull
+     */
+    public MetronomeEngine getEngine() {
+        return mEngine;
+    }
+
+    /**
+     * 重なったクリック音が16bitの範囲を超えたときの扱いを指定する.
+     *
+     * trueのときは、パターン全体の音量を下げて範囲に収める。falseのときは、範囲外の値を飽和させる（デフォルト）。
+     * 以降に生成するパターンに適用される。{@link CompiledPattern}は常に飽和させる。
+     *
+     * @param normalize 音量を下げて収めるならtrue
+     */
+    public void setNormalizeEnabled(boolean normalize) {
+        mNormalize = normalize;
+    }
+
+    /**
+     * 再生中にパターンを変更したときの切り替え方法を指定する.
+     *
+     * 以降の{@code setPattern}に適用される。デフォルトは{@link SwapMode#RESTART}。
+     * nullのパターンを設定したとき（停止）は、切り替え方法によらず次のブロックから無音になる。
+     *
+     * @param mode 切り替え方法
+     */
+    public void setSwapMode(SwapMode mode) {
+        if (mode == null) {
+            throw new RuntimeException("Swap mode should not be null.");
+        }
+        mSwapMode = mode;
+    }
+
+    /**
+     * 再生中にパターンを変更したときの切り替え方法を返す
+     *
+     * @return 切り替え方法
+     */
+    public SwapMode getSwapMode() {
+        return mSwapMode;
+    }
+
+    /**
+     * 出力の遅延を指定する. デフォルトは0。
+     *
+     * 出力先が報告する再生ヘッドの位置には、その先のハードウェアでの遅延が含まれないため、
+     * 再生位置（{@link #getPatternPosition()}、{@link Click#ratio}）とクリックの通知は、実際に聞こえる音よりこの分だけ早くなる。
+     * 指定した遅延の分だけ、再生位置と通知を遅らせる。遅延は{@link LatencyCalibrator}で計測できる。
+     *
+     * @param frames 遅延（サンプル）
+     */
+    public void setOutputLatencyFrames(int frames) {
+        if (frames < 0) {
+            throw new RuntimeException("Output latency(" + frames + ") should not be negative.");
+        }
+        mOutputLatencyFrames = frames;
+    }
+
+    /**
+     * 出力の遅延を返す
+     *
+     * @return 遅延（サンプル）
+     */
+    public int getOutputLatencyFrames() {
+        return mOutputLatencyFrames;
     }
 
     /**
      * メトロノームのクリックパターンを設定する.
      *
-     * 再生中であれば、即座にパターンが再生される。まだ再生前であれば、{@code start}が呼ばれるまで設定を保持する。
+     * 再生中であれば、{@link #setSwapMode(SwapMode)}で指定した方法でパターンが切り替わる。まだ再生前であれば、{@code start}が呼ばれるまで設定を保持する。
      *
      * @param clickList クリックパターン
      * @param length クリック音の長さ（サンプル）
      */
     public void setPattern(Click[] clickList, int length) {
+        mCompiledPattern = null;
+        mPackedPattern = null;
+        mRendererFactory = null;
         if (clickList == null) {
             mClicks = null;
             mPatternLength = 0;
-            if (mAudioThread != null) {
-                mAudioThread.setPattern(null);
+            if (mSession != null) {
+                mSession.setPattern(new ScheduledPattern(null, null, 0, SwapMode.RESTART));
             }
             return;
         }
         mClicks = Arrays.copyOf(clickList, clickList.length);
         mPatternLength = length;
-        if (mAudioThread != null) {
-            short[] pattern = Click.compile(clickList, FREQUENCY, length);
-            mAudioThread.setPattern(pattern);
-            mMeasureThread.reset(mClicks, length);
+        if (mSession != null) {
+            short[] pattern = compile(mClicks, length);
+            mSession.setPattern(new ScheduledPattern(pattern, mClicks, length, mSwapMode));
         }
     }
 
     /**
      * メトロノームのクリックパターンを設定する.
      *
-     * 再生中であれば、即座にパターン再生される。まだ再生前であれば、{@code start}が呼ばれるまで設定を保持する。
+     * 再生中であれば、{@link #setSwapMode(SwapMode)}で指定した方法でパターンが切り替わる。まだ再生前であれば、{@code start}が呼ばれるまで設定を保持する。
      *
      * @param clickList クリックパターン
      * @param length クリック音の長さ（サンプル）
      */
     public void setPattern(ArrayList<Click> clickList, int length) {
+        mCompiledPattern = null;
+        mPackedPattern = null;
+        mRendererFactory = null;
         if (clickList == null) {
             mClicks = null;
             mPatternLength = 0;
-            if (mAudioThread != null) {
-                mAudioThread.setPattern(null);
+            if (mSession != null) {
+                mSession.setPattern(new ScheduledPattern(null, null, 0, SwapMode.RESTART));
             }
             return;
         }
         mClicks = clickList.toArray(new Click[clickList.size()]);
         mPatternLength = length;
-        if (mAudioThread != null) {
-            short[] pattern = Click.compile(mClicks, FREQUENCY, length);
-            mAudioThread.setPattern(pattern);
-            mMeasureThread.reset(mClicks, length);
+        if (mSession != null) {
+            short[] pattern = compile(mClicks, length);
+            mSession.setPattern(new ScheduledPattern(pattern, mClicks, length, mSwapMode));
         }
     }
 
     /**
-     * 指定されたファイルに、クリックパターン（波形、44.1kHz 16bit PCM）を保存する。
+     * 再生中のパターン上の、現在の再生位置を返す.
+     *
+     * 再生位置は、出力装置が実際に再生し終えた位置（再生ヘッド）から計算する。
+     * パターンを切り替えた直後でも、まだ聞こえていない新しいパターンではなく、聞こえているパターン上の位置を返す。
+     *
+     * @return パターン上の位置（サンプル）。再生中でなければ-1
+     */
+    public int getPatternPosition() {
+        long frame = getPlaybackFrame();
+        ScheduledPattern current = findPlayingPattern(frame);
+        if (current == null) {
+            return -1;
+        }
+        return current.positionAt(frame);
+    }
+
+    /**
+     * 指定されたクリックの状態を返す.
+     *
+     * 状態とは、次のクリックのタイミングまでの経過時間を[0..1]の割合で示したものである（{@link Click#ratio}を参照）。
+     *
+     * @param click クリック
+     * @return クリックの状態。再生中でなければ0
+     */
+    public double getRatio(Click click) {
+        long frame = getPlaybackFrame();
+        ScheduledPattern current = findPlayingPattern(frame);
+        if (current == null) {
+            return 0;
+        }
+        int patternLength = current.length;
+        int pos = current.positionAt(frame);
+        return ((patternLength + pos - click.when) % patternLength) / (double) patternLength;
+    }
+
+    /**
+     * 再生中のパターンを構成する、すべての{@link Click#ratio}を更新する.
+     *
+     * 画面の描画のたびに呼び出すなど、必要なときにだけ呼び出す。再生位置は一度だけ計算する。
+     */
+    public void updateRatios() {
+        long frame = getPlaybackFrame();
+        ScheduledPattern current = findPlayingPattern(frame);
+        if (current == null || current.clicks == null) {
+            return;
+        }
+        // Ratioは、patternLengthのうち、再生中の位置を表す。0または1が、Clickの鳴動点（when）である。
+        // 計算式：((パターン上の位置)-when)%patternLength)/patternLength
+        int patternLength = current.length;
+        int pos = current.positionAt(frame);
+        for (Click click : current.clicks) {
+            click.ratio = ((patternLength + pos - click.when) % patternLength) / (double) patternLength;
+        }
+    }
+
+    /**
+     * クリックが鳴ったことを受け取るリスナーを登録する.
+     *
+     * 通知は、{@link #dispatchBeatEvents()}を呼び出したときに、そのスレッドで行われる。
+     *
+     * @param listener リスナー
+     * @param phaseTicks {@link BeatListener#onPhase(int, int)}で再生位置も受け取るならtrue
+     */
+    public void addBeatListener(BeatListener listener, boolean phaseTicks) {
+        if (listener == null) {
+            throw new RuntimeException("Listener should not be null.");
+        }
+        mBeatListeners = append(mBeatListeners, listener);
+        if (phaseTicks) {
+            mPhaseListeners = append(mPhaseListeners, listener);
+        }
+        if (mSession != null) {
+            mSession.setBeatEventsEnabled(true);
+        }
+    }
+
+    /**
+     * 登録したリスナーを削除する
+     *
+     * @param listener リスナー
+     */
+    public void removeBeatListener(BeatListener listener) {
+        mBeatListeners = remove(mBeatListeners, listener);
+        mPhaseListeners = remove(mPhaseListeners, listener);
+        if (mSession != null && mBeatListeners.length == 0) {
+            mSession.setBeatEventsEnabled(false);
+        }
+    }
+
+    /**
+     * 出力装置で再生し終えたクリックを、登録されたリスナーに通知する.
+     *
+     * 画面の描画のたびに呼び出すなど、通知を受け取りたいスレッドから定期的に呼び出す。
+     * 再生スレッドはクリックの位置をあらかじめ確保したリングバッファに書き込むだけで、この呼び出しでもオブジェクトは生成しない。
+     * 呼び出し間隔が空きすぎると、リングバッファからあふれたクリックは通知されない。
+     */
+    public void dispatchBeatEvents() {
+        PlaybackSession session = mSession;
+        if (session == null) {
+            return;
+        }
+        long frame = getPlaybackFrame();
+        if (frame < 0) {
+            return;
+        }
+        BeatListener[] listeners = mBeatListeners;
+        BeatEventQueue events = session.getBeatEvents();
+        while (!events.isEmpty() && events.peekFrame() <= frame) {
+            int index = events.peekIndex();
+            long eventFrame = events.peekFrame();
+            events.remove();
+            for (int i = 0; i < listeners.length; i++) {
+                listeners[i].onBeat(index, eventFrame);
+            }
+        }
+        BeatListener[] phaseListeners = mPhaseListeners;
+        if (phaseListeners.length > 0) {
+            ScheduledPattern current = findPlayingPattern(frame);
+            if (current != null) {
+                int pos = current.positionAt(frame);
+                for (int i = 0; i < phaseListeners.length; i++) {
+                    phaseListeners[i].onPhase(pos, current.length);
+                }
+            }
+        }
+    }
+
+    /**
+     * 配列の末尾に要素を追加した、新しい配列を返す
+     */
+    private static BeatListener[] append(BeatListener[] array, BeatListener listener) {
+        BeatListener[] result = Arrays.copyOf(array, array.length + 1);
+        result[array.length] = listener;
+        return result;
+    }
+
+    /**
+     * 配列から要素を取り除いた、新しい配列を返す
+     */
+    private static BeatListener[] remove(BeatListener[] array, BeatListener listener) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i] == listener) {
+                BeatListener[] result = new BeatListener[array.length - 1];
+                System.arraycopy(array, 0, result, 0, i);
+                System.arraycopy(array, i + 1, result, i, array.length - i - 1);
+                return result;
+            }
+        }
+        return array;
+    }
+
+    /**
+     * 生成済みのクリックパターンを設定する.
+     *
+     * 波形は生成し直さず、{@code pattern}が保持する波形をそのまま再生する。
+     * 再生中に{@code pattern}を変更すると、変更した波形は次に読み出されたときから聞こえる。
+     * クリックの状態や{@link BeatListener}への通知にも変更を反映するには、もう一度このメソッドを呼び出す。
+     * 再生位置を保ったまま反映するには、{@link SwapMode#IMMEDIATE}を指定しておく。
+     *
+     * @param pattern クリックパターン。nullのときは無音
+     */
+    public void setPattern(CompiledPattern pattern) {
+        if (pattern == null) {
+            setPattern((Click[]) null, 0);
+            return;
+        }
+        if (pattern.getFrequency() != mFrequency) {
+            throw new RuntimeException("Pattern frequency(" + pattern.getFrequency() + ") does not match " + mFrequency + ".");
+        }
+        mCompiledPattern = pattern;
+        mPackedPattern = null;
+        mRendererFactory = null;
+        mClicks = pattern.getClicks();
+        mPatternLength = pattern.getLength();
+        if (mSession != null) {
+            mSession.setPattern(new ScheduledPattern(pattern.getSamples(), mClicks, mPatternLength, mSwapMode));
+        }
+    }
+
+    /**
+     * プリミティブ型の配列で表したクリックパターンを設定する.
+     *
+     * クリックの数が多いパターンに使う。波形の生成では、ボイスとクリック音の長さの組み合わせごとに波形を１つだけ生成する。
+     * 再生中であれば、{@link #setSwapMode(SwapMode)}で指定した方法でパターンが切り替わる。まだ再生前であれば、{@code start}が呼ばれるまで設定を保持する。
+     * {@link Click}のオブジェクトがないので、{@link #updateRatios()}は何もしない。
+     * 次に鳴るクリックは{@link #getNextClickIndex()}で、再生位置は{@link #getPatternPosition()}で求める。
+     *
+     * @param pattern クリックパターン。nullのときは無音
+     */
+    public void setPattern(PackedPattern pattern) {
+        if (pattern == null) {
+            setPattern((Click[]) null, 0);
+            return;
+        }
+        mClicks = null;
+        mPatternLength = pattern.getLength();
+        mCompiledPattern = null;
+        mPackedPattern = pattern;
+        mRendererFactory = null;
+        if (mSession != null) {
+            mSession.setPattern(new ScheduledPattern(compile(pattern), pattern, mSwapMode));
+        }
+    }
+
+    /**
+     * 再生中の{@link PackedPattern}で、次に鳴るクリックのインデックスを返す.
+     *
+     * 再生位置から、二分探索で求める。パターンの末尾を過ぎたら、先頭のクリックを返す。
+     *
+     * @return クリックのインデックス。{@link PackedPattern}を再生中でないか、クリックがなければ-1
+     */
+    public int getNextClickIndex() {
+        long frame = getPlaybackFrame();
+        ScheduledPattern current = findPlayingPattern(frame);
+        if (current == null || current.packed == null || current.packed.size() == 0) {
+            return -1;
+        }
+        int index = current.packed.nextIndex(current.positionAt(frame));
+        return index < current.packed.size() ? index : 0;
+    }
+
+    /**
+     * テンポの変化に従って、拍ごとにクリック音を鳴らすように設定する.
+     *
+     * 小節の頭の拍は{@code accent}、それ以外の拍は{@code beat}のクリック音で鳴らす。
+     * クリック音の波形はここで一度だけ生成し、再生中はテンポに従ってサンプル単位で正確な位置に足し合わせる。
+     * 小節ごとにパターンを生成し直したり、再生スレッドでオブジェクトを生成したりしない。
+     *
+     * 再生中であれば、{@link #setSwapMode(SwapMode)}で指定した方法で切り替わる（{@link SwapMode#IMMEDIATE}は先頭から再生する）。
+     * まだ再生前であれば、{@code start}が呼ばれるまで設定を保持する。
+     * 繰り返しのパターンがないので、{@link #getPatternPosition()}は-1を返し、{@link Click#ratio}は更新されない。
+     * {@link BeatListener#onBeat(int, long)}には、小節内の拍の番号（0が小節の頭）が通知される。
+     *
+     * @param map テンポの変化
+     * @param accent 小節の頭の拍のクリック音
+     * @param beat それ以外の拍のクリック音
+     * @param clickLength クリック音の長さ（サンプル）
+     */
+    public void setTempoMap(TempoMap map, ClickCallback accent, ClickCallback beat, int clickLength) {
+        if (map == null) {
+            setPattern((Click[]) null, 0);
+            return;
+        }
+        mClicks = null;
+        mPatternLength = 0;
+        mCompiledPattern = null;
+        mPackedPattern = null;
+        mRendererFactory = new TempoMapRenderer.Factory(map, accent, beat, clickLength, mFrequency);
+        if (mSession != null) {
+            mSession.setPattern(new ScheduledPattern(mRendererFactory.newRenderer(), mSwapMode));
+        }
+    }
+
+    /**
+     * 曲全体のクリックの並びを設定する.
+     *
+     * 曲全体の波形は生成せず、再生しながら小節ごとのクリック音を足し合わせる。クリック音の波形はここで一度だけ生成する。
+     * 再生中であれば、{@link #setSwapMode(SwapMode)}で指定した方法で切り替わる（{@link SwapMode#IMMEDIATE}は先頭から再生する）。
+     * まだ再生前であれば、{@code start}が呼ばれるまで設定を保持する。
+     * 繰り返しのパターンがないので、{@link #getPatternPosition()}は-1を返し、{@link Click#ratio}は更新されない。
+     * {@link BeatListener#onBeat(int, long)}には、小節内のクリックの番号（{@code when}の順）が通知される。
+     *
+     * @param sequence 曲全体のクリックの並び
+     */
+    public void setSequence(Sequence sequence) {
+        if (sequence == null) {
+            setPattern((Click[]) null, 0);
+            return;
+        }
+        mClicks = null;
+        mPatternLength = 0;
+        mCompiledPattern = null;
+        mPackedPattern = null;
+        mRendererFactory = new SequenceRenderer.Factory(sequence, mFrequency);
+        if (mSession != null) {
+            mSession.setPattern(new ScheduledPattern(mRendererFactory.newRenderer(), mSwapMode));
+        }
+    }
+
+    /**
+     * 独立した周期で繰り返す複数のレイヤーを、同時に鳴らすように設定する.
+     *
+     * 3対4のようなポリリズムを、周期の最小公倍数の長さのパターンを生成せずに鳴らせる。
+     * クリック音の波形はここで一度だけ生成し、再生中にレイヤーごとの音量を掛けて足し合わせる。
+     * {@link Layer#setGain(float)}と{@link Layer#setMuted(boolean)}による変更は、設定し直さなくても次のクリックから反映される。
+     *
+     * 再生中であれば、{@link #setSwapMode(SwapMode)}で指定した方法で切り替わる（{@link SwapMode#IMMEDIATE}は先頭から再生する）。
+     * まだ再生前であれば、{@code start}が呼ばれるまで設定を保持する。
+     * １つの繰り返しのパターンではないので、{@link #getPatternPosition()}は-1を返し、{@link Click#ratio}は更新されない。
+     * {@link BeatListener#onBeat(int, long)}には、レイヤーを先頭から順に並べたときのクリックの通し番号が通知される。
+     *
+     * @param layers レイヤー。空であれば無音になる
+     */
+    public void setLayers(Layer... layers) {
+        if (layers == null || layers.length == 0) {
+            setPattern((Click[]) null, 0);
+            return;
+        }
+        mClicks = null;
+        mPatternLength = 0;
+        mCompiledPattern = null;
+        mPackedPattern = null;
+        mRendererFactory = new LayerRenderer.Factory(layers, mFrequency);
+        if (mSession != null) {
+            mSession.setPattern(new ScheduledPattern(mRendererFactory.newRenderer(), mSwapMode));
+        }
+    }
+
+    /**
+     * 実際に音が聞こえている位置を返す. 出力装置が再生し終えた位置から、出力の遅延を引いたものである。
+     *
+     * @return 再生開始からのサンプル数。再生中でなければ-1
+     */
+    private long getPlaybackFrame() {
+        long head = getHeadFrame();
+        if (head < 0) {
+            return -1;
+        }
+        return Math.max(0, head - mOutputLatencyFrames);
+    }
+
+    /**
+     * 出力装置が再生し終えた位置を返す. 出力の遅延は考慮しない。
+     *
+     * @return 再生開始からのサンプル数。再生中でなければ-1
+     */
+    /*package*/ long getHeadFrame() {
+        PlaybackSession session = mSession;
+        if (session == null) {
+            return -1;
+        }
+        return session.getPlaybackFrame();
+    }
+
+    /**
+     * 指定された位置で再生されているパターンを返す
+     *
+     * @param frame 再生開始からのサンプル数
+     * @return 再生されているパターン。再生中でなければnull
+     */
+    /*package*/ ScheduledPattern findPlayingPattern(long frame) {
+        PlaybackSession session = mSession;
+        if (session == null || frame < 0) {
+            return null;
+        }
+        ScheduledPattern latest = session.getPublishedPattern();
+        if (latest == null) {
+            return null;
+        }
+        ScheduledPattern current = latest.find(frame);
+        if (current == null || current.pattern == null) {
+            return null;
+        }
+        return current;
+    }
+
+    /**
+     * {@code setPattern}から、新しいパターンが出力先に渡されるまでの時間の最悪値を返す.
+     *
+     * 再生スレッドは{@link AudioThread#BLOCK_FRAMES}サンプルごとに書き込むので、おおむねブロック１つ分の時間に収まる。
+     * 実際に聞こえるまでには、これに出力先のバッファの分の遅延が加わる。
+     *
+     * @return 最悪値（ナノ秒）。まだ計測していなければ0
+     */
+    public long getWorstPatternLatencyNanos() {
+        return mLatency.getMaxPatternNanos();
+    }
+
+    /**
+     * {@code finish}から、再生スレッドが書き込みを止めるまでの時間の最悪値を返す.
+     *
+     * @return 最悪値（ナノ秒）。まだ計測していなければ0
+     */
+    public long getWorstFinishLatencyNanos() {
+        return mLatency.getMaxFinishNanos();
+    }
+
+    /**
+     * 再生の状態を計測した値を返す.
+     *
+     * 音の途切れ、書き込みにかかった時間、書き込んだデータ数、再生スレッドの間隔のずれ、パターンの生成にかかった時間を含む。
+     * 再生スレッドはロックを使わずにカウンタを更新するだけなので、計測は常に有効である。任意のスレッドから呼び出せる。
+     * {@link MetronomeEngine}で再生するときは、パターンの生成だけを記録する。出力の状態は{@link MetronomeEngine#getPlaybackStats()}で得る。
+     *
+     * @return 呼び出した時点の値
+     */
+    public PlaybackStats getPlaybackStats() {
+        return mMetrics.snapshot();
+    }
+
+    /**
+     * 再生の状態を計測した値を、すべて0に戻す
+     */
+    public void resetPlaybackStats() {
+        mMetrics.reset();
+    }
+
+    /**
+     * クリックパターンを生成し、生成にかかった時間を記録する
+     *
+     * @param clicks クリックパターン
+     * @param length パターンの長さ（サンプル）
+     * @return パターンの波形
+     */
+    private short[] compile(Click[] clicks, int length) {
+        long start = System.nanoTime();
+        short[] pattern = Click.compile(clicks, mFrequency, length, mNormalize);
+        mMetrics.recordCompile(System.nanoTime() - start);
+        return pattern;
+    }
+
+    /**
+     * プリミティブ型の配列で表したクリックパターンから、波形を生成する. 生成にかかった時間を記録する。
+     *
+     * @param packed クリックパターン
+     * @return パターンの波形
+     */
+    private short[] compile(PackedPattern packed) {
+        long start = System.nanoTime();
+        short[] pattern = Click.compile(packed, mFrequency, mNormalize);
+        mMetrics.recordCompile(System.nanoTime() - start);
+        return pattern;
+    }
+
+    /**
+     * 指定されたファイルに、クリックパターン（波形、16bit PCM）を保存する。サンプリング周波数は{@link #getSampleRate()}である。
      *
      * @param file 保存先のファイルパス。
      * @param clickList クリックパターン
      * @param samplesPerPattern クリックパターン１回分の長さ（サンプル数）
      * @param repeats クリックパターンを繰り返す回数. 例えばクリックパターンが１小節で、32小節分のクリック音を保存する場合は、32を指定する。
+     * @deprecated 保存に失敗しても、呼び出し元には分からない。失敗を{@code IOException}で受け取れる{@link #exportWavFile(File, Click[], int, long)}を使う。
      */
+    @Deprecated
     public void saveAsWavFile(File file, ArrayList<Click> clickList, int samplesPerPattern, int repeats) {
-        // 指定されたファイルに、クリック音のファイルを保存する。
-        short[] pattern = Click.compile(clickList.toArray(new Click[clickList.size()]), FREQUENCY, samplesPerPattern);
-        ByteBuffer patternBuf = ByteBuffer.allocate(2 * pattern.length).order(ByteOrder.LITTLE_ENDIAN);
-        for (short sample : pattern) {
-            patternBuf.putShort(sample);
-        }
-        byte[] patternData = patternBuf.array();
-        // 保存
-        BufferedOutputStream bos = null;
         try {
-            bos = new BufferedOutputStream(new FileOutputStream(file));
-            WaveHeader header = new WaveHeader(patternData.length * repeats);
-            bos.write(header.getRiffHeader());
-            bos.write(header.getWaveHeader());
-            for (int i=0; i<repeats; i++) {
-                bos.write(patternData);
-            }
-        } catch (Exception e) {
+            exportWavFile(file, clickList.toArray(new Click[clickList.size()]), samplesPerPattern, repeats);
+        } catch (IOException e) {
             e.printStackTrace();
-        } finally {
-            if (bos != null) {
-                try {
-                    bos.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
         }
-
     }
 
     /**
-     * 16bitモノラルWAVファイルのヘッダを生成する
+     * 指定されたファイルに、クリックパターン（波形、16bit PCM）をWAV形式で保存する。サンプリング周波数は{@link #getSampleRate()}である。
+     *
+     * 波形は１回分だけ生成し、再利用するバッファを通して繰り返しファイルに書き込むので、保存する長さによらずメモリの使用量は一定である。
+     * データが4GBを超える場合は、RF64形式で保存する。
+     *
+     * @param file 保存先のファイルパス。
+     * @param clickList クリックパターン
+     * @param samplesPerPattern クリックパターン１回分の長さ（サンプル数）
+     * @param repeats クリックパターンを繰り返す回数. 例えばクリックパターンが１小節で、32小節分のクリック音を保存する場合は、32を指定する。
+     * @throws IOException 保存に失敗したとき
      */
-    private static class WaveHeader {
-        /** データサイズ */
-        private int mSize;
+    public void exportWavFile(File file, Click[] clickList, int samplesPerPattern, long repeats) throws IOException {
+        short[] pattern = Click.compile(clickList, mFrequency, samplesPerPattern, mNormalize);
+        WaveFileWriter.writeFile(file, pattern, mFrequency, repeats);
+    }
 
-        /**
-         * コンストラクタ
-         * @param size 波形データのサイズ
-         */
-        public WaveHeader(int size) {
-            mSize = size;
-        }
+    /**
+     * 指定されたファイルに、クリックパターン（波形、16bit）をFLAC形式（可逆圧縮）で保存する。サンプリング周波数は{@link #getSampleRate()}である。
+     *
+     * 波形は１回分だけ生成し、ブロックごとに圧縮しながらファイルに書き込むので、保存する長さによらずメモリの使用量は一定である。
+     * クリック音の波形はほとんどが無音なので、WAV形式（{@link #exportWavFile(File, Click[], int, long)}）に比べて
+     * ファイルはずっと小さくなる。そのかわり、保存にかかる時間は長くなる。
+     *
+     * @param file 保存先のファイルパス。
+     * @param clickList クリックパターン
+     * @param samplesPerPattern クリックパターン１回分の長さ（サンプル数）
+     * @param repeats クリックパターンを繰り返す回数
+     * @throws IOException 保存に失敗したとき
+     */
+    public void exportFlacFile(File file, Click[] clickList, int samplesPerPattern, long repeats) throws IOException {
+        short[] pattern = Click.compile(clickList, mFrequency, samplesPerPattern, mNormalize);
+        FlacFileWriter.writeFile(file, pattern, mFrequency, repeats);
+    }
 
-        /**
-         * RIFFヘッダを生成する
-         * @return RIFFヘッダ
-         */
-        public byte[] getRiffHeader() {
-            ByteBuffer buf = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
-            buf.put((byte)'R').put((byte)'I').put((byte)'F').put((byte)'F');
-            buf.putInt(mSize + 36);
-            return buf.array();
+    /**
+     * 現在の設定から、再生スレッドを使わずに波形を生成する{@link OfflineRenderer}を生成する.
+     *
+     * {@code setPattern}、{@code setTempoMap}、{@code setSequence}、{@code setLayers}で設定した内容を、
+     * 再生したときと同じ処理で生成するので、出力先に書き込まれるデータとサンプル単位で一致する。
+     * 出力先で適用されるボリューム（{@link #setVolume(float)}）は含まない。
+     * 生成した後に設定を変更しても、{@code OfflineRenderer}には影響しない（{@link Layer}の音量とミュートを除く）。
+     * 再生中かどうかによらず呼び出せる。何も設定していなければ、無音を生成する。
+     *
+     * @param channels チャンネル数（1か2）。2のときは{@link Click}の定位が有効になる
+     * @return 生成したオブジェクト
+     */
+    public OfflineRenderer createOfflineRenderer(int channels) {
+        if (channels != 1 && channels != 2) {
+            throw new RuntimeException("Channel count(" + channels + ") should be 1 or 2.");
         }
-
-        /**
-         * Waveファイルのヘッダを生成する
-         * @return ヘッダ
-         */
-        public byte[] getWaveHeader() {
-            ByteBuffer buf = ByteBuffer.allocate(36).order(ByteOrder.LITTLE_ENDIAN);
-            buf.put((byte)'W').put((byte)'A').put((byte)'V').put((byte)'E');
-            buf.put((byte)'f').put((byte)'m').put((byte)'t').put((byte)' ');
-            buf.putInt(16);
-            buf.putShort((short) 1);
-            buf.putShort((short) 1);
-            buf.putInt(FREQUENCY);
-            buf.putInt(FREQUENCY * 2);
-            buf.putShort((short)2);
-            buf.putShort((short)16);
-            buf.put((byte)'d').put((byte)'a').put((byte)'t').put((byte)'a');
-            buf.putInt(mSize);
-            return buf.array();
+        if (mRendererFactory != null) {
+            return new OfflineRenderer(null, null, null, 0, mRendererFactory, mFrequency, channels);
+        } else if (mPackedPattern != null) {
+            return new OfflineRenderer(compile(mPackedPattern), null, mPackedPattern, mPatternLength, null, mFrequency, channels);
+        } else if (mCompiledPattern != null) {
+            return new OfflineRenderer(mCompiledPattern.getSamples().clone(), mClicks, null, mPatternLength, null, mFrequency, channels);
+        } else if (mClicks != null) {
+            return new OfflineRenderer(compile(mClicks, mPatternLength), mClicks, null, mPatternLength, null, mFrequency, channels);
         }
+        return new OfflineRenderer(null, null, null, 0, null, mFrequency, channels);
     }
 
 }
@@ -0,0 +1,246 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+import java.util.Arrays;
+
+/**
+ * 複数の{@link Metronome}を、１つの再生スレッドと１つの出力先で同時に鳴らすクラス.
+ *
+ * 合奏の練習のように、パートごとのメトロノームを同時に鳴らすときに使う。
+ * {@link #createMetronome()}で生成した{@code Metronome}は、自分の再生スレッドと出力先を持たず、
+ * エンジンの再生スレッドがすべての{@code Metronome}の波形を足し合わせて、１つの出力先に書き込む。
+ * 何十個の{@code Metronome}を鳴らしても、スレッドと出力先は１つずつである。
+ *
+ * {@code Metronome}ごとの音量は{@link Metronome#setVolume(float)}、ミュートは{@link Metronome#setMuted(boolean)}、
+ * 鳴り始めるまでの遅延は{@link Metronome#setStartOffsetFrames(int)}で指定する。いずれも、足し合わせるときに適用する。
+ * 複数の{@code Metronome}をサンプル単位で揃えて鳴らし始めるには、{@link #startAll(Metronome...)}を使う。
+ *
+ * 再生スレッドと出力先は、最初の{@code Metronome}が再生を開始したときに用意し、すべての{@code Metronome}が終了したら解放する。
+ * 出力先がステレオであれば、{@link Click}の定位も有効である。
+ */
+public class MetronomeEngine {
+
+    /** 出力先のファクトリ */
+    private final AudioSink.Factory sinkFactory;
+    /** サンプリング周波数(Hz) */
+    private final int frequency;
+    /** 操作が再生に反映されるまでの時間の記録 */
+    private final ResponseLatency latency = new ResponseLatency();
+    /** 再生の状態の記録 */
+    private final PlaybackMetrics metrics = new PlaybackMetrics();
+    /** すべてのチャンネルを足し合わせるオブジェクト */
+    private final Mixer mixer = new Mixer();
+    /** 再生スレッド. {@code release}が呼ばれるまで使い回す */
+    private volatile AudioThread worker;
+    /** 出力先に書き込んでいるかどうか */
+    private volatile boolean running;
+    /** 鳴らしているチャンネル. 変更するときは配列ごと置き換える */
+    private volatile EngineChannel[] channels = new EngineChannel[0];
+
+    /**
+     * {@code AudioTrack}に出力する{@code MetronomeEngine}のインスタンスを生成するコンストラクタ.
+     *
+     * サンプリング周波数は、端末の出力のネイティブな周波数になる。
+     */
+    public MetronomeEngine() {
+        this(new AudioTrackSink.Factory());
+    }
+
+    /**
+     * 出力先のファクトリを指定して、{@code MetronomeEngine}のインスタンスを生成するコンストラクタ
+     *
+     * @param sinkFactory 出力先のファクトリ
+     */
+    public MetronomeEngine(AudioSink.Factory sinkFactory) {
+        this(sinkFactory, sinkFactory != null ? sinkFactory.getNativeSampleRate() : 0);
+    }
+
+    /**
+     * 出力先のファクトリとサンプリング周波数を指定して、{@code MetronomeEngine}のインスタンスを生成するコンストラクタ
+     *
+     * @param sinkFactory 出力先のファクトリ
+     * @param sampleRate サンプリング周波数(Hz)
+     */
+    public MetronomeEngine(AudioSink.Factory sinkFactory, int sampleRate) {
+        if (sinkFactory == null) {
+            throw new RuntimeException("Sink factory should not be null.");
+        }
+        if (sampleRate <= 0) {
+            throw new RuntimeException("Sample rate(" + sampleRate + ") should be positive.");
+        }
+        this.sinkFactory = sinkFactory;
+        this.frequency = sampleRate;
+    }
+
+    /**
+     * このエンジンで鳴らす{@link Metronome}を生成する.
+     *
+     * 生成した{@code Metronome}は、{@code start}を呼ぶまで鳴らない。使い方は単独の{@code Metronome}と同じである。
+     *
+     * @return 生成した{@code Metronome}
+     */
+    public Metronome createMetronome() {
+        return new Metronome(this);
+    }
+
+    /**
+     * サンプリング周波数を返す
+     *
+     * @return サンプリング周波数(Hz)
+     */
+    public int getSampleRate() {
+        return frequency;
+    }
+
+    /**
+     * 複数の{@link Metronome}を、同じサンプルから鳴らし始める.
+     *
+     * すべての{@code Metronome}を同じブロックでエンジンに追加するので、それぞれの{@link Metronome#setStartOffsetFrames(int)}を除けば、
+     * 鳴り始める位置はサンプル単位で揃う。すでに再生中の{@code Metronome}は、一時停止中であれば再開し、そうでなければ何もしない。
+     *
+     * @param metronomes このエンジンで生成した{@code Metronome}
+     */
+    public void startAll(Metronome... metronomes) {
+        EngineChannel[] opened = new EngineChannel[metronomes.length];
+        int count = 0;
+        for (Metronome metronome : metronomes) {
+            if (metronome.getEngine() != this) {
+                throw new RuntimeException("Metronome should be created by this engine.");
+            }
+        }
+        for (Metronome metronome : metronomes) {
+            EngineChannel channel = metronome.openChannel();
+            if (channel != null) {
+                opened[count++] = channel;
+            }
+        }
+        add(Arrays.copyOf(opened, count));
+    }
+
+    /**
+     * 鳴らしている{@link Metronome}の数を返す
+     *
+     * @return 再生中（一時停止中を含む）の{@code Metronome}の数
+     */
+    public int getPlayingCount() {
+        return channels.length;
+    }
+
+    /**
+     * 出力の状態の記録を返す. 音の途切れなどは、エンジンの出力先についてのものである。
+     *
+     * @return 記録の写し
+     */
+    public PlaybackStats getPlaybackStats() {
+        return metrics.snapshot();
+    }
+
+    /**
+     * 再生スレッドを終了する.
+     *
+     * 鳴らしているすべての{@link Metronome}の再生を打ち切り、出力先を解放してスレッドが終了するまで待つ。
+     * 打ち切られた{@code Metronome}は再生を終了したものとみなされ、{@code isPlaying}はfalseを返す。パターンなどの設定は保持する。
+     * 呼び出した後でも、{@code Metronome}の{@code start}で再生を開始すると、新しい再生スレッドを生成する。
+     */
+    public synchronized void release() {
+        for (EngineChannel channel : channels) {
+            channel.detach();
+        }
+        channels = new EngineChannel[0];
+        running = false;
+        if (worker != null) {
+            worker.terminate();
+            worker = null;
+        }
+    }
+
+    /**
+     * チャンネルを生成する. エンジンに追加するまでは鳴らない。
+     *
+     * @param startOffset 追加されてから、最初に鳴らすまでの遅延（サンプル）
+     * @return 生成したチャンネル
+     */
+    /*package*/ EngineChannel newChannel(int startOffset) {
+        return new EngineChannel(this, startOffset);
+    }
+
+    /**
+     * チャンネルを追加する. 再生していなければ、再生スレッドと出力先を用意して再生を開始する。
+     *
+     * @param added 追加するチャンネル. 同じブロックから鳴らし始める
+     */
+    /*package*/ synchronized void add(EngineChannel... added) {
+        if (added.length == 0) {
+            return;
+        }
+        EngineChannel[] current = channels;
+        EngineChannel[] next = Arrays.copyOf(current, current.length + added.length);
+        System.arraycopy(added, 0, next, current.length, added.length);
+        channels = next;
+        if (!running) {
+            if (worker == null || !worker.isAlive()) {
+                worker = new AudioThread(frequency, latency, metrics);
+                worker.start();
+            }
+            worker.begin(sinkFactory.createAudioSink(frequency));
+            worker.setPattern(new ScheduledPattern(mixer, SwapMode.RESTART));
+            running = true;
+        }
+    }
+
+    /**
+     * チャンネルを取り除く. 鳴らしているチャンネルがなくなったら、出力先を解放する。
+     *
+     * @param removed 取り除くチャンネル
+     */
+    /*package*/ synchronized void remove(EngineChannel removed) {
+        EngineChannel[] current = channels;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == removed) {
+                EngineChannel[] next = new EngineChannel[current.length - 1];
+                System.arraycopy(current, 0, next, 0, i);
+                System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+                channels = next;
+                break;
+            }
+        }
+        if (running && channels.length == 0) {
+            worker.end();
+            running = false;
+        }
+    }
+
+    /**
+     * エンジンの出力先が再生し終えた位置を返す
+     *
+     * @return エンジンの再生開始からのサンプル数。再生中でなければ-1
+     */
+    /*package*/ long getHeadFrame() {
+        AudioThread thread = worker;
+        if (thread == null || !running) {
+            return -1;
+        }
+        return thread.getPlaybackFrame();
+    }
+
+    /**
+     * （内部クラス）鳴らしているすべてのチャンネルを、ブロックごとに足し合わせる{@link StreamRenderer}.
+     *
+     * 作業用のバッファは、出力先のチャンネル数が変わったときにだけ生成し直す。
+     */
+    private class Mixer implements StreamRenderer {
+        /** チャンネルごとの波形を生成するための作業用バッファ */
+        private MixBus scratch;
+
+        @Override
+        public void render(MixBus bus, int offset, int frames, long frame, BeatEventQueue events) {
+            if (scratch == null || scratch.channels != bus.channels || scratch.getFrames() < frames) {
+                scratch = new MixBus(bus.channels, Math.max(frames, AudioThread.BLOCK_FRAMES));
+            }
+            bus.clear(offset, frames);
+            EngineChannel[] current = channels;
+            for (int i = 0; i < current.length; i++) {
+                current[i].mix(bus, scratch, offset, frames, frame);
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+import java.util.Arrays;
+
+/**
+ * （内部クラス）再生スレッドで波形を足し合わせる、float型のバッファ.
+ *
+ * チャンネル数（1か2）分のデータをインターリーブして持つ。値の範囲は16bit PCMと同じ（±32768が最大）で、
+ * 足し合わせた途中の値は範囲を超えてもよい。出力先の形式への変換（飽和）は、書き込む直前の{@code toShort}か{@code toFloat}で１回だけ行う。
+ * 位置と長さはサンプル単位（チャンネル数分のデータで１サンプル）で指定する。
+ * 再生スレッドからのみ呼び出す。オブジェクトを生成しない。
+ */
+class MixBus {
+
+    /** チャンネル数 */
+    final int channels;
+    /** 波形データ（インターリーブ） */
+    final float[] data;
+
+    /**
+     * コンストラクタ
+     *
+     * @param channels チャンネル数（1か2）
+     * @param frames バッファの長さ（サンプル）
+     */
+    MixBus(int channels, int frames) {
+        if (channels != 1 && channels != 2) {
+            throw new RuntimeException("Channel count(" + channels + ") should be 1 or 2.");
+        }
+        this.channels = channels;
+        this.data = new float[channels * frames];
+    }
+
+    /**
+     * バッファの長さを返す
+     *
+     * @return バッファの長さ（サンプル）
+     */
+    public int getFrames() {
+        return data.length / channels;
+    }
+
+    /**
+     * 指定された範囲を無音にする
+     *
+     * @param offset 範囲の先頭（サンプル）
+     * @param frames 範囲の長さ（サンプル）
+     */
+    public void clear(int offset, int frames) {
+        Arrays.fill(data, offset * channels, (offset + frames) * channels, 0f);
+    }
+
+    /**
+     * モノラルの波形を、すべてのチャンネルに書き込む（足さずに上書きする）
+     *
+     * @param src 波形
+     * @param srcPos 波形の読み出し位置
+     * @param offset 書き込む範囲の先頭（サンプル）
+     * @param frames 書き込む長さ（サンプル）
+     */
+    public void setMono(short[] src, int srcPos, int offset, int frames) {
+        if (channels == 1) {
+            for (int i = 0; i < frames; i++) {
+                data[offset + i] = src[srcPos + i];
+            }
+        } else {
+            int d = offset * 2;
+            for (int i = 0; i < frames; i++) {
+                float value = src[srcPos + i];
+                data[d++] = value;
+                data[d++] = value;
+            }
+        }
+    }
+
+    /**
+     * モノラルの波形に音量を掛けて、バッファに足す.
+     *
+     * モノラルのときは{@code left}だけを使う。
+     *
+     * @param src 波形
+     * @param srcPos 波形の読み出し位置
+     * @param offset 足す範囲の先頭（サンプル）
+     * @param frames 足す長さ（サンプル）
+     * @param left 左チャンネル（モノラルのときは唯一のチャンネル）の音量
+     * @param right 右チャンネルの音量
+     */
+    public void add(short[] src, int srcPos, int offset, int frames, float left, float right) {
+        if (channels == 1) {
+            if (left == 1.0f) {
+                for (int i = 0; i < frames; i++) {
+                    data[offset + i] += src[srcPos + i];
+                }
+            } else {
+                for (int i = 0; i < frames; i++) {
+                    data[offset + i] += src[srcPos + i] * left;
+                }
+            }
+        } else {
+            int d = offset * 2;
+            for (int i = 0; i < frames; i++) {
+                float value = src[srcPos + i];
+                data[d++] += value * left;
+                data[d++] += value * right;
+            }
+        }
+    }
+
+    /**
+     * 同じチャンネル数の別のバッファに音量を掛けて、このバッファに足す
+     *
+     * @param src 足すバッファ
+     * @param srcOffset 足すバッファの読み出し位置（サンプル）
+     * @param offset 足す範囲の先頭（サンプル）
+     * @param frames 足す長さ（サンプル）
+     * @param gain 音量の倍率
+     */
+    public void add(MixBus src, int srcOffset, int offset, int frames, float gain) {
+        int s = srcOffset * channels;
+        int d = offset * channels;
+        int n = frames * channels;
+        float[] from = src.data;
+        if (gain == 1.0f) {
+            for (int i = 0; i < n; i++) {
+                data[d + i] += from[s + i];
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                data[d + i] += from[s + i] * gain;
+            }
+        }
+    }
+
+    /**
+     * 先頭から指定された長さを、16bitの範囲で飽和させて変換する
+     *
+     * @param out 変換先（インターリーブ）
+     * @param frames 変換する長さ（サンプル）
+     */
+    public void toShort(short[] out, int frames) {
+        int n = frames * channels;
+        for (int i = 0; i < n; i++) {
+            int value = Math.round(data[i]);
+            if (value > Short.MAX_VALUE) {
+                value = Short.MAX_VALUE;
+            } else if (value < Short.MIN_VALUE) {
+                value = Short.MIN_VALUE;
+            }
+            out[i] = (short) value;
+        }
+    }
+
+    /**
+     * 先頭から指定された長さを、[-1..1]の範囲のfloat型に変換する. 範囲外の値は飽和させる。
+     *
+     * @param out 変換先（インターリーブ）
+     * @param frames 変換する長さ（サンプル）
+     */
+    public void toFloat(float[] out, int frames) {
+        int n = frames * channels;
+        for (int i = 0; i < n; i++) {
+            float value = data[i] * (1.0f / 32768);
+            if (value > 1.0f) {
+                value = 1.0f;
+            } else if (value < -1.0f) {
+                value = -1.0f;
+            }
+            out[i] = value;
+        }
+    }
+}
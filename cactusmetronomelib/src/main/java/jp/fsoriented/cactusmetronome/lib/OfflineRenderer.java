@@ -0,0 +1,247 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 再生スレッドと出力先を使わずに、クリック音の波形を呼び出し側のスレッドで生成するクラス.
+ *
+ * {@link Metronome#createOfflineRenderer(int)}で、その時点の{@code Metronome}の設定（パターン、テンポの変化、曲、レイヤー）から生成する。
+ * 波形の生成には再生スレッドと同じ処理（{@link PatternRenderer}、{@link MixBus}、出力の形式への変換）を使うので、
+ * 同じ設定を再生したときに出力先に書き込まれるデータと、サンプル単位で一致する。
+ * サーバー上でのクリックトラックの生成や、サンプル単位でタイミングを確かめる試験に使う。
+ * {@link #exportFlacFile(File, long, long)}で、生成した波形をそのままFLAC形式のファイルに保存することもできる。
+ *
+ * {@code render}は、指定された位置から、バッファの残りを埋めるだけの長さを生成する。
+ * 前回の続きの位置を指定すれば、続けて生成する。それ以外の位置を指定すると、先頭から生成し直してその位置まで読み飛ばす
+ * （繰り返しのパターンであれば、読み飛ばすのはパターン１回分未満である）。
+ * このクラスはスレッドセーフではない。１つのスレッドから使うこと。
+ */
+public class OfflineRenderer {
+
+    /** 生成済みのパターン。ブロックごとに生成するときはnull */
+    private final short[] pattern;
+    /** パターンを構成するクリック */
+    private final Click[] clicks;
+    /** パターンを構成するクリック（{@link PackedPattern}のとき） */
+    private final PackedPattern packed;
+    /** パターンの長さ（サンプル） */
+    private final int length;
+    /** ブロックごとに波形を生成するオブジェクトのファクトリ。生成済みのパターンを使うときはnull */
+    private final StreamRenderer.Factory factory;
+    /** サンプリング周波数(Hz) */
+    private final int frequency;
+    /** 足し合わせ用のバッファ */
+    private final MixBus bus;
+    /** 16bitに変換した波形 */
+    private final short[] shortBlock;
+    /** float型に変換した波形 */
+    private final float[] floatBlock;
+
+    /** パターンをブロックに切り出すオブジェクト. 先頭から生成し直すたびに生成する */
+    private PatternRenderer renderer;
+    /** {@code renderer}が生成を始めた位置（先頭からのサンプル数） */
+    private long base;
+    /** 次に生成する位置（先頭からのサンプル数） */
+    private long position;
+    /** クリックの通知先 */
+    private BeatListener listener;
+
+    /**
+     * コンストラクタ. {@link Metronome#createOfflineRenderer(int)}から呼ばれる。
+     */
+    OfflineRenderer(short[] pattern, Click[] clicks, PackedPattern packed, int length,
+                    StreamRenderer.Factory factory, int frequency, int channels) {
+        this.pattern = pattern;
+        this.clicks = clicks;
+        this.packed = packed;
+        this.length = length;
+        this.factory = factory;
+        this.frequency = frequency;
+        this.bus = new MixBus(channels, AudioThread.BLOCK_FRAMES);
+        this.shortBlock = new short[AudioThread.BLOCK_FRAMES * channels];
+        this.floatBlock = new float[AudioThread.BLOCK_FRAMES * channels];
+    }
+
+    /**
+     * チャンネル数を返す
+     *
+     * @return 1（モノラル）か2（ステレオ）
+     */
+    public int getChannelCount() {
+        return bus.channels;
+    }
+
+    /**
+     * サンプリング周波数を返す
+     *
+     * @return サンプリング周波数(Hz)
+     */
+    public int getSampleRate() {
+        return frequency;
+    }
+
+    /**
+     * 生成した範囲で鳴るクリックの通知先を指定する.
+     *
+     * 通知は{@code render}の中で、呼び出したスレッドで行われる。{@code frame}は先頭からのサンプル数である。
+     * 読み飛ばした範囲のクリックは通知しない。次に先頭から生成し直したときから有効になる。
+     *
+     * @param listener 通知先。nullのときは通知しない
+     */
+    public void setBeatListener(BeatListener listener) {
+        this.listener = listener;
+        renderer = null;
+    }
+
+    /**
+     * 指定された位置から、16bitの波形を生成してバッファに書き込む.
+     *
+     * バッファの残り（{@code remaining}）をすべて埋める。ステレオのときは左右を交互に並べる。
+     *
+     * @param out 書き込み先。残りはチャンネル数の倍数であること
+     * @param startFrame 生成を始める位置（先頭からのサンプル数）
+     * @return 生成したサンプル数
+     */
+    public int render(ShortBuffer out, long startFrame) {
+        int frames = framesOf(out.remaining());
+        seek(startFrame);
+        int done = 0;
+        while (done < frames) {
+            int n = Math.min(AudioThread.BLOCK_FRAMES, frames - done);
+            renderBlock(n, true);
+            bus.toShort(shortBlock, n);
+            out.put(shortBlock, 0, n * bus.channels);
+            done += n;
+        }
+        return frames;
+    }
+
+    /**
+     * 指定された位置から、float型の波形（[-1..1]）を生成してバッファに書き込む.
+     *
+     * バッファの残り（{@code remaining}）をすべて埋める。ステレオのときは左右を交互に並べる。
+     *
+     * @param out 書き込み先。残りはチャンネル数の倍数であること
+     * @param startFrame 生成を始める位置（先頭からのサンプル数）
+     * @return 生成したサンプル数
+     */
+    public int render(FloatBuffer out, long startFrame) {
+        int frames = framesOf(out.remaining());
+        seek(startFrame);
+        int done = 0;
+        while (done < frames) {
+            int n = Math.min(AudioThread.BLOCK_FRAMES, frames - done);
+            renderBlock(n, true);
+            bus.toFloat(floatBlock, n);
+            out.put(floatBlock, 0, n * bus.channels);
+            done += n;
+        }
+        return frames;
+    }
+
+    /**
+     * 指定された範囲を生成して、FLAC形式（可逆圧縮、16bit）のファイルに保存する. ファイルが既にあれば上書きする。
+     *
+     * ブロックごとに生成したそばから圧縮して書き込むので、保存する長さによらずメモリの使用量は一定である。
+     * テンポの変化や曲のように繰り返しのないクリックトラックも、そのまま保存できる。
+     * クリックの通知先が指定されていれば、生成した範囲のクリックを通知する。
+     *
+     * @param file 保存先のファイル
+     * @param startFrame 生成を始める位置（先頭からのサンプル数）
+     * @param frames 保存する長さ（サンプル）
+     * @return ファイルの大きさ（バイト）
+     * @throws IOException 保存に失敗したとき
+     */
+    public long exportFlacFile(File file, long startFrame, long frames) throws IOException {
+        if (frames < 0) {
+            throw new RuntimeException("Frames(" + frames + ") should not be negative.");
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            FlacFileWriter writer = new FlacFileWriter(channel, frequency, bus.channels);
+            seek(startFrame);
+            long done = 0;
+            while (done < frames) {
+                int n = (int) Math.min(AudioThread.BLOCK_FRAMES, frames - done);
+                renderBlock(n, true);
+                bus.toShort(shortBlock, n);
+                writer.write(shortBlock, 0, n * bus.channels);
+                done += n;
+            }
+            writer.finish();
+            return channel.size();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * バッファの残りのデータ数を、サンプル数に変換する
+     */
+    private int framesOf(int remaining) {
+        if (remaining % bus.channels != 0) {
+            throw new RuntimeException("Buffer remaining(" + remaining + ") should be a multiple of " + bus.channels + ".");
+        }
+        return remaining / bus.channels;
+    }
+
+    /**
+     * 指定された位置から生成できるようにする. 前回の続きでなければ、先頭から生成し直して読み飛ばす。
+     *
+     * @param startFrame 生成を始める位置（先頭からのサンプル数）
+     */
+    private void seek(long startFrame) {
+        if (startFrame < 0) {
+            throw new RuntimeException("Start frame(" + startFrame + ") should not be negative.");
+        }
+        if (renderer != null && startFrame == position) {
+            return;
+        }
+        renderer = new PatternRenderer();
+        renderer.setEventsEnabled(listener != null);
+        if (factory != null) {
+            renderer.schedule(new ScheduledPattern(factory.newRenderer(), SwapMode.RESTART));
+            base = 0;
+        } else if (pattern != null) {
+            renderer.schedule(packed != null
+                    ? new ScheduledPattern(pattern, packed, SwapMode.RESTART)
+                    : new ScheduledPattern(pattern, clicks, length, SwapMode.RESTART));
+            // 繰り返しのパターンは周期ごとに同じなので、直前の周期の先頭から生成する
+            base = startFrame - startFrame % length;
+        } else {
+            renderer.schedule(new ScheduledPattern(null, null, 0, SwapMode.RESTART));
+            base = startFrame;
+        }
+        position = base;
+        while (position < startFrame) {
+            renderBlock((int) Math.min(AudioThread.BLOCK_FRAMES, startFrame - position), false);
+        }
+    }
+
+    /**
+     * 次のブロックを{@code bus}に生成し、その範囲で鳴るクリックを通知する
+     *
+     * @param frames ブロックの長さ
+     * @param notify 通知するならtrue。読み飛ばすときはfalse
+     */
+    private void renderBlock(int frames, boolean notify) {
+        renderer.render(bus, 0, frames);
+        position += frames;
+        BeatEventQueue events = renderer.getEvents();
+        while (!events.isEmpty()) {
+            int index = events.peekIndex();
+            long frame = base + events.peekFrame();
+            events.remove();
+            if (notify && listener != null) {
+                listener.onBeat(index, frame);
+            }
+        }
+    }
+}
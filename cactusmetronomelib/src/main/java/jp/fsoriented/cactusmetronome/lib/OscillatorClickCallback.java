@@ -0,0 +1,129 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+import java.util.Arrays;
+
+/**
+ * 正弦波を重ねた音を、一定の音量の後に直線的に減衰させるクリック音の波形を生成するクラス.
+ *
+ * 正弦波は{@code Math.sin}をサンプルごとに呼ばず、漸化式 sin(w(n+1)) = 2cos(w)sin(wn) - sin(w(n-1)) で求める。
+ * 誤差が蓄積しないよう、{@link #RESYNC_FRAMES}サンプルごとに{@code Math.sin}で値を合わせ直す。
+ * {@code Math.sin}で計算した場合との差は、正弦波１つにつき最大で±1（16bitの最下位ビット）である。
+ *
+ * 周波数と音量を指定してそのまま使うほか、独自のクリック音の基底クラスとしても使える。
+ * 波形は引数だけで決まるので、生成した波形はキャッシュされる。
+ * 引数以外に波形を左右する状態を持つサブクラスは、{@code equals}と{@code hashCode}をオーバーライドすること。
+ */
+public class OscillatorClickCallback implements CacheableClickCallback {
+
+    /** {@code Math.sin}で値を合わせ直す間隔（サンプル） */
+    static final int RESYNC_FRAMES = 256;
+
+    /** 正弦波の周波数(Hz) */
+    private final double[] frequencies;
+    /** 正弦波の振幅 */
+    private final double[] amplitudes;
+    /** 一定の音量で鳴らす長さの、{@code click.length}に対する割合 */
+    private final double sustainRatio;
+    /** 鳴らし終える位置の、{@code click.length}に対する割合 */
+    private final double endRatio;
+
+    /**
+     * クリックの長さの20%まで一定の音量で鳴らし、35%までに減衰させるクリック音を生成するコンストラクタ
+     *
+     * @param frequencies 正弦波の周波数(Hz)
+     * @param amplitudes 正弦波の振幅（16bitの値）
+     */
+    public OscillatorClickCallback(double[] frequencies, double[] amplitudes) {
+        this(frequencies, amplitudes, 0.2, 0.35);
+    }
+
+    /**
+     * 音量の変化を指定して、クリック音を生成するコンストラクタ
+     *
+     * @param frequencies 正弦波の周波数(Hz)
+     * @param amplitudes 正弦波の振幅（16bitの値）
+     * @param sustainRatio 一定の音量で鳴らす長さの、{@code click.length}に対する割合
+     * @param endRatio 鳴らし終える位置の、{@code click.length}に対する割合。{@code sustainRatio}以上1以下であること
+     */
+    public OscillatorClickCallback(double[] frequencies, double[] amplitudes, double sustainRatio, double endRatio) {
+        if (frequencies == null || amplitudes == null) {
+            throw new RuntimeException("Frequencies and amplitudes should not be null.");
+        }
+        if (frequencies.length != amplitudes.length) {
+            throw new RuntimeException("Frequencies and amplitudes should have the same length.");
+        }
+        if (!(sustainRatio >= 0 && sustainRatio <= endRatio && endRatio <= 1)) {
+            throw new RuntimeException("Ratios(" + sustainRatio + ", " + endRatio + ") are out of range.");
+        }
+        this.frequencies = frequencies.clone();
+        this.amplitudes = amplitudes.clone();
+        this.sustainRatio = sustainRatio;
+        this.endRatio = endRatio;
+    }
+
+    /**
+     * クリック音を生成する
+     *
+     * @param buffer    バッファ
+     * @param frequency サンプリング周波数(Hz)
+     * @param click     クリックパターン
+     * @return 書き込んだデータ数
+     */
+    @Override
+    public int writeClick(short[] buffer, int frequency, Click click) {
+        int pos1 = (int) (click.length * sustainRatio);
+        int pos2 = (int) (click.length * endRatio);
+        double decay = 1.0 / (pos2 - pos1);
+        Arrays.fill(buffer, 0, pos2, (short) 0);
+        for (int k = 0; k < frequencies.length; k++) {
+            // 周波数Fの正弦波は、sin(i * PI / 分母)となる（分母はサンプリング周波数の半分 / F）
+            double w = Math.PI / (frequency / 2.0 / frequencies[k]);
+            double c = 2 * Math.cos(w);
+            double amplitude = amplitudes[k];
+            for (int start = 0; start < pos2; start += RESYNC_FRAMES) {
+                int end = Math.min(pos2, start + RESYNC_FRAMES);
+                double s0 = Math.sin(start * w);
+                double s1 = Math.sin((start + 1) * w);
+                for (int i = start; i < end; i++) {
+                    double v = s0 * amplitude;
+                    if (i >= pos1) {
+                        // 音量減衰
+                        v *= (pos2 - i) * decay;
+                    }
+                    buffer[i] += (short) v;
+                    double s2 = c * s1 - s0;
+                    s0 = s1;
+                    s1 = s2;
+                }
+            }
+        }
+        return pos2;
+    }
+
+    /**
+     * 波形は保持していないので、nullを返す
+     */
+    @Override
+    public short[] getSharedWaveform(int frequency, int length) {
+        return null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == null || o.getClass() != getClass()) {
+            return false;
+        }
+        OscillatorClickCallback other = (OscillatorClickCallback) o;
+        return Arrays.equals(frequencies, other.frequencies) && Arrays.equals(amplitudes, other.amplitudes)
+                && sustainRatio == other.sustainRatio && endRatio == other.endRatio;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = getClass().hashCode();
+        h = 31 * h + Arrays.hashCode(frequencies);
+        h = 31 * h + Arrays.hashCode(amplitudes);
+        h = 31 * h + Double.valueOf(sustainRatio).hashCode();
+        return 31 * h + Double.valueOf(endRatio).hashCode();
+    }
+}
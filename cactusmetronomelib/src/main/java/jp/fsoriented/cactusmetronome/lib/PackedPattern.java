@@ -0,0 +1,304 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+import java.util.Arrays;
+
+/**
+ * クリックの並びを、{@link Click}のオブジェクトを使わずにプリミティブ型の配列で表すクラス.
+ *
+ * クリックごとに位置（{@code when}）、クリック音の長さ（{@code length}）、ボイスの番号（{@code voiceId}）を持ち、
+ * クリック音の波形を生成するコールバックと音量は、ボイスの表として１つだけ持つ。
+ * 細かい音符を何千も並べた練習用のパターンのように、クリックの数が多いときに使う。
+ * クリックごとのオブジェクトとコールバックへの参照がないので、メモリが少なく、配列を順に読み出せる。
+ *
+ * クリックは生成時に{@code when}の順に並べ替える（同じ位置のクリックは、渡された順を保つ）。
+ * インデックスは並べ替えた後の順番であり、{@link BeatListener#onBeat(int, long)}に通知されるインデックスもこの順番である。
+ * 並べ替えてあるので、ある位置の次に鳴るクリックを二分探索で求められる（{@link #nextIndex(int)}）。
+ *
+ * {@link Metronome#setPattern(PackedPattern)}で再生できる。生成した後は変更できない。
+ */
+public class PackedPattern {
+
+    /** ボイスの数の最大値（{@code voiceId}は符号なしの8bit） */
+    public static final int MAX_VOICES = 256;
+
+    /** クリックの位置。昇順に並ぶ */
+    private final int[] when;
+    /** クリック音の長さ */
+    private final int[] length;
+    /** ボイスの番号 */
+    private final byte[] voiceId;
+    /** ボイスごとの、波形を生成するコールバック */
+    private final ClickCallback[] voices;
+    /** ボイスごとの、音量の倍率 */
+    private final float[] voiceGains;
+    /** パターンの長さ（サンプル） */
+    private final int patternLength;
+
+    /**
+     * クリックの配列とボイスの表を指定して、{@code PackedPattern}のインスタンスを生成するコンストラクタ.
+     *
+     * ボイスの音量はすべて1倍になる。
+     *
+     * @param when クリックの位置。[0, patternLength)の範囲であること
+     * @param length クリック音の長さ（サンプル）
+     * @param voiceId ボイスの番号（符号なし）。{@code voices}のインデックスである
+     * @param voices ボイスの表。ボイスごとの、波形を生成するコールバック
+     * @param patternLength パターンの長さ（サンプル）
+     */
+    public PackedPattern(int[] when, int[] length, byte[] voiceId, ClickCallback[] voices, int patternLength) {
+        this(when, length, voiceId, voices, null, patternLength);
+    }
+
+    /**
+     * ボイスごとの音量も指定して、{@code PackedPattern}のインスタンスを生成するコンストラクタ.
+     *
+     * アクセントなどは、同じコールバックで音量だけが異なるボイスとして表す。
+     * 配列はコピーするので、生成した後に書き換えても影響しない。
+     *
+     * @param when クリックの位置。[0, patternLength)の範囲であること
+     * @param length クリック音の長さ（サンプル）
+     * @param voiceId ボイスの番号（符号なし）。{@code voices}のインデックスである
+     * @param voices ボイスの表。ボイスごとの、波形を生成するコールバック
+     * @param voiceGains ボイスごとの、音量の倍率（0以上）。nullのときはすべて1倍
+     * @param patternLength パターンの長さ（サンプル）
+     */
+    public PackedPattern(int[] when, int[] length, byte[] voiceId, ClickCallback[] voices, float[] voiceGains, int patternLength) {
+        if (when == null || length == null || voiceId == null || voices == null) {
+            throw new RuntimeException("Arrays should not be null.");
+        }
+        if (length.length != when.length || voiceId.length != when.length) {
+            throw new RuntimeException("Array lengths(" + when.length + ", " + length.length + ", " + voiceId.length + ") should be the same.");
+        }
+        if (voices.length > MAX_VOICES) {
+            throw new RuntimeException("Voice count(" + voices.length + ") should not exceed " + MAX_VOICES + ".");
+        }
+        if (voiceGains != null && voiceGains.length != voices.length) {
+            throw new RuntimeException("Voice gain count(" + voiceGains.length + ") does not match " + voices.length + ".");
+        }
+        if (patternLength <= 0) {
+            throw new RuntimeException("Pattern length should not be zero.");
+        }
+        for (int v = 0; v < voices.length; v++) {
+            if (voices[v] == null) {
+                throw new RuntimeException("Voice(" + v + ") should not be null.");
+            }
+            if (voiceGains != null && !(voiceGains[v] >= 0)) {
+                throw new RuntimeException("Gain(" + voiceGains[v] + ") should not be negative.");
+            }
+        }
+        for (int i = 0; i < when.length; i++) {
+            if (when[i] >= patternLength || when[i] < 0) {
+                throw new RuntimeException("when(" + when[i] + ") is out of range. [0-" + patternLength + ")");
+            }
+            if (length[i] < 0) {
+                throw new RuntimeException("Click length(" + length[i] + ") should not be negative.");
+            }
+            if ((voiceId[i] & 0xFF) >= voices.length) {
+                throw new RuntimeException("Voice id(" + (voiceId[i] & 0xFF) + ") is out of range. [0-" + voices.length + ")");
+            }
+        }
+        this.voices = Arrays.copyOf(voices, voices.length);
+        if (voiceGains != null) {
+            this.voiceGains = Arrays.copyOf(voiceGains, voiceGains.length);
+        } else {
+            this.voiceGains = new float[voices.length];
+            Arrays.fill(this.voiceGains, 1.0f);
+        }
+        this.patternLength = patternLength;
+        if (isSorted(when)) {
+            this.when = Arrays.copyOf(when, when.length);
+            this.length = Arrays.copyOf(length, length.length);
+            this.voiceId = Arrays.copyOf(voiceId, voiceId.length);
+            return;
+        }
+        // 位置を上位、元の順番を下位に詰めて並べ替えると、同じ位置のクリックの順番も保たれる
+        long[] keys = new long[when.length];
+        for (int i = 0; i < when.length; i++) {
+            keys[i] = ((long) when[i] << 32) | i;
+        }
+        Arrays.sort(keys);
+        this.when = new int[when.length];
+        this.length = new int[when.length];
+        this.voiceId = new byte[when.length];
+        for (int i = 0; i < keys.length; i++) {
+            int from = (int) keys[i];
+            this.when[i] = when[from];
+            this.length[i] = length[from];
+            this.voiceId[i] = voiceId[from];
+        }
+    }
+
+    /**
+     * 昇順に並んでいるかどうか
+     */
+    private static boolean isSorted(int[] when) {
+        for (int i = 1; i < when.length; i++) {
+            if (when[i - 1] > when[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * {@code Click}の配列から、{@code PackedPattern}を生成する.
+     *
+     * コールバックと音量の組み合わせごとに、ボイスを１つ割り当てる。コールバックは同一性で比較する。
+     * 定位は保持しない。
+     *
+     * @param clicks クリック
+     * @param patternLength パターンの長さ（サンプル）
+     * @return 生成したパターン
+     */
+    public static PackedPattern of(Click[] clicks, int patternLength) {
+        int[] when = new int[clicks.length];
+        int[] length = new int[clicks.length];
+        byte[] voiceId = new byte[clicks.length];
+        ClickCallback[] voices = new ClickCallback[Math.min(clicks.length, MAX_VOICES)];
+        float[] gains = new float[voices.length];
+        int voiceCount = 0;
+        for (int i = 0; i < clicks.length; i++) {
+            Click click = clicks[i];
+            int v = 0;
+            while (v < voiceCount && !(voices[v] == click.callback && gains[v] == click.gain)) {
+                v++;
+            }
+            if (v == voiceCount) {
+                if (voiceCount == MAX_VOICES) {
+                    throw new RuntimeException("Voice count should not exceed " + MAX_VOICES + ".");
+                }
+                voices[v] = click.callback;
+                gains[v] = click.gain;
+                voiceCount++;
+            }
+            when[i] = click.when;
+            length[i] = click.length;
+            voiceId[i] = (byte) v;
+        }
+        return new PackedPattern(when, length, voiceId, Arrays.copyOf(voices, voiceCount),
+                Arrays.copyOf(gains, voiceCount), patternLength);
+    }
+
+    /**
+     * 指定された位置以降で、最初に鳴るクリックのインデックスを返す. 二分探索で求める。
+     *
+     * @param position パターン上の位置（サンプル）
+     * @return {@code when}が{@code position}以上である最初のクリックのインデックス。なければ{@link #size()}
+     */
+    public int nextIndex(int position) {
+        int low = 0;
+        int high = when.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (when[mid] < position) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * クリックの数を返す
+     *
+     * @return クリックの数
+     */
+    public int size() {
+        return when.length;
+    }
+
+    /**
+     * パターンの長さを返す
+     *
+     * @return パターンの長さ（サンプル）
+     */
+    public int getLength() {
+        return patternLength;
+    }
+
+    /**
+     * クリックの位置を返す
+     *
+     * @param index クリックのインデックス
+     * @return パターン上の位置（サンプル）
+     */
+    public int getWhen(int index) {
+        return when[index];
+    }
+
+    /**
+     * クリック音の長さを返す
+     *
+     * @param index クリックのインデックス
+     * @return クリック音の長さ（サンプル）
+     */
+    public int getClickLength(int index) {
+        return length[index];
+    }
+
+    /**
+     * クリックのボイスの番号を返す
+     *
+     * @param index クリックのインデックス
+     * @return ボイスの番号
+     */
+    public int getVoiceId(int index) {
+        return voiceId[index] & 0xFF;
+    }
+
+    /**
+     * ボイスの数を返す
+     *
+     * @return ボイスの数
+     */
+    public int getVoiceCount() {
+        return voices.length;
+    }
+
+    /**
+     * ボイスの、波形を生成するコールバックを返す
+     *
+     * @param voice ボイスの番号
+     * @return コールバック
+     */
+    public ClickCallback getVoice(int voice) {
+        return voices[voice];
+    }
+
+    /**
+     * ボイスの音量の倍率を返す
+     *
+     * @param voice ボイスの番号
+     * @return 音量の倍率
+     */
+    public float getVoiceGain(int voice) {
+        return voiceGains[voice];
+    }
+
+    /**
+     * 指定されたクリックを、{@link Click}のオブジェクトにして返す. 呼び出すたびに新しいオブジェクトを生成する。
+     *
+     * @param index クリックのインデックス
+     * @return クリック
+     */
+    public Click toClick(int index) {
+        int v = voiceId[index] & 0xFF;
+        return new Click(when[index], length[index], voices[v], voiceGains[v], 0.0f);
+    }
+
+    /** @return クリックの位置（コピーしない） */
+    /*package*/ int[] whens() {
+        return when;
+    }
+
+    /** @return クリック音の長さ（コピーしない） */
+    /*package*/ int[] lengths() {
+        return length;
+    }
+
+    /** @return ボイスの番号（コピーしない） */
+    /*package*/ byte[] voiceIds() {
+        return voiceId;
+    }
+}
@@ -0,0 +1,214 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+/**
+ * （内部クラス）クリック音のパターンを、固定長のブロックに切り出すクラス.
+ *
+ * パターンの読み出し位置を保持し、{@code render}が呼ばれるたびにその位置からブロック１つ分を書き出す。
+ * パターンの末尾に達したら先頭に戻って繰り返す。
+ * パターンの切り替えは{@link SwapMode}に従い、{@link SwapMode#NEXT_BAR}のときはブロックの途中でもサンプル単位で切り替える。
+ * パターンの代わりに{@link StreamRenderer}が設定されているときは、それにブロックの生成を任せる。
+ * {@code StreamRenderer}には小節の区切りがないので、そこからの切り替えは{@code SwapMode}によらず次のブロックで行う。
+ * 再生スレッドからのみ呼び出す。ただし{@code getPublished}は任意のスレッドから呼び出せる。
+ */
+class PatternRenderer {
+
+    /** 再生中のパターン */
+    private ScheduledPattern current;
+    /** 小節の境目で切り替えるのを待っているパターン */
+    private ScheduledPattern waiting;
+    /** パターン上の読み出し位置（サンプル） */
+    private int cursor;
+    /** 書き出したデータ数の合計 */
+    private long frame;
+    /** 出力先が再生し終えた位置. これより前にだけ再生されたパターンは、履歴に残さない */
+    private long playedFrame;
+    /** まだ報告していない、最後に切り替えたパターンの要求時刻 */
+    private long appliedRequestedAt;
+    /** 他のスレッドに公開する、最後に切り替えたパターン */
+    private volatile ScheduledPattern published;
+    /** クリックが鳴る位置の通知先 */
+    private final BeatEventQueue events = new BeatEventQueue();
+    /** クリックが鳴る位置を通知するかどうか */
+    private volatile boolean eventsEnabled;
+
+    /**
+     * パターンの変更を予約する. 切り替えの時点は、{@code pattern.mode}に従う。
+     *
+     * @param pattern 新しいパターン
+     */
+    public void schedule(ScheduledPattern pattern) {
+        if (pattern.mode == SwapMode.NEXT_BAR && isRepeating() && hasContent(pattern)) {
+            waiting = pattern;
+            return;
+        }
+        waiting = null;
+        int offset = 0;
+        if (pattern.mode == SwapMode.IMMEDIATE && isRepeating() && pattern.isRepeating()) {
+            offset = cursor % pattern.length;
+        }
+        apply(pattern, offset);
+    }
+
+    /**
+     * パターンを切り替え、他のスレッドに公開する
+     *
+     * @param pattern 新しいパターン
+     * @param offset 新しいパターン上の読み出し位置
+     */
+    private void apply(ScheduledPattern pattern, int offset) {
+        pattern.startFrame = frame;
+        pattern.startOffset = offset;
+        // 公開済みのパターンは変更せず、再生ヘッドがまだ通過していない分だけを写してつなぐ
+        pattern.previous = current != null ? current.retainFrom(playedFrame) : null;
+        current = pattern;
+        cursor = offset;
+        appliedRequestedAt = pattern.requestedAt;
+        published = pattern;
+    }
+
+    /**
+     * 出力先が再生し終えた位置を設定する. パターンを切り替えるときに、これより前の履歴を外す。
+     *
+     * 古い値のままでも、履歴が長くなるだけで正しさは変わらない。
+     *
+     * @param frame 再生開始からのサンプル数
+     */
+    public void setPlayedFrame(long frame) {
+        playedFrame = frame;
+    }
+
+    /**
+     * パターンが設定されているかどうか
+     *
+     * @return 設定されていればtrue
+     */
+    public boolean hasPattern() {
+        return current != null && hasContent(current);
+    }
+
+    /**
+     * 繰り返しのパターンを再生中かどうか
+     */
+    private boolean isRepeating() {
+        return current != null && current.isRepeating();
+    }
+
+    /**
+     * 無音でないかどうか
+     */
+    private static boolean hasContent(ScheduledPattern pattern) {
+        return pattern.pattern != null || pattern.source != null;
+    }
+
+    /**
+     * 読み出し位置から、指定された長さの波形をバッファに書き出し、読み出し位置を進める.
+     *
+     * パターンが設定されていなければ、無音を書き出す。
+     *
+     * @param bus 書き出し先のバッファ
+     * @param offset 書き出し先の先頭（サンプル）
+     * @param frames 書き出す長さ（サンプル）
+     */
+    public void render(MixBus bus, int offset, int frames) {
+        int written = 0;
+        while (written < frames) {
+            if (!hasPattern()) {
+                bus.clear(offset + written, frames - written);
+                frame += frames - written;
+                return;
+            }
+            if (current.source != null) {
+                current.source.render(bus, offset + written, frames - written, frame, eventsEnabled ? events : null);
+                frame += frames - written;
+                return;
+            }
+            short[] p = current.pattern;
+            int n = Math.min(frames - written, p.length - cursor);
+            bus.setMono(p, cursor, offset + written, n);
+            if (eventsEnabled) {
+                offerEvents(cursor, n);
+            }
+            written += n;
+            cursor += n;
+            frame += n;
+            if (cursor >= p.length) {
+                cursor = 0;
+                if (waiting != null) {
+                    apply(waiting, 0);
+                    waiting = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * パターン上の指定された範囲にあるクリックを、通知先のキューに追加する.
+     *
+     * {@link PackedPattern}のクリックは{@code when}の順に並んでいるので、範囲の先頭を二分探索し、範囲内のクリックだけを読む。
+     *
+     * @param from 範囲の先頭（パターン上の位置）
+     * @param n 範囲の長さ
+     */
+    private void offerEvents(int from, int n) {
+        PackedPattern packed = current.packed;
+        if (packed != null) {
+            int[] whens = packed.whens();
+            for (int i = packed.nextIndex(from); i < whens.length && whens[i] < from + n; i++) {
+                events.offer(i, frame + whens[i] - from);
+            }
+            return;
+        }
+        Click[] clicks = current.clicks;
+        if (clicks == null) {
+            return;
+        }
+        int length = current.length;
+        for (int i = 0; i < clicks.length; i++) {
+            int when = clicks[i].when % length;
+            if (when >= from && when < from + n) {
+                events.offer(i, frame + when - from);
+            }
+        }
+    }
+
+    /**
+     * クリックが鳴る位置を通知するかどうかを指定する
+     *
+     * @param enabled 通知するならtrue
+     */
+    public void setEventsEnabled(boolean enabled) {
+        eventsEnabled = enabled;
+    }
+
+    /**
+     * クリックが鳴る位置の通知先を返す
+     *
+     * @return 通知先のキュー
+     */
+    public BeatEventQueue getEvents() {
+        return events;
+    }
+
+    /**
+     * 前回の呼び出し以降にパターンを切り替えていれば、その要求時刻を返す
+     *
+     * @return 要求時刻。切り替えていなければ0
+     */
+    public long takeAppliedRequestedAt() {
+        long t = appliedRequestedAt;
+        appliedRequestedAt = 0;
+        return t;
+    }
+
+    /**
+     * 最後に切り替えたパターンを返す.
+     *
+     * 切り替えは書き出した時点で公開されるので、まだ再生されていないこともある。
+     * 再生中のパターンを知るには、{@link ScheduledPattern#find(long)}を使う。
+     *
+     * @return 最後に切り替えたパターン。まだなければnull
+     */
+    public ScheduledPattern getPublished() {
+        return published;
+    }
+}
@@ -0,0 +1,142 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * （内部クラス）再生の状態を計測するカウンタ.
+ *
+ * 再生スレッドはブロックごとに数回カウンタを更新するだけで、ロックもオブジェクトの生成も行わない。
+ * 他のスレッドからは、{@link #snapshot()}でその時点の値を読み出す。
+ * 値はカウンタごとに読み出すので、スナップショットのカウンタどうしは厳密には同時点のものではない。
+ */
+class PlaybackMetrics {
+
+    /** 書き込みにかかった時間のヒストグラムの、区間の数 */
+    static final int HISTOGRAM_BUCKETS = 16;
+
+    /** 出力先のバッファが空になっていた回数 */
+    private final AtomicLong underruns = new AtomicLong();
+    /** 書き込みがエラーになった、または全部書き込めなかった回数 */
+    private final AtomicLong writeErrors = new AtomicLong();
+    /** 出力先に書き込んだデータ数 */
+    private final AtomicLong framesRendered = new AtomicLong();
+    /** 書き込みにかかった時間のヒストグラム */
+    private final AtomicLongArray writeHistogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+    /** ブロックの間隔と、ブロックの長さの差の最大値（ナノ秒） */
+    private final AtomicLong maxJitterNanos = new AtomicLong();
+    /** ブロックの間隔と、ブロックの長さの差の合計（ナノ秒） */
+    private final AtomicLong totalJitterNanos = new AtomicLong();
+    /** ブロックの間隔を計測した回数 */
+    private final AtomicLong jitterSamples = new AtomicLong();
+    /** パターンを生成した回数 */
+    private final AtomicLong compileCount = new AtomicLong();
+    /** パターンの生成にかかった時間の合計（ナノ秒） */
+    private final AtomicLong totalCompileNanos = new AtomicLong();
+    /** パターンの生成にかかった時間の最大値（ナノ秒） */
+    private final AtomicLong maxCompileNanos = new AtomicLong();
+
+    /**
+     * ブロックを書き込んだことを記録する
+     *
+     * @param frames 書き込もうとしたデータ数
+     * @param written 出力先が返した、書き込んだデータ数
+     * @param nanos 書き込みにかかった時間（ナノ秒）
+     */
+    public void recordWrite(int frames, int written, long nanos) {
+        if (written != frames) {
+            writeErrors.incrementAndGet();
+        }
+        if (written > 0) {
+            framesRendered.addAndGet(written);
+        }
+        writeHistogram.incrementAndGet(bucketOf(nanos));
+    }
+
+    /**
+     * 出力先のバッファが空になっていたことを記録する
+     */
+    public void recordUnderrun() {
+        underruns.incrementAndGet();
+    }
+
+    /**
+     * ブロックの間隔のずれを記録する
+     *
+     * @param nanos ブロックの間隔と、ブロックの長さの差（ナノ秒）
+     */
+    public void recordJitter(long nanos) {
+        long abs = Math.abs(nanos);
+        totalJitterNanos.addAndGet(abs);
+        jitterSamples.incrementAndGet();
+        updateMax(maxJitterNanos, abs);
+    }
+
+    /**
+     * パターンの生成にかかった時間を記録する
+     *
+     * @param nanos 生成にかかった時間（ナノ秒）
+     */
+    public void recordCompile(long nanos) {
+        compileCount.incrementAndGet();
+        totalCompileNanos.addAndGet(nanos);
+        updateMax(maxCompileNanos, nanos);
+    }
+
+    /**
+     * 現在の値を読み出す
+     *
+     * @return 読み出した値
+     */
+    public PlaybackStats snapshot() {
+        long[] histogram = new long[HISTOGRAM_BUCKETS];
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            histogram[i] = writeHistogram.get(i);
+        }
+        return new PlaybackStats(underruns.get(), writeErrors.get(), framesRendered.get(), histogram,
+                maxJitterNanos.get(), totalJitterNanos.get(), jitterSamples.get(),
+                compileCount.get(), totalCompileNanos.get(), maxCompileNanos.get());
+    }
+
+    /**
+     * すべての値を0に戻す
+     */
+    public void reset() {
+        underruns.set(0);
+        writeErrors.set(0);
+        framesRendered.set(0);
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            writeHistogram.set(i, 0);
+        }
+        maxJitterNanos.set(0);
+        totalJitterNanos.set(0);
+        jitterSamples.set(0);
+        compileCount.set(0);
+        totalCompileNanos.set(0);
+        maxCompileNanos.set(0);
+    }
+
+    /**
+     * 時間を、ヒストグラムの区間に変換する. 区間0は1マイクロ秒未満、区間iは2^(i-1)以上2^iマイクロ秒未満、最後の区間はそれ以上である。
+     */
+    static int bucketOf(long nanos) {
+        long micros = nanos / 1000;
+        if (micros <= 0) {
+            return 0;
+        }
+        return Math.min(HISTOGRAM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    /**
+     * 最大値を更新する
+     */
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        do {
+            current = max.get();
+            if (value <= current) {
+                return;
+            }
+        } while (!max.compareAndSet(current, value));
+    }
+}
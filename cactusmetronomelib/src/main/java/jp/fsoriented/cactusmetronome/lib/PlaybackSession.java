@@ -0,0 +1,76 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+/**
+ * （内部インターフェース）{@link Metronome}の１回の再生（{@code start}から{@code finish}まで）を表すオブジェクト.
+ *
+ * 単独で再生するときは{@link AudioThread}が、{@link MetronomeEngine}で再生するときは{@link EngineChannel}が実装する。
+ * {@code Metronome}は、このインターフェースを通してパターンを渡し、再生位置とクリックの通知を受け取る。
+ */
+interface PlaybackSession {
+
+    /**
+     * クリックパターンを設定する. 次のブロックの先頭で、{@code pattern.mode}に従って切り替えが行われる。
+     *
+     * @param pattern クリック音のパターン
+     */
+    public void setPattern(ScheduledPattern pattern);
+
+    /**
+     * 最後に切り替えたパターンを返す
+     *
+     * @return 最後に切り替えたパターン。まだなければnull
+     */
+    public ScheduledPattern getPublishedPattern();
+
+    /**
+     * クリックが鳴る位置を通知するかどうかを指定する
+     *
+     * @param enabled 通知するならtrue
+     */
+    public void setBeatEventsEnabled(boolean enabled);
+
+    /**
+     * クリックが鳴る位置の通知先を返す. 読み出せるのは１スレッドだけである。
+     *
+     * @return 通知先のキュー
+     */
+    public BeatEventQueue getBeatEvents();
+
+    /**
+     * 出力装置が再生し終えた位置を返す
+     *
+     * @return 再生開始からのサンプル数。まだ鳴り始めていなければ負の値
+     */
+    public long getPlaybackFrame();
+
+    /**
+     * 0-1でボリュームを指定する
+     *
+     * @param vol ボリューム[0..1]
+     */
+    public void setVolume(float vol);
+
+    /**
+     * 再生を一時停止する
+     */
+    public void pauseSession();
+
+    /**
+     * 一時停止した再生を、続きから再開する
+     */
+    public void resumeSession();
+
+    /**
+     * 再生を終了する. 終了した後は使用できない。
+     */
+    public void end();
+
+    /**
+     * 再生が終了したかどうかを返す.
+     *
+     * {@code end}のほか、{@link MetronomeEngine#release()}などで外から打ち切られたときもtrueを返す。
+     *
+     * @return 終了していればtrue
+     */
+    public boolean isEnded();
+}
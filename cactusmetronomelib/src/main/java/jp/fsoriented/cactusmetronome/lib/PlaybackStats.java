@@ -0,0 +1,156 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+/**
+ * 再生の状態を計測した値. {@link Metronome#getPlaybackStats()}で取得する。
+ *
+ * 値は{@link Metronome#resetPlaybackStats()}を呼ぶまで、再生を停止しても累積する。
+ * 定期的に取得して前回との差をとれば、その間の値になる。
+ */
+public class PlaybackStats {
+
+    /** 出力先のバッファが空になっていた回数 */
+    private final long underrunCount;
+    /** 書き込みがエラーになった、または全部書き込めなかった回数 */
+    private final long writeErrorCount;
+    /** 出力先に書き込んだデータ数 */
+    private final long framesRendered;
+    /** 書き込みにかかった時間のヒストグラム */
+    private final long[] writeLatencyHistogram;
+    /** ブロックの間隔のずれの最大値（ナノ秒） */
+    private final long maxJitterNanos;
+    /** ブロックの間隔のずれの合計（ナノ秒） */
+    private final long totalJitterNanos;
+    /** ブロックの間隔を計測した回数 */
+    private final long jitterSamples;
+    /** パターンを生成した回数 */
+    private final long compileCount;
+    /** パターンの生成にかかった時間の合計（ナノ秒） */
+    private final long totalCompileNanos;
+    /** パターンの生成にかかった時間の最大値（ナノ秒） */
+    private final long maxCompileNanos;
+
+    /**
+     * コンストラクタ
+     */
+    PlaybackStats(long underrunCount, long writeErrorCount, long framesRendered, long[] writeLatencyHistogram,
+                  long maxJitterNanos, long totalJitterNanos, long jitterSamples,
+                  long compileCount, long totalCompileNanos, long maxCompileNanos) {
+        this.underrunCount = underrunCount;
+        this.writeErrorCount = writeErrorCount;
+        this.framesRendered = framesRendered;
+        this.writeLatencyHistogram = writeLatencyHistogram;
+        this.maxJitterNanos = maxJitterNanos;
+        this.totalJitterNanos = totalJitterNanos;
+        this.jitterSamples = jitterSamples;
+        this.compileCount = compileCount;
+        this.totalCompileNanos = totalCompileNanos;
+        this.maxCompileNanos = maxCompileNanos;
+    }
+
+    /**
+     * 出力先のバッファが空になっていた（音が途切れた）回数を返す.
+     *
+     * ブロックを書き込む直前に、再生ヘッドがそれまでに書き込んだ位置に追いついていれば１回と数える。
+     *
+     * @return 回数
+     */
+    public long getUnderrunCount() {
+        return underrunCount;
+    }
+
+    /**
+     * 書き込みがエラーになった、または一部しか書き込めなかった回数を返す
+     *
+     * @return 回数
+     */
+    public long getWriteErrorCount() {
+        return writeErrorCount;
+    }
+
+    /**
+     * 出力先に書き込んだデータ数を返す
+     *
+     * @return データ数（サンプル）
+     */
+    public long getFramesRendered() {
+        return framesRendered;
+    }
+
+    /**
+     * １ブロックの書き込みにかかった時間のヒストグラムを返す.
+     *
+     * 出力先のバッファに空きがなければ書き込みはブロックするので、通常はブロックの長さに近い区間に集まる。
+     * 区間の範囲は{@link #getBucketUpperMicros(int)}で求める。
+     *
+     * @return 区間ごとの回数（コピー）
+     */
+    public long[] getWriteLatencyHistogram() {
+        return writeLatencyHistogram.clone();
+    }
+
+    /**
+     * ヒストグラムの区間の上限を返す. 区間0は1マイクロ秒未満、区間iは2^(i-1)以上2^iマイクロ秒未満である。
+     *
+     * @param bucket 区間
+     * @return 上限（マイクロ秒、この値を含まない）。最後の区間は上限がないので{@code Long.MAX_VALUE}
+     */
+    public static long getBucketUpperMicros(int bucket) {
+        if (bucket >= PlaybackMetrics.HISTOGRAM_BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        return 1L << bucket;
+    }
+
+    /**
+     * 再生スレッドがブロックを書き込む間隔と、ブロックの長さとの差の最大値を返す
+     *
+     * @return 最大値（ナノ秒）
+     */
+    public long getMaxJitterNanos() {
+        return maxJitterNanos;
+    }
+
+    /**
+     * 再生スレッドがブロックを書き込む間隔と、ブロックの長さとの差の平均値を返す
+     *
+     * @return 平均値（ナノ秒）。まだ計測していなければ0
+     */
+    public long getMeanJitterNanos() {
+        return jitterSamples > 0 ? totalJitterNanos / jitterSamples : 0;
+    }
+
+    /**
+     * {@code setPattern}などでパターンを生成した回数を返す
+     *
+     * @return 回数
+     */
+    public long getCompileCount() {
+        return compileCount;
+    }
+
+    /**
+     * パターンの生成にかかった時間の合計を返す
+     *
+     * @return 合計（ナノ秒）
+     */
+    public long getTotalCompileNanos() {
+        return totalCompileNanos;
+    }
+
+    /**
+     * パターンの生成にかかった時間の最大値を返す
+     *
+     * @return 最大値（ナノ秒）
+     */
+    public long getMaxCompileNanos() {
+        return maxCompileNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "PlaybackStats{underruns=" + underrunCount + ", writeErrors=" + writeErrorCount
+                + ", framesRendered=" + framesRendered + ", maxJitterNanos=" + maxJitterNanos
+                + ", meanJitterNanos=" + getMeanJitterNanos() + ", compiles=" + compileCount
+                + ", maxCompileNanos=" + maxCompileNanos + "}";
+    }
+}
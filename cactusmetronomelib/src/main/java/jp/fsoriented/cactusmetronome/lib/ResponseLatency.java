@@ -0,0 +1,61 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * （内部クラス）操作が再生に反映されるまでの時間の、最悪値を記録するクラス.
+ *
+ * 複数の再生スレッドから同時に記録されてもよいように、ロックを使わずに最大値を更新する。
+ */
+class ResponseLatency {
+
+    /** {@code setPattern}から、新しいパターンの先頭ブロックを出力先に渡すまでの最大時間（ナノ秒） */
+    private final AtomicLong maxPatternNanos = new AtomicLong();
+    /** {@code finish}から、再生スレッドが書き込みを止めるまでの最大時間（ナノ秒） */
+    private final AtomicLong maxFinishNanos = new AtomicLong();
+
+    /**
+     * パターン変更の反映時間を記録する
+     *
+     * @param nanos 反映までの時間（ナノ秒）
+     */
+    public void recordPattern(long nanos) {
+        updateMax(maxPatternNanos, nanos);
+    }
+
+    /**
+     * 停止の反映時間を記録する
+     *
+     * @param nanos 反映までの時間（ナノ秒）
+     */
+    public void recordFinish(long nanos) {
+        updateMax(maxFinishNanos, nanos);
+    }
+
+    /**
+     * @return パターン変更の反映時間の最悪値（ナノ秒）
+     */
+    public long getMaxPatternNanos() {
+        return maxPatternNanos.get();
+    }
+
+    /**
+     * @return 停止の反映時間の最悪値（ナノ秒）
+     */
+    public long getMaxFinishNanos() {
+        return maxFinishNanos.get();
+    }
+
+    /**
+     * 最大値を更新する
+     */
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        do {
+            current = max.get();
+            if (value <= current) {
+                return;
+            }
+        } while (!max.compareAndSet(current, value));
+    }
+}
@@ -0,0 +1,150 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+/**
+ * 録音したクリック音（WAVファイル）を鳴らすコールバック.
+ *
+ * 16bit PCMのWAVファイルをメモリマップで一度だけ読み込み、モノラルの波形として保持する。
+ * パターンの生成や再生では、クリックごとに{@code writeClick}で作業用のバッファにコピーせず、保持した波形から直接足し合わせる。
+ * 再生のサンプリング周波数がファイルと異なる場合は、周波数ごとに一度だけ線形補間でリサンプリングして保持する。
+ *
+ * {@code click.length}がファイルより短ければ、その長さで打ち切る。ファイルの長さ以上であれば、ファイル全体を鳴らす。
+ * 打ち切った波形は他のクリック音と同じく{@link WaveformCache}に入るので、クリックの長さの種類が多くても保持する量は増え続けない。
+ * インスタンスごとに別の音とみなすので、同じ音を使うクリックには同じインスタンスを使うこと。
+ */
+public class SampleClickCallback implements CacheableClickCallback {
+
+    /** 読み込んだファイルのサンプリング周波数(Hz) */
+    private final int sampleRate;
+    /** 読み込んだ波形（モノラル） */
+    private final short[] samples;
+    /** サンプリング周波数ごとの、ファイル全体の波形 */
+    private final HashMap<Integer, short[]> waveforms = new HashMap<Integer, short[]>();
+
+    /**
+     * WAVファイルを読み込むコンストラクタ
+     *
+     * @param file 16bit PCMのWAVファイル
+     * @throws IOException 読み込めないとき、または16bit PCMでないとき
+     */
+    public SampleClickCallback(File file) throws IOException {
+        this(map(file));
+    }
+
+    /**
+     * メモリ上のWAVファイルを読み込むコンストラクタ. アセットなどを{@code FileChannel.map}したものを渡せる。
+     *
+     * @param wav WAVファイルの内容。{@code position}から読み込み、内容は変更しない
+     * @throws IOException 16bit PCMでないとき
+     */
+    public SampleClickCallback(ByteBuffer wav) throws IOException {
+        WaveFileReader reader = new WaveFileReader(wav);
+        this.sampleRate = reader.getSampleRate();
+        this.samples = reader.getSamples();
+    }
+
+    /**
+     * ファイルをメモリマップする
+     */
+    private static ByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * 読み込んだファイルのサンプリング周波数を返す
+     *
+     * @return サンプリング周波数(Hz)
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * 読み込んだ波形の長さを返す
+     *
+     * @return 長さ（サンプル）
+     */
+    public int getLength() {
+        return samples.length;
+    }
+
+    /**
+     * クリック音を書き込む. ファイルより短いクリックで、パターンの生成のときに呼ばれる。
+     *
+     * @param buffer    バッファ
+     * @param frequency サンプリング周波数(Hz)
+     * @param click     クリックパターン
+     * @return 書き込んだデータ数
+     */
+    @Override
+    public int writeClick(short[] buffer, int frequency, Click click) {
+        short[] wave = waveform(frequency);
+        int size = Math.min(click.length, wave.length);
+        System.arraycopy(wave, 0, buffer, 0, size);
+        return size;
+    }
+
+    /**
+     * {@code length}がファイルの長さ以上であれば、保持している波形をそのまま返す.
+     * 短ければ打ち切った波形が必要なので、nullを返して{@link WaveformCache}に任せる。
+     *
+     * @param frequency サンプリング周波数(Hz)
+     * @param length クリック音の長さ（サンプル）
+     * @return ファイル全体の波形。短いときはnull
+     */
+    @Override
+    public short[] getSharedWaveform(int frequency, int length) {
+        short[] wave = waveform(frequency);
+        return length >= wave.length ? wave : null;
+    }
+
+    /**
+     * 指定されたサンプリング周波数の、ファイル全体の波形を返す. 同じ周波数に対しては、同じ配列を返す。
+     *
+     * @param frequency サンプリング周波数(Hz)
+     * @return 波形。書き換えてはならない
+     */
+    private synchronized short[] waveform(int frequency) {
+        short[] wave = waveforms.get(frequency);
+        if (wave == null) {
+            wave = frequency == sampleRate ? samples : resample(samples, sampleRate, frequency);
+            waveforms.put(frequency, wave);
+        }
+        return wave;
+    }
+
+    /**
+     * 線形補間で、サンプリング周波数を変換する
+     *
+     * @param in 波形
+     * @param from 変換前のサンプリング周波数(Hz)
+     * @param to 変換後のサンプリング周波数(Hz)
+     * @return 変換した波形
+     */
+    static short[] resample(short[] in, int from, int to) {
+        int n = (int) ((long) in.length * to / from);
+        short[] out = new short[n];
+        double step = (double) from / to;
+        for (int i = 0; i < n; i++) {
+            double x = i * step;
+            int j = (int) x;
+            double t = x - j;
+            int a = in[j];
+            int b = j + 1 < in.length ? in[j + 1] : 0;
+            out[i] = (short) Math.round(a + (b - a) * t);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,154 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+/**
+ * （内部クラス）再生スレッドに渡すクリックパターンと、その再生開始位置を表すクラス.
+ *
+ * 呼び出し側のスレッドで生成し、再生スレッドに渡す。再生スレッドは、パターンを実際に切り替えたときに
+ * {@code startFrame}、{@code startOffset}、{@code previous}を設定してから、volatile変数を通して公開する。
+ * 公開した後は変更しないので、他のスレッドはロックなしで読み出せる。
+ * 古いパターンを履歴から外すときも、公開済みのパターンは変更せず、残す分の写し（{@link #copy()}）をつなぎ直す。
+ */
+class ScheduledPattern {
+
+    /** クリック音のパターン。nullのときは{@code source}が生成するか、無音 */
+    final short[] pattern;
+    /** ブロックごとに波形を生成するオブジェクト。{@code pattern}を使うときはnull */
+    final StreamRenderer source;
+    /** パターンを構成するクリック */
+    final Click[] clicks;
+    /** パターンを構成するクリック（{@link PackedPattern}で設定したとき）。そうでなければnull */
+    final PackedPattern packed;
+    /** パターンの長さ（サンプル）。{@code source}を使うときは0 */
+    final int length;
+    /** 切り替え方法 */
+    final SwapMode mode;
+    /** 変更が要求された時刻 */
+    final long requestedAt;
+
+    /** 再生を開始した位置（再生開始からのサンプル数） */
+    long startFrame;
+    /** {@code startFrame}の時点での、パターン上の位置（サンプル） */
+    int startOffset;
+    /** 直前に再生していたパターン（の写し）. 再生ヘッドがすでに通過したものは含まない */
+    ScheduledPattern previous;
+
+    /**
+     * コンストラクタ
+     *
+     * @param pattern クリック音のパターン。nullのときは無音
+     * @param clicks パターンを構成するクリック
+     * @param length パターンの長さ（サンプル）
+     * @param mode 切り替え方法
+     */
+    ScheduledPattern(short[] pattern, Click[] clicks, int length, SwapMode mode) {
+        this(pattern, null, clicks, null, length, mode);
+    }
+
+    /**
+     * {@link PackedPattern}から生成したパターンを再生するためのコンストラクタ
+     *
+     * @param pattern クリック音のパターン
+     * @param packed パターンを構成するクリック
+     * @param mode 切り替え方法
+     */
+    ScheduledPattern(short[] pattern, PackedPattern packed, SwapMode mode) {
+        this(pattern, null, null, packed, packed.getLength(), mode);
+    }
+
+    /**
+     * ブロックごとに波形を生成するオブジェクトを再生するためのコンストラクタ
+     *
+     * @param source ブロックごとに波形を生成するオブジェクト
+     * @param mode 切り替え方法。{@link SwapMode#NEXT_BAR}は、再生中のパターンの末尾で切り替える
+     */
+    ScheduledPattern(StreamRenderer source, SwapMode mode) {
+        this(null, source, null, null, 0, mode);
+    }
+
+    /**
+     * コンストラクタ
+     */
+    private ScheduledPattern(short[] pattern, StreamRenderer source, Click[] clicks, PackedPattern packed, int length, SwapMode mode) {
+        this(pattern, source, clicks, packed, length, mode, System.nanoTime());
+    }
+
+    /**
+     * コンストラクタ
+     */
+    private ScheduledPattern(short[] pattern, StreamRenderer source, Click[] clicks, PackedPattern packed, int length,
+                             SwapMode mode, long requestedAt) {
+        this.pattern = pattern;
+        this.source = source;
+        this.clicks = clicks;
+        this.packed = packed;
+        this.length = length;
+        this.mode = mode;
+        this.requestedAt = requestedAt;
+    }
+
+    /**
+     * 再生開始位置を含めた写しを返す. {@code previous}は写さない。
+     *
+     * @return 写し
+     */
+    ScheduledPattern copy() {
+        ScheduledPattern p = new ScheduledPattern(pattern, source, clicks, packed, length, mode, requestedAt);
+        p.startFrame = startFrame;
+        p.startOffset = startOffset;
+        return p;
+    }
+
+    /**
+     * このパターンと、それ以前のパターンのうち、指定された位置以降に再生されうるものの写しをつないで返す.
+     *
+     * 指定された位置で再生されているパターン（開始位置がその位置以前で最も新しいもの）までを残し、それより古いものは外す。
+     * このパターンとそれ以前のパターンは変更しない。
+     *
+     * @param frame 再生ヘッドの位置（再生開始からのサンプル数）. 以降の{@code find}はこの位置以降で呼ばれること
+     * @return 写しの先頭
+     */
+    ScheduledPattern retainFrom(long frame) {
+        ScheduledPattern head = copy();
+        ScheduledPattern tail = head;
+        ScheduledPattern p = this;
+        while (p.startFrame > frame && p.previous != null) {
+            p = p.previous;
+            tail.previous = p.copy();
+            tail = tail.previous;
+        }
+        return head;
+    }
+
+    /**
+     * 繰り返しのパターンを持つかどうか. 持たなければ、パターン上の位置は定まらない。
+     *
+     * @return 持つならtrue
+     */
+    boolean isRepeating() {
+        return pattern != null;
+    }
+
+    /**
+     * 指定された位置での、パターン上の位置を返す
+     *
+     * @param frame 再生開始からのサンプル数。{@code startFrame}以降であること
+     * @return パターン上の位置（サンプル）
+     */
+    int positionAt(long frame) {
+        return (int) ((startOffset + frame - startFrame) % length);
+    }
+
+    /**
+     * 指定された位置で再生されているパターンを、このパターンと、それ以前のパターンから探す
+     *
+     * @param frame 再生開始からのサンプル数
+     * @return 再生されているパターン。見つからなければnull
+     */
+    ScheduledPattern find(long frame) {
+        ScheduledPattern p = this;
+        while (p != null && p.startFrame > frame) {
+            p = p.previous;
+        }
+        return p;
+    }
+}
@@ -0,0 +1,51 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+import java.util.Arrays;
+
+/**
+ * {@link Sequence}を構成する区間（イントロ、Aメロなど）を表すクラス.
+ *
+ * 小節の並びと、それを繰り返す回数を持つ。
+ */
+public class Section {
+
+    /** 小節の並び */
+    private final Measure[] measures;
+    /** 繰り返す回数 */
+    private final int repeats;
+
+    /**
+     * 繰り返す回数と小節の並びを指定して、{@code Section}のインスタンスを生成するコンストラクタ
+     *
+     * @param repeats 繰り返す回数
+     * @param measures 小節の並び
+     */
+    public Section(int repeats, Measure... measures) {
+        if (repeats <= 0) {
+            throw new RuntimeException("Repeats(" + repeats + ") should be positive.");
+        }
+        if (measures == null || measures.length == 0) {
+            throw new RuntimeException("Measures should not be empty or null.");
+        }
+        this.repeats = repeats;
+        this.measures = Arrays.copyOf(measures, measures.length);
+    }
+
+    /**
+     * 小節の並びを返す
+     *
+     * @return 小節の並び（コピー）
+     */
+    public Measure[] getMeasures() {
+        return Arrays.copyOf(measures, measures.length);
+    }
+
+    /**
+     * 繰り返す回数を返す
+     *
+     * @return 繰り返す回数
+     */
+    public int getRepeats() {
+        return repeats;
+    }
+}
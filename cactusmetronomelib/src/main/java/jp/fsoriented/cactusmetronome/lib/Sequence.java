@@ -0,0 +1,81 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+import java.util.ArrayList;
+
+/**
+ * 曲全体のクリックの並びを表すクラス.
+ *
+ * 区間（{@link Section}）、小節（{@link Measure}）、クリック（{@link Click}）の階層で表す。
+ * 拍子やテンポの変わる曲、カウントインのついたクリックトラックなど、１つの繰り返しパターンでは表せないものを表現できる。
+ *
+ * {@link Metronome#setSequence(Sequence)}で再生すると、曲全体の波形を生成せず、再生しながらクリック音を足し合わせる。
+ * そのため使用するメモリは、曲の長さではなく、クリック音の種類と小節の種類の数に比例する。
+ * 再生に渡した後にこのオブジェクトを変更しても、再生中の内容には影響しない。
+ */
+public class Sequence {
+
+    /** 区間の並び */
+    private final ArrayList<Section> sections = new ArrayList<Section>();
+    /** 最後まで再生したら、先頭に戻るかどうか */
+    private boolean loop;
+
+    /**
+     * 区間を末尾に追加する
+     *
+     * @param section 区間
+     * @return このオブジェクト
+     */
+    public Sequence add(Section section) {
+        if (section == null) {
+            throw new RuntimeException("Section should not be null.");
+        }
+        sections.add(section);
+        return this;
+    }
+
+    /**
+     * 最後まで再生したら先頭に戻るかどうかを指定する. デフォルトはfalse（最後まで再生したら無音になる）。
+     *
+     * @param loop 先頭に戻るならtrue
+     * @return このオブジェクト
+     */
+    public Sequence setLoop(boolean loop) {
+        this.loop = loop;
+        return this;
+    }
+
+    /**
+     * 最後まで再生したら先頭に戻るかどうかを返す
+     *
+     * @return 先頭に戻るならtrue
+     */
+    public boolean isLoop() {
+        return loop;
+    }
+
+    /**
+     * 区間の並びを返す
+     *
+     * @return 区間の並び（コピー）
+     */
+    public Section[] getSections() {
+        return sections.toArray(new Section[sections.size()]);
+    }
+
+    /**
+     * 全体の長さを返す
+     *
+     * @return 全体の長さ（サンプル）
+     */
+    public long getLength() {
+        long total = 0;
+        for (Section section : sections) {
+            long sectionLength = 0;
+            for (Measure measure : section.getMeasures()) {
+                sectionLength += measure.getLength();
+            }
+            total += sectionLength * section.getRepeats();
+        }
+        return total;
+    }
+}
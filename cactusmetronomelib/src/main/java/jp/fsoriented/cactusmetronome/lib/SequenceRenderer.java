@@ -0,0 +1,234 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * （内部クラス）{@link Sequence}を再生しながら、クリック音を足し合わせる{@link StreamRenderer}.
+ *
+ * 区間、繰り返し、小節、クリックの位置を状態として持ち、区間ごとに鳴り始めるクリック音を{@link VoiceMixer}に登録する。
+ * 小節は種類ごとに１つだけ保持し、クリック音の波形は種類ごとに共有するので、メモリは曲の長さに依存しない。
+ * 音量と定位だけが異なるクリックは、同じ波形を共有する。
+ * 通知するクリックのインデックスは、小節内のクリックの番号（{@code when}の順）である。
+ */
+class SequenceRenderer extends VoiceRenderer {
+
+    /** 区間ごとの、小節の種類の番号の並び */
+    private final int[][] sectionMeasures;
+    /** 区間ごとの繰り返す回数 */
+    private final int[] sectionRepeats;
+    /** 小節の種類ごとの長さ */
+    private final int[] measureLengths;
+    /** 小節の種類ごとの、クリックの位置 */
+    private final int[][] measureWhens;
+    /** 小節の種類ごとの、クリック音の波形 */
+    private final short[][][] measureWaves;
+    /** 小節の種類ごとの、クリック音の音量 */
+    private final float[][] measureGains;
+    /** 小節の種類ごとの、クリック音の定位 */
+    private final float[][] measurePans;
+    /** 最後まで再生したら先頭に戻るかどうか */
+    private final boolean loop;
+
+    /** 再生中の区間 */
+    private int section;
+    /** 再生中の区間の、繰り返しの回数 */
+    private int repeat;
+    /** 再生中の区間内の、小節の番号 */
+    private int measureInSection;
+    /** 次に鳴らす、小節内のクリックの番号 */
+    private int clickIndex;
+    /** 再生中の小節の先頭（生成を開始してからのサンプル数） */
+    private long measureStart;
+    /** 最後まで再生したかどうか */
+    private boolean finished;
+
+    /**
+     * コンストラクタ. 配列は共有するので、書き換えてはならない。
+     */
+    SequenceRenderer(int[][] sectionMeasures, int[] sectionRepeats, int[] measureLengths,
+                     int[][] measureWhens, short[][][] measureWaves, float[][] measureGains, float[][] measurePans,
+                     boolean loop) {
+        this.sectionMeasures = sectionMeasures;
+        this.sectionRepeats = sectionRepeats;
+        this.measureLengths = measureLengths;
+        this.measureWhens = measureWhens;
+        this.measureWaves = measureWaves;
+        this.measureGains = measureGains;
+        this.measurePans = measurePans;
+        this.loop = loop;
+        this.finished = sectionMeasures.length == 0;
+    }
+
+    @Override
+    protected void trigger(long position, int frames, long frame, BeatEventQueue events) {
+        long end = position + frames;
+        while (!finished) {
+            int measure = sectionMeasures[section][measureInSection];
+            int[] whens = measureWhens[measure];
+            short[][] waves = measureWaves[measure];
+            float[] gains = measureGains[measure];
+            float[] pans = measurePans[measure];
+            while (clickIndex < whens.length) {
+                long t = measureStart + whens[clickIndex];
+                if (t >= end) {
+                    return;
+                }
+                int delay = (int) (t - position);
+                mixer.trigger(waves[clickIndex], delay, gains[clickIndex], pans[clickIndex]);
+                if (events != null) {
+                    events.offer(clickIndex, frame + delay);
+                }
+                clickIndex++;
+            }
+            long next = measureStart + measureLengths[measure];
+            if (next >= end) {
+                return;
+            }
+            measureStart = next;
+            clickIndex = 0;
+            advanceMeasure();
+        }
+    }
+
+    /**
+     * 次の小節に進む
+     */
+    private void advanceMeasure() {
+        measureInSection++;
+        if (measureInSection < sectionMeasures[section].length) {
+            return;
+        }
+        measureInSection = 0;
+        repeat++;
+        if (repeat < sectionRepeats[section]) {
+            return;
+        }
+        repeat = 0;
+        section++;
+        if (section < sectionMeasures.length) {
+            return;
+        }
+        section = 0;
+        finished = !loop;
+    }
+
+    /**
+     * {@link SequenceRenderer}を生成するファクトリ.
+     *
+     * 生成時に{@link Sequence}を配列に展開し、クリック音の波形を生成しておく。
+     */
+    static class Factory implements StreamRenderer.Factory {
+        /** 区間ごとの、小節の種類の番号の並び */
+        private final int[][] sectionMeasures;
+        /** 区間ごとの繰り返す回数 */
+        private final int[] sectionRepeats;
+        /** 小節の種類ごとの長さ */
+        private final int[] measureLengths;
+        /** 小節の種類ごとの、クリックの位置 */
+        private final int[][] measureWhens;
+        /** 小節の種類ごとの、クリック音の波形 */
+        private final short[][][] measureWaves;
+        /** 小節の種類ごとの、クリック音の音量 */
+        private final float[][] measureGains;
+        /** 小節の種類ごとの、クリック音の定位 */
+        private final float[][] measurePans;
+        /** 最後まで再生したら先頭に戻るかどうか */
+        private final boolean loop;
+
+        /**
+         * コンストラクタ
+         *
+         * @param sequence 曲全体のクリックの並び
+         * @param frequency サンプリング周波数(Hz)
+         */
+        Factory(Sequence sequence, int frequency) {
+            Section[] sections = sequence.getSections();
+            // 小節の種類に番号をつける
+            IdentityHashMap<Measure, Integer> ids = new IdentityHashMap<Measure, Integer>();
+            sectionMeasures = new int[sections.length][];
+            sectionRepeats = new int[sections.length];
+            for (int s = 0; s < sections.length; s++) {
+                Measure[] measures = sections[s].getMeasures();
+                sectionMeasures[s] = new int[measures.length];
+                sectionRepeats[s] = sections[s].getRepeats();
+                for (int m = 0; m < measures.length; m++) {
+                    Integer id = ids.get(measures[m]);
+                    if (id == null) {
+                        id = ids.size();
+                        ids.put(measures[m], id);
+                    }
+                    sectionMeasures[s][m] = id;
+                }
+            }
+            // 小節の種類ごとに、クリックの位置と波形を展開する. 波形はクリック音の種類ごとに共有する
+            HashMap<Object, short[]> waves = new HashMap<Object, short[]>();
+            measureLengths = new int[ids.size()];
+            measureWhens = new int[ids.size()][];
+            measureWaves = new short[ids.size()][][];
+            measureGains = new float[ids.size()][];
+            measurePans = new float[ids.size()][];
+            for (Measure measure : ids.keySet()) {
+                int id = ids.get(measure);
+                Click[] clicks = measure.clicks();
+                measureLengths[id] = measure.getLength();
+                measureWhens[id] = new int[clicks.length];
+                measureWaves[id] = new short[clicks.length][];
+                measureGains[id] = new float[clicks.length];
+                measurePans[id] = new float[clicks.length];
+                for (int c = 0; c < clicks.length; c++) {
+                    measureWhens[id][c] = clicks[c].when;
+                    measureWaves[id][c] = sharedWaveform(waves, clicks[c], frequency);
+                    measureGains[id][c] = clicks[c].gain;
+                    measurePans[id][c] = clicks[c].pan;
+                }
+            }
+            loop = sequence.isLoop();
+        }
+
+        /**
+         * クリック音の種類ごとに共有する波形を返す
+         */
+        private static short[] sharedWaveform(HashMap<Object, short[]> waves, Click click, int frequency) {
+            // キャッシュできるコールバックは等しいものどうし、そうでなければ同じインスタンスどうしで共有する
+            Object callbackKey = click.callback instanceof CacheableClickCallback
+                    ? click.callback : new IdentityKey(click.callback);
+            Object key = Arrays.asList(callbackKey, click.length);
+            short[] wave = waves.get(key);
+            if (wave == null) {
+                wave = Click.waveformOf(click, frequency);
+                waves.put(key, wave);
+            }
+            return wave;
+        }
+
+        @Override
+        public StreamRenderer newRenderer() {
+            return new SequenceRenderer(sectionMeasures, sectionRepeats, measureLengths, measureWhens, measureWaves,
+                    measureGains, measurePans, loop);
+        }
+    }
+
+    /**
+     * 同一性で比較するキー
+     */
+    private static class IdentityKey {
+        /** 比較するオブジェクト */
+        final Object target;
+
+        IdentityKey(Object target) {
+            this.target = target;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof IdentityKey && ((IdentityKey) o).target == target;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(target);
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * {@code OutputStream}に出力する{@link AudioSink}.
+ *
+ * Androidに依存しないため、JVM上でのベンチマークや負荷試験に使う。
+ * 波形は16bitリトルエンディアンのPCMとしてストリームに書き込む（WAVのヘッダは書かない）。
+ * メモリに書き込むには{@code ByteArrayOutputStream}を、ファイルに書き込むには{@code FileOutputStream}を指定する。
+ *
+ * 実時間モードでは、出力バッファ（{@code bufferFrames}）が一杯になると、再生が追いつくまで{@code write}がブロックする。
+ * {@code AudioTrack}と同じ速度で書き込みが進むので、再生スレッドのタイミングを再現できる。
+ */
+public class StreamAudioSink implements AudioSink {
+
+    /** 書き込み先 */
+    private final OutputStream out;
+    /** サンプリング周波数(Hz) */
+    private final int frequency;
+    /** 実時間モードかどうか */
+    private final boolean realtime;
+    /** 実時間モードで、再生を待たずに書き込めるデータ数 */
+    private final int bufferFrames;
+    /** 変換用のバッファ */
+    private byte[] bytes = new byte[0];
+    /** ボリューム */
+    private volatile float volume = 1.0f;
+    /** 再生中かどうか */
+    private volatile boolean playing;
+    /** 一時停止中かどうか */
+    private boolean paused;
+    /** 一時停止した時点の再生位置 */
+    private long pausedPosition;
+    /** 再生を開始した時刻. 一時停止から再開したときは、一時停止していた時間の分だけ後ろにずらす */
+    private volatile long playStartNanos;
+    /** 再生を開始した時点で書き込み済みのデータ数 */
+    private volatile long playStartFrames;
+    /** 書き込み済みのデータ数 */
+    private volatile long framesWritten;
+    /** 実時間モードでないときに、再生されたものとみなすデータ数（前回までの書き込みの分） */
+    private volatile long framesPlayed;
+    /** 最後に発生したエラー */
+    private volatile IOException error;
+
+    /**
+     * 書き込み先を指定して、実時間モードでない{@code StreamAudioSink}のインスタンスを生成するコンストラクタ
+     *
+     * @param out 書き込み先
+     * @param frequency サンプリング周波数(Hz)
+     */
+    public StreamAudioSink(OutputStream out, int frequency) {
+        this(out, frequency, false, 0);
+    }
+
+    /**
+     * 書き込み先と実時間モードを指定して、{@code StreamAudioSink}のインスタンスを生成するコンストラクタ
+     *
+     * @param out 書き込み先
+     * @param frequency サンプリング周波数(Hz)
+     * @param realtime 実時間モードにするかどうか
+     * @param bufferFrames 実時間モードで、再生を待たずに書き込めるデータ数
+     */
+    public StreamAudioSink(OutputStream out, int frequency, boolean realtime, int bufferFrames) {
+        if (out == null) {
+            throw new RuntimeException("Output stream should not be null.");
+        }
+        this.out = out;
+        this.frequency = frequency;
+        this.realtime = realtime;
+        this.bufferFrames = bufferFrames;
+    }
+
+    @Override
+    public int write(short[] buffer, int offset, int length) {
+        framesPlayed = framesWritten;
+        if (bytes.length < length * 2) {
+            bytes = new byte[length * 2];
+        }
+        for (int i = 0; i < length; i++) {
+            short s = buffer[offset + i];
+            bytes[i * 2] = (byte) s;
+            bytes[i * 2 + 1] = (byte) (s >> 8);
+        }
+        try {
+            out.write(bytes, 0, length * 2);
+        } catch (IOException e) {
+            error = e;
+            return -1;
+        }
+        framesWritten += length;
+        if (realtime && playing) {
+            waitForPlayback();
+        }
+        return length;
+    }
+
+    /**
+     * 書き込み済みのデータが、バッファに収まるまで再生が進むのを待つ
+     */
+    private void waitForPlayback() {
+        long ahead = framesWritten - playStartFrames - bufferFrames;
+        if (ahead <= 0) {
+            return;
+        }
+        long due = playStartNanos + ahead * 1000L * 1000 * 1000 / frequency;
+        long wait = due - System.nanoTime();
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void flush() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            error = e;
+        }
+    }
+
+    @Override
+    public synchronized void play() {
+        if (paused) {
+            playStartNanos = System.nanoTime() - pausedPosition * 1000L * 1000 * 1000 / frequency;
+            paused = false;
+        } else {
+            playStartNanos = System.nanoTime();
+            playStartFrames = framesWritten;
+        }
+        playing = true;
+    }
+
+    @Override
+    public synchronized void stop() {
+        playing = false;
+        paused = false;
+    }
+
+    @Override
+    public synchronized void pause() {
+        if (!playing) {
+            return;
+        }
+        pausedPosition = getPlaybackPosition();
+        paused = true;
+        playing = false;
+    }
+
+    @Override
+    public void setVolume(float vol) {
+        volume = vol;
+    }
+
+    @Override
+    public void release() {
+        stop();
+        flush();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * 実時間モードでは、{@code play}からの経過時間の分だけ再生が進んだものとみなす。ただし書き込んだデータ数を超えない。
+     * 実時間モードでなければ、書き込んだデータは次の書き込みが始まった時点で再生されたものとみなす。
+     * つまり出力先のバッファには、常に最後に書き込んだ分だけが残っていることになる。
+     */
+    @Override
+    public synchronized long getPlaybackPosition() {
+        if (!playing) {
+            return paused ? pausedPosition : 0;
+        }
+        if (!realtime) {
+            return Math.max(0, framesPlayed - playStartFrames);
+        }
+        long written = framesWritten - playStartFrames;
+        long elapsed = (System.nanoTime() - playStartNanos) * frequency / 1000 / 1000 / 1000;
+        return Math.min(elapsed, written);
+    }
+
+    /**
+     * ボリュームを返す. このクラスはボリュームを記録するだけで、波形には反映しない。
+     *
+     * @return ボリューム[0..1]
+     */
+    public float getVolume() {
+        return volume;
+    }
+
+    /**
+     * 書き込み済みのデータ数を返す
+     *
+     * @return 書き込み済みのデータ数
+     */
+    public long getFramesWritten() {
+        return framesWritten;
+    }
+
+    /**
+     * 最後に発生したエラーを返す
+     *
+     * @return 書き込み時に発生した例外。発生していなければnull
+     */
+    public IOException getError() {
+        return error;
+    }
+
+    /**
+     * 同じ書き込み先に出力する{@link StreamAudioSink}を生成するファクトリ.
+     *
+     * 再生を開始するたびに、同じストリームに続けて書き込む。ストリームは閉じないので、呼び出し側で閉じること。
+     */
+    public static class Factory implements AudioSink.Factory {
+        /** 書き込み先 */
+        private final OutputStream out;
+        /** 実時間モードかどうか */
+        private final boolean realtime;
+        /** 実時間モードで、再生を待たずに書き込めるデータ数 */
+        private final int bufferFrames;
+        /** ネイティブなサンプリング周波数(Hz) */
+        private final int nativeSampleRate;
+
+        /**
+         * ネイティブなサンプリング周波数を44.1kHzとするコンストラクタ
+         *
+         * @param out 書き込み先
+         * @param realtime 実時間モードにするかどうか
+         * @param bufferFrames 実時間モードで、再生を待たずに書き込めるデータ数
+         */
+        public Factory(OutputStream out, boolean realtime, int bufferFrames) {
+            this(out, realtime, bufferFrames, 44100);
+        }
+
+        /**
+         * コンストラクタ
+         *
+         * @param out 書き込み先
+         * @param realtime 実時間モードにするかどうか
+         * @param bufferFrames 実時間モードで、再生を待たずに書き込めるデータ数
+         * @param nativeSampleRate ネイティブとみなすサンプリング周波数(Hz)
+         */
+        public Factory(OutputStream out, boolean realtime, int bufferFrames, int nativeSampleRate) {
+            this.out = out;
+            this.realtime = realtime;
+            this.bufferFrames = bufferFrames;
+            this.nativeSampleRate = nativeSampleRate;
+        }
+
+        @Override
+        public AudioSink createAudioSink(int frequency) {
+            return new StreamAudioSink(out, frequency, realtime, bufferFrames);
+        }
+
+        @Override
+        public int getNativeSampleRate() {
+            return nativeSampleRate;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+/**
+ * （内部インターフェース）あらかじめ生成したパターンを使わずに、ブロックごとに波形を生成するオブジェクト.
+ *
+ * テンポの変化する再生のように、繰り返しの１回分を{@code short[]}に生成しておけないものに使う。
+ * 生成中の位置などの状態を持つので、インスタンスは１回の再生にだけ使う。{@code render}は再生スレッドからのみ呼び出す。
+ * 実装は、{@code render}の中でオブジェクトを生成してはならない。
+ */
+interface StreamRenderer {
+
+    /**
+     * 次のブロックの波形を生成して、バッファに書き出す.
+     *
+     * 書き出す範囲の元の内容は上書きする（足し合わせない）。
+     *
+     * @param bus 書き出し先のバッファ
+     * @param offset 書き出し先の先頭（サンプル）
+     * @param frames 書き出す長さ（サンプル）
+     * @param frame ブロックの先頭の位置（再生開始からのサンプル数）。クリックの通知に使う
+     * @param events クリックが鳴る位置の通知先。通知しないときはnull
+     */
+    public void render(MixBus bus, int offset, int frames, long frame, BeatEventQueue events);
+
+    /**
+     * {@link StreamRenderer}を生成するファクトリ.
+     *
+     * 再生を開始するたびに、新しい{@code StreamRenderer}を生成するために使う。
+     */
+    public interface Factory {
+        /**
+         * 先頭から再生する{@link StreamRenderer}を生成する
+         *
+         * @return 生成したオブジェクト
+         */
+        public StreamRenderer newRenderer();
+    }
+}
@@ -0,0 +1,25 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+/**
+ * 再生中にクリックパターンを変更したとき、新しいパターンをどの位置から再生するかを表す列挙型.
+ *
+ * @see Metronome#setSwapMode(SwapMode)
+ */
+public enum SwapMode {
+    /**
+     * 次のブロックから、新しいパターンを先頭から再生する. 小節の途中でも頭に戻る。
+     */
+    RESTART,
+    /**
+     * 次のブロックから、現在の再生位置（サンプル）を保ったまま新しいパターンを再生する.
+     *
+     * 新しいパターンのほうが短いときは、再生位置をパターンの長さで割った余りの位置から再生する。
+     */
+    IMMEDIATE,
+    /**
+     * 現在のパターンを最後まで再生してから、新しいパターンを先頭から再生する.
+     *
+     * 切り替えはサンプル単位で正確に、小節の境目で行われる。
+     */
+    NEXT_BAR
+}
@@ -0,0 +1,202 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+import java.util.Arrays;
+
+/**
+ * 拍ごとのテンポ（BPM）の変化を表すクラス.
+ *
+ * 最初のテンポから始めて、区間を順に追加して作る。区間は拍数で長さを指定し、その間テンポを一定に保つか、
+ * 線形または指数的に目標のテンポへ変化させる（アッチェレランド、リタルダンド）。
+ * 最後の区間が終わった後は、最後のテンポのまま続く。
+ *
+ * {@link Metronome#setTempoMap(TempoMap, ClickCallback, ClickCallback, int)}で再生すると、
+ * 小節ごとにパターンを生成し直すことなく、テンポに従ってサンプル単位で正確な位置にクリック音が鳴る。
+ * 再生に渡した後にこのオブジェクトを変更しても、再生中のテンポには影響しない。
+ */
+public class TempoMap {
+
+    /** 区間の拍数 */
+    private int[] beats = new int[0];
+    /** 区間の開始時のテンポ */
+    private double[] fromBpm = new double[0];
+    /** 区間の終了時のテンポ */
+    private double[] toBpm = new double[0];
+    /** 区間のテンポを指数的に変化させるかどうか */
+    private boolean[] exponential = new boolean[0];
+    /** 1小節の拍数 */
+    private final int beatsPerBar;
+    /** 最後の区間の終了時のテンポ */
+    private double endBpm;
+
+    /**
+     * 最初のテンポと拍子を指定して、{@code TempoMap}のインスタンスを生成するコンストラクタ
+     *
+     * @param initialBpm 最初のテンポ（BPM）
+     * @param beatsPerBar 1小節の拍数。小節の頭の拍はアクセントのクリック音で鳴る
+     */
+    public TempoMap(double initialBpm, int beatsPerBar) {
+        checkBpm(initialBpm);
+        if (beatsPerBar <= 0) {
+            throw new RuntimeException("Beats per bar(" + beatsPerBar + ") should be positive.");
+        }
+        this.endBpm = initialBpm;
+        this.beatsPerBar = beatsPerBar;
+    }
+
+    /**
+     * 現在のテンポのまま、指定された拍数の区間を追加する
+     *
+     * @param beatCount 区間の拍数
+     * @return このオブジェクト
+     */
+    public TempoMap hold(int beatCount) {
+        return add(beatCount, endBpm, false);
+    }
+
+    /**
+     * テンポを直ちに変更する. 次に追加する区間は、このテンポから始まる。
+     *
+     * @param bpm テンポ（BPM）
+     * @return このオブジェクト
+     */
+    public TempoMap jump(double bpm) {
+        checkBpm(bpm);
+        endBpm = bpm;
+        return this;
+    }
+
+    /**
+     * テンポを拍ごとに一定の量ずつ変化させる区間を追加する
+     *
+     * @param beatCount 区間の拍数
+     * @param bpm 区間の終了時のテンポ（BPM）
+     * @return このオブジェクト
+     */
+    public TempoMap rampLinear(int beatCount, double bpm) {
+        return add(beatCount, bpm, false);
+    }
+
+    /**
+     * テンポを拍ごとに一定の比率ずつ変化させる区間を追加する
+     *
+     * @param beatCount 区間の拍数
+     * @param bpm 区間の終了時のテンポ（BPM）
+     * @return このオブジェクト
+     */
+    public TempoMap rampExponential(int beatCount, double bpm) {
+        return add(beatCount, bpm, true);
+    }
+
+    /**
+     * 区間を追加する
+     */
+    private TempoMap add(int beatCount, double bpm, boolean exp) {
+        checkBpm(bpm);
+        if (beatCount <= 0) {
+            throw new RuntimeException("Beat count(" + beatCount + ") should be positive.");
+        }
+        int n = beats.length;
+        beats = Arrays.copyOf(beats, n + 1);
+        fromBpm = Arrays.copyOf(fromBpm, n + 1);
+        toBpm = Arrays.copyOf(toBpm, n + 1);
+        exponential = Arrays.copyOf(exponential, n + 1);
+        beats[n] = beatCount;
+        fromBpm[n] = endBpm;
+        toBpm[n] = bpm;
+        exponential[n] = exp;
+        endBpm = bpm;
+        return this;
+    }
+
+    /**
+     * テンポの値を検査する
+     */
+    private static void checkBpm(double bpm) {
+        if (!(bpm > 0)) {
+            throw new RuntimeException("BPM(" + bpm + ") should be positive.");
+        }
+    }
+
+    /**
+     * 1小節の拍数を返す
+     *
+     * @return 1小節の拍数
+     */
+    public int getBeatsPerBar() {
+        return beatsPerBar;
+    }
+
+    /**
+     * 指定された拍のテンポを返す
+     *
+     * @param beat 拍の番号（0はじまり）
+     * @return テンポ（BPM）
+     */
+    public double getBpmAt(long beat) {
+        for (int i = 0; i < beats.length; i++) {
+            if (beat < beats[i]) {
+                return bpmAt(fromBpm[i], toBpm[i], exponential[i], (int) beat, beats[i]);
+            }
+            beat -= beats[i];
+        }
+        return endBpm;
+    }
+
+    /**
+     * 区間内の拍のテンポを計算する
+     *
+     * @param from 区間の開始時のテンポ
+     * @param to 区間の終了時のテンポ
+     * @param exp 指数的に変化させるならtrue
+     * @param k 区間内の拍の番号
+     * @param n 区間の拍数
+     * @return テンポ（BPM）
+     */
+    /*package*/
+    static double bpmAt(double from, double to, boolean exp, int k, int n) {
+        double t = (double) k / n;
+        if (exp) {
+            return from * Math.pow(to / from, t);
+        }
+        return from + (to - from) * t;
+    }
+
+    /**
+     * このオブジェクトの複製を返す
+     *
+     * @return 複製
+     */
+    /*package*/ TempoMap copy() {
+        TempoMap map = new TempoMap(endBpm, beatsPerBar);
+        map.beats = beats.clone();
+        map.fromBpm = fromBpm.clone();
+        map.toBpm = toBpm.clone();
+        map.exponential = exponential.clone();
+        return map;
+    }
+
+    /** @return 区間の拍数（コピー） */
+    /*package*/ int[] getSegmentBeats() {
+        return beats.clone();
+    }
+
+    /** @return 区間の開始時のテンポ（コピー） */
+    /*package*/ double[] getSegmentFromBpm() {
+        return fromBpm.clone();
+    }
+
+    /** @return 区間の終了時のテンポ（コピー） */
+    /*package*/ double[] getSegmentToBpm() {
+        return toBpm.clone();
+    }
+
+    /** @return 区間のテンポを指数的に変化させるかどうか（コピー） */
+    /*package*/ boolean[] getSegmentExponential() {
+        return exponential.clone();
+    }
+
+    /** @return 最後の区間の終了時のテンポ */
+    /*package*/ double getEndBpm() {
+        return endBpm;
+    }
+}
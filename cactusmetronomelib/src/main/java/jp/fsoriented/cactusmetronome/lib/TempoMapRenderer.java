@@ -0,0 +1,129 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+/**
+ * （内部クラス）{@link TempoMap}に従って、拍ごとにクリック音を鳴らす{@link StreamRenderer}.
+ *
+ * 次の拍の位置を倍精度で積算し、四捨五入したサンプル位置でクリック音を鳴らすので、テンポが変化しても誤差が蓄積しない。
+ * テンポの区間とクリック音の波形は生成時に複製して持つので、再生スレッドではオブジェクトを生成しない。
+ * 通知するクリックのインデックスは、小節内の拍の番号（0が小節の頭）である。
+ */
+class TempoMapRenderer extends VoiceRenderer {
+
+    /** 区間の拍数 */
+    private final int[] beats;
+    /** 区間の開始時のテンポ */
+    private final double[] fromBpm;
+    /** 区間の終了時のテンポ */
+    private final double[] toBpm;
+    /** 区間のテンポを指数的に変化させるかどうか */
+    private final boolean[] exponential;
+    /** 最後の区間の後のテンポ */
+    private final double endBpm;
+    /** 1小節の拍数 */
+    private final int beatsPerBar;
+    /** 小節の頭のクリック音 */
+    private final short[] accentWave;
+    /** それ以外の拍のクリック音 */
+    private final short[] beatWave;
+    /** サンプリング周波数(Hz) */
+    private final int frequency;
+
+    /** 次の拍の区間 */
+    private int segment;
+    /** 次の拍の、区間内の番号 */
+    private int beatInSegment;
+    /** 次の拍の、小節内の番号 */
+    private int beatInBar;
+    /** 次の拍の位置（生成を開始してからのサンプル数、小数を含む） */
+    private double nextBeatTime;
+    /** 次の拍の位置（サンプル） */
+    private long nextBeat;
+
+    /**
+     * コンストラクタ
+     *
+     * @param map テンポの変化
+     * @param accentWave 小節の頭のクリック音
+     * @param beatWave それ以外の拍のクリック音
+     * @param frequency サンプリング周波数(Hz)
+     */
+    TempoMapRenderer(TempoMap map, short[] accentWave, short[] beatWave, int frequency) {
+        this.beats = map.getSegmentBeats();
+        this.fromBpm = map.getSegmentFromBpm();
+        this.toBpm = map.getSegmentToBpm();
+        this.exponential = map.getSegmentExponential();
+        this.endBpm = map.getEndBpm();
+        this.beatsPerBar = map.getBeatsPerBar();
+        this.accentWave = accentWave;
+        this.beatWave = beatWave;
+        this.frequency = frequency;
+    }
+
+    @Override
+    protected void trigger(long position, int frames, long frame, BeatEventQueue events) {
+        long end = position + frames;
+        while (nextBeat < end) {
+            int delay = (int) (nextBeat - position);
+            mixer.trigger(beatInBar == 0 ? accentWave : beatWave, delay);
+            if (events != null) {
+                events.offer(beatInBar, frame + delay);
+            }
+            advance();
+        }
+    }
+
+    /**
+     * 次の拍に進む
+     */
+    private void advance() {
+        double bpm;
+        if (segment < beats.length) {
+            bpm = TempoMap.bpmAt(fromBpm[segment], toBpm[segment], exponential[segment], beatInSegment, beats[segment]);
+            beatInSegment++;
+            if (beatInSegment >= beats[segment]) {
+                segment++;
+                beatInSegment = 0;
+            }
+        } else {
+            bpm = endBpm;
+        }
+        nextBeatTime += 60.0 * frequency / bpm;
+        nextBeat = Math.round(nextBeatTime);
+        beatInBar = (beatInBar + 1) % beatsPerBar;
+    }
+
+    /**
+     * {@link TempoMapRenderer}を生成するファクトリ
+     */
+    static class Factory implements StreamRenderer.Factory {
+        /** テンポの変化（複製） */
+        private final TempoMap map;
+        /** 小節の頭のクリック音 */
+        private final short[] accentWave;
+        /** それ以外の拍のクリック音 */
+        private final short[] beatWave;
+        /** サンプリング周波数(Hz) */
+        private final int frequency;
+
+        /**
+         * コンストラクタ. クリック音の波形はここで生成する。
+         *
+         * @param map テンポの変化
+         * @param accent 小節の頭のクリック音のコールバック
+         * @param beat それ以外の拍のクリック音のコールバック
+         * @param clickLength クリック音の長さ（サンプル）
+         * @param frequency サンプリング周波数(Hz)
+         */
+        Factory(TempoMap map, ClickCallback accent, ClickCallback beat, int clickLength, int frequency) {
+            this.map = map.copy();
+            this.accentWave = Click.waveformOf(new Click(0, clickLength, accent), frequency);
+            this.beatWave = Click.waveformOf(new Click(0, clickLength, beat), frequency);
+            this.frequency = frequency;
+        }
+
+        @Override
+        public StreamRenderer newRenderer() {
+            return new TempoMapRenderer(map, accentWave, beatWave, frequency);
+        }
+    }
+}
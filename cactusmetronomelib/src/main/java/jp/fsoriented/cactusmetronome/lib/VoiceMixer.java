@@ -0,0 +1,118 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+/**
+ * （内部クラス）鳴っている最中のクリック音（ボイス）を、ブロックごとに足し合わせるクラス.
+ *
+ * ボイスの枠は固定数をあらかじめ確保しておき、{@code trigger}と{@code mix}ではオブジェクトを生成しない。
+ * 枠が足りないときは、最も長く鳴っているボイスを止めて使う。
+ * ボイスはブロックの境目をまたいで鳴り続けるので、出力はブロックの長さによらない。
+ * ボイスごとに音量と定位を持ち、ステレオのときは左右の音量に分けて{@link MixBus}に足す。
+ */
+class VoiceMixer {
+
+    /** 同時に鳴らせるボイスの数 */
+    static final int MAX_VOICES = 32;
+    /** 音量の最大値（8倍） */
+    static final float GAIN_MAX = 8.0f;
+
+    /** ボイスの波形。鳴っていない枠はnull */
+    private final short[][] waves = new short[MAX_VOICES][];
+    /** ボイスの、次に足す波形上の位置 */
+    private final int[] positions = new int[MAX_VOICES];
+    /** ボイスが、次のブロックの何サンプル目から鳴り始めるか */
+    private final int[] delays = new int[MAX_VOICES];
+    /** ボイスの、左チャンネル（モノラルのときは唯一のチャンネル）の音量 */
+    private final float[] lefts = new float[MAX_VOICES];
+    /** ボイスの、右チャンネルの音量 */
+    private final float[] rights = new float[MAX_VOICES];
+
+    /**
+     * ボイスを鳴らし始める
+     *
+     * @param wave クリック音の波形
+     * @param delay 次に{@code mix}するブロックの、何サンプル目から鳴らすか
+     */
+    public void trigger(short[] wave, int delay) {
+        trigger(wave, delay, 1.0f, 0.0f);
+    }
+
+    /**
+     * 音量と定位を指定して、ボイスを鳴らし始める.
+     *
+     * 定位は、中央では左右とも{@code gain}倍、左に振ると右の音量だけを下げる（右も同様）。
+     * モノラルで出力するときは、定位は無視して{@code gain}倍で足す。
+     *
+     * @param wave クリック音の波形
+     * @param delay 次に{@code mix}するブロックの、何サンプル目から鳴らすか
+     * @param gain 音量の倍率。[0..8]の範囲に丸める
+     * @param pan 定位[-1..1]。-1が左、0が中央、1が右
+     */
+    public void trigger(short[] wave, int delay, float gain, float pan) {
+        int slot = -1;
+        int oldest = -1;
+        for (int i = 0; i < MAX_VOICES; i++) {
+            if (waves[i] == null) {
+                slot = i;
+                break;
+            }
+            if (oldest < 0 || positions[i] > positions[oldest]) {
+                oldest = i;
+            }
+        }
+        if (slot < 0) {
+            slot = oldest;
+        }
+        float g = gain > 0 ? Math.min(GAIN_MAX, gain) : 0f;
+        waves[slot] = wave;
+        positions[slot] = 0;
+        delays[slot] = delay;
+        lefts[slot] = g;
+        rights[slot] = g;
+        if (pan > 0) {
+            lefts[slot] = g * (1 - Math.min(1, pan));
+        } else if (pan < 0) {
+            rights[slot] = g * (1 + Math.max(-1, pan));
+        }
+    }
+
+    /**
+     * 鳴っているボイスを、バッファに足す. 鳴り終わったボイスの枠は空く。
+     *
+     * @param bus 足し合わせる先のバッファ
+     * @param offset ブロックの先頭（バッファ上の位置）
+     * @param frames ブロックの長さ
+     */
+    public void mix(MixBus bus, int offset, int frames) {
+        boolean mono = bus.channels == 1;
+        for (int v = 0; v < MAX_VOICES; v++) {
+            short[] wave = waves[v];
+            if (wave == null) {
+                continue;
+            }
+            int start = delays[v];
+            if (start >= frames) {
+                delays[v] -= frames;
+                continue;
+            }
+            int pos = positions[v];
+            int n = Math.min(frames - start, wave.length - pos);
+            // モノラルでは定位を無視する（中央に置いたのと同じ）
+            float left = mono ? Math.max(lefts[v], rights[v]) : lefts[v];
+            bus.add(wave, pos, offset + start, n, left, rights[v]);
+            positions[v] = pos + n;
+            delays[v] = 0;
+            if (positions[v] >= wave.length) {
+                waves[v] = null;
+            }
+        }
+    }
+
+    /**
+     * すべてのボイスを止める
+     */
+    public void clear() {
+        for (int v = 0; v < MAX_VOICES; v++) {
+            waves[v] = null;
+        }
+    }
+}
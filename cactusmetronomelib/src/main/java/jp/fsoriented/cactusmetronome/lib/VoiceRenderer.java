@@ -0,0 +1,41 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+/**
+ * （内部クラス）クリック音を鳴らすタイミングを決め、{@link VoiceMixer}で足し合わせて波形を生成する{@link StreamRenderer}の基底クラス.
+ *
+ * ブロックを{@link #CHUNK_FRAMES}以下の区間に分け、区間ごとに{@code trigger}でその区間に鳴り始めるクリック音を決めてから、
+ * {@link MixBus}に直接足し合わせる。飽和させるのは、出力先の形式に変換するときである。
+ */
+abstract class VoiceRenderer implements StreamRenderer {
+
+    /** 一度に足し合わせる区間の最大の長さ（サンプル） */
+    static final int CHUNK_FRAMES = 1024;
+
+    /** 鳴っている最中のクリック音 */
+    protected final VoiceMixer mixer = new VoiceMixer();
+    /** 生成を開始してからのサンプル数 */
+    private long position;
+
+    @Override
+    public void render(MixBus bus, int offset, int frames, long frame, BeatEventQueue events) {
+        bus.clear(offset, frames);
+        int done = 0;
+        while (done < frames) {
+            int n = Math.min(CHUNK_FRAMES, frames - done);
+            trigger(position, n, frame + done, events);
+            mixer.mix(bus, offset + done, n);
+            position += n;
+            done += n;
+        }
+    }
+
+    /**
+     * 指定された区間で鳴り始めるクリック音を、{@code mixer}に登録する.
+     *
+     * @param position 区間の先頭（生成を開始してからのサンプル数）
+     * @param frames 区間の長さ
+     * @param frame 区間の先頭（再生開始からのサンプル数）。クリックの通知に使う
+     * @param events クリックが鳴る位置の通知先。通知しないときはnull
+     */
+    protected abstract void trigger(long position, int frames, long frame, BeatEventQueue events);
+}
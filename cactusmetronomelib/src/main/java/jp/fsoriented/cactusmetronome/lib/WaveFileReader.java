@@ -0,0 +1,119 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * （内部クラス）16bit PCMのWAVファイルを読み込むクラス.
+ *
+ * メモリマップしたファイルなどの{@code ByteBuffer}からチャンクを探し、波形をモノラルの{@code short[]}として取り出す。
+ * ステレオ以上の場合は、全チャンネルの平均をとる。
+ */
+class WaveFileReader {
+
+    /** WAVE_FORMAT_PCM */
+    private static final int FORMAT_PCM = 1;
+    /** WAVE_FORMAT_EXTENSIBLE */
+    private static final int FORMAT_EXTENSIBLE = 0xFFFE;
+
+    /** サンプリング周波数(Hz) */
+    private final int sampleRate;
+    /** 波形（モノラル） */
+    private final short[] samples;
+
+    /**
+     * コンストラクタ. 波形を読み込む。
+     *
+     * @param wav WAVファイルの内容。{@code position}から読み込み、内容は変更しない
+     * @throws IOException 16bit PCMのWAVファイルでないとき
+     */
+    public WaveFileReader(ByteBuffer wav) throws IOException {
+        ByteBuffer buf = wav.slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (buf.remaining() < 12 || !hasTag(buf, 0, "RIFF") || !hasTag(buf, 8, "WAVE")) {
+            throw new IOException("Not a RIFF/WAVE file.");
+        }
+        int channels = 0;
+        int rate = 0;
+        int dataOffset = -1;
+        int dataSize = 0;
+        int pos = 12;
+        while (pos + 8 <= buf.limit()) {
+            long size = buf.getInt(pos + 4) & 0xFFFFFFFFL;
+            long remaining = buf.limit() - (pos + 8);
+            if (hasTag(buf, pos, "fmt ")) {
+                if (size < 16 || size > remaining) {
+                    throw new IOException("fmt chunk size(" + size + ") is invalid.");
+                }
+                int format = buf.getShort(pos + 8) & 0xFFFF;
+                int bits = buf.getShort(pos + 22) & 0xFFFF;
+                if ((format != FORMAT_PCM && format != FORMAT_EXTENSIBLE) || bits != 16) {
+                    throw new IOException("Unsupported WAV format(" + format + ", " + bits + " bits). Only 16bit PCM is supported.");
+                }
+                channels = buf.getShort(pos + 10) & 0xFFFF;
+                rate = buf.getInt(pos + 12);
+            } else if (hasTag(buf, pos, "data")) {
+                dataOffset = pos + 8;
+                // 途中で切れたファイルは、読める分だけ読む
+                dataSize = (int) Math.min(size, buf.limit() - dataOffset);
+                break;
+            }
+            if (size > remaining) {
+                throw new IOException("Chunk size(" + size + ") exceeds the file length.");
+            }
+            // チャンクは2バイト境界に揃えられている（最後のチャンクは詰め物が省かれていてもよい）
+            pos = (int) Math.min(pos + 8 + size + (size & 1), buf.limit());
+        }
+        if (channels <= 0 || rate <= 0 || dataOffset < 0) {
+            throw new IOException("WAV file has no fmt or data chunk.");
+        }
+        buf.position(dataOffset);
+        buf.limit(dataOffset + dataSize);
+        ShortBuffer pcm = buf.slice().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+        int frames = pcm.remaining() / channels;
+        samples = new short[frames];
+        if (channels == 1) {
+            pcm.get(samples);
+        } else {
+            for (int i = 0; i < frames; i++) {
+                int sum = 0;
+                for (int ch = 0; ch < channels; ch++) {
+                    sum += pcm.get(i * channels + ch);
+                }
+                samples[i] = (short) (sum / channels);
+            }
+        }
+        sampleRate = rate;
+    }
+
+    /**
+     * 指定された位置に、指定されたタグがあるかどうか
+     */
+    private static boolean hasTag(ByteBuffer buf, int pos, String tag) {
+        for (int i = 0; i < 4; i++) {
+            if (buf.get(pos + i) != tag.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * サンプリング周波数を返す
+     *
+     * @return サンプリング周波数(Hz)
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * 波形を返す
+     *
+     * @return 波形（モノラル）
+     */
+    public short[] getSamples() {
+        return samples;
+    }
+}
@@ -0,0 +1,214 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * （内部クラス）16bit PCMのWAVファイルを、少しずつ書き込むクラス.
+ *
+ * 波形は再利用するダイレクトバッファで変換しながら{@code FileChannel}に書き込むので、全体をメモリ上に持つ必要はない。
+ * データが4GBを超える場合はRF64形式で書き込む。データの長さが事前に分からないときは、ヘッダにJUNKチャンクで領域を確保しておき、
+ * {@code close}の時点で4GBを超えていれば、それをds64チャンクに書き換えてRF64形式にする。
+ */
+class WaveFileWriter {
+
+    /** RIFF形式で書けるファイルサイズの上限 */
+    private static final long RIFF_LIMIT = 0xFFFFFFFFL;
+    /** ds64チャンク（またはその領域を確保するJUNKチャンク）の中身の大きさ */
+    private static final int DS64_SIZE = 28;
+    /** fmtチャンクの中身の大きさ */
+    private static final int FMT_SIZE = 16;
+    /** 変換用のバッファの大きさ（バイト） */
+    private static final int BUFFER_BYTES = 64 * 1024;
+    /** パターンを一度だけ変換して使い回す、パターンの大きさの上限（バイト） */
+    private static final int PATTERN_BYTES_LIMIT = 4 * 1024 * 1024;
+
+    /** 書き込み先 */
+    private final FileChannel channel;
+    /** サンプリング周波数(Hz) */
+    private final int frequency;
+    /** チャンネル数 */
+    private final int channels;
+    /** ds64チャンクのための領域を確保したかどうか */
+    private final boolean reserveDs64;
+    /** ヘッダの大きさ */
+    private final int headerSize;
+    /** 変換用のバッファ */
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    /** 書き込んだ波形のバイト数 */
+    private long dataBytes;
+
+    /**
+     * コンストラクタ. ヘッダの領域を書き込む。
+     *
+     * @param channel 書き込み先。先頭から書き込む
+     * @param frequency サンプリング周波数(Hz)
+     * @param channels チャンネル数
+     * @param expectedSamples 書き込む予定のデータ数（全チャンネルの合計）。分からなければ負の値
+     * @throws IOException 書き込みに失敗したとき
+     */
+    public WaveFileWriter(FileChannel channel, int frequency, int channels, long expectedSamples) throws IOException {
+        this.channel = channel;
+        this.frequency = frequency;
+        this.channels = channels;
+        this.reserveDs64 = expectedSamples < 0 || !fitsRiff(expectedSamples * 2);
+        this.headerSize = 12 + (reserveDs64 ? 8 + DS64_SIZE : 0) + 8 + FMT_SIZE + 8;
+        channel.position(0);
+        writeHeader();
+        channel.position(headerSize);
+    }
+
+    /**
+     * 波形を書き込む
+     *
+     * @param samples 波形
+     * @param offset 書き込む範囲の先頭
+     * @param length 書き込むデータ数
+     * @throws IOException 書き込みに失敗したとき
+     */
+    public void write(short[] samples, int offset, int length) throws IOException {
+        int done = 0;
+        while (done < length) {
+            buffer.clear();
+            int n = Math.min(length - done, buffer.capacity() / 2);
+            for (int i = 0; i < n; i++) {
+                buffer.putShort(samples[offset + done + i]);
+            }
+            buffer.flip();
+            writeFully(buffer);
+            done += n;
+        }
+        dataBytes += length * 2L;
+    }
+
+    /**
+     * 同じ波形を、指定された回数だけ繰り返し書き込む.
+     *
+     * 波形が大きすぎなければ、一度だけ変換したバッファを繰り返し書き込む。
+     *
+     * @param pattern 波形
+     * @param repeats 繰り返す回数
+     * @throws IOException 書き込みに失敗したとき
+     */
+    public void writeRepeated(short[] pattern, long repeats) throws IOException {
+        int bytes = pattern.length * 2;
+        if (bytes > PATTERN_BYTES_LIMIT) {
+            for (long r = 0; r < repeats; r++) {
+                write(pattern, 0, pattern.length);
+            }
+            return;
+        }
+        ByteBuffer patternBuffer = ByteBuffer.allocateDirect(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        patternBuffer.asShortBuffer().put(pattern);
+        for (long r = 0; r < repeats; r++) {
+            patternBuffer.clear();
+            writeFully(patternBuffer);
+        }
+        dataBytes += bytes * repeats;
+    }
+
+    /**
+     * バッファの残りをすべて書き込む
+     */
+    private void writeFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    /**
+     * ヘッダを確定させる. チャンネルは閉じない。
+     *
+     * @throws IOException 書き込みに失敗したとき、またはRF64形式にすべき大きさなのにその領域がないとき
+     */
+    public void finish() throws IOException {
+        if (!reserveDs64 && !fitsRiff(dataBytes)) {
+            throw new IOException("Wave data(" + dataBytes + " bytes) is larger than expected.");
+        }
+        long position = channel.position();
+        channel.position(0);
+        writeHeader();
+        channel.position(position);
+    }
+
+    /**
+     * パターンを繰り返した波形（モノラル）を、WAVファイルとして保存する. ファイルが既にあれば上書きする。
+     *
+     * @param file 保存先のファイル
+     * @param pattern パターンの波形
+     * @param frequency サンプリング周波数(Hz)
+     * @param repeats パターンを繰り返す回数
+     * @return ファイルの大きさ（バイト）
+     * @throws IOException 保存に失敗したとき
+     */
+    public static long writeFile(File file, short[] pattern, int frequency, long repeats) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            WaveFileWriter writer = new WaveFileWriter(channel, frequency, 1, (long) pattern.length * repeats);
+            writer.writeRepeated(pattern, repeats);
+            writer.finish();
+            return channel.size();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * RIFF形式で書けるかどうか
+     */
+    private static boolean fitsRiff(long data) {
+        // ds64の領域を確保した場合のヘッダの大きさで、余裕をもって判定する
+        return 4 + 8 + DS64_SIZE + 8 + FMT_SIZE + 8 + data <= RIFF_LIMIT;
+    }
+
+    /**
+     * 現在のデータの大きさで、ヘッダを書き込む
+     */
+    private void writeHeader() throws IOException {
+        boolean rf64 = reserveDs64 && !fitsRiff(dataBytes);
+        long riffSize = headerSize - 8 + dataBytes;
+        ByteBuffer buf = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+        putTag(buf, rf64 ? "RF64" : "RIFF");
+        buf.putInt(rf64 ? -1 : (int) riffSize);
+        putTag(buf, "WAVE");
+        if (reserveDs64) {
+            putTag(buf, rf64 ? "ds64" : "JUNK");
+            buf.putInt(DS64_SIZE);
+            if (rf64) {
+                buf.putLong(riffSize);
+                buf.putLong(dataBytes);
+                buf.putLong(dataBytes / 2 / channels);
+                buf.putInt(0);
+            } else {
+                buf.put(new byte[DS64_SIZE]);
+            }
+        }
+        putTag(buf, "fmt ");
+        buf.putInt(FMT_SIZE);
+        buf.putShort((short) 1);
+        buf.putShort((short) channels);
+        buf.putInt(frequency);
+        buf.putInt(frequency * 2 * channels);
+        buf.putShort((short) (2 * channels));
+        buf.putShort((short) 16);
+        putTag(buf, "data");
+        buf.putInt(rf64 ? -1 : (int) dataBytes);
+        buf.flip();
+        writeFully(buf);
+    }
+
+    /**
+     * 4文字のタグを書き込む
+     */
+    private static void putTag(ByteBuffer buf, String tag) {
+        for (int i = 0; i < 4; i++) {
+            buf.put((byte) tag.charAt(i));
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package jp.fsoriented.cactusmetronome.lib;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * （内部クラス）{@link CacheableClickCallback}が生成したクリック音の波形をキャッシュするクラス.
+ *
+ * コールバック（{@code equals}で比較）、クリック音の長さ、サンプリング周波数の組をキーとして、波形を保持する。
+ * 保持する波形の数とサンプル数の合計には上限があり、超えた場合は最も長く使われていないものから捨てる。
+ * 複数のスレッドから同時に使ってよい。返した波形は共有されるので、書き換えてはならない。
+ * コールバックが{@link CacheableClickCallback#getSharedWaveform(int, int)}で波形を返したときは、このキャッシュには入れずにその波形をそのまま返す。
+ */
+class WaveformCache {
+
+    /** 保持する波形の最大数 */
+    private static final int MAX_ENTRIES = 64;
+    /** 保持する波形のサンプル数の合計の上限 */
+    private static final int MAX_SAMPLES = 1 << 20;
+
+    /** 共有のキャッシュ */
+    static final WaveformCache SHARED = new WaveformCache();
+
+    /** 波形。アクセス順に並ぶ */
+    private final LinkedHashMap<Key, short[]> map = new LinkedHashMap<Key, short[]>(16, 0.75f, true);
+    /** 保持している波形のサンプル数の合計 */
+    private int totalSamples;
+
+    /**
+     * クリック音の波形を返す. キャッシュになければ生成して保持する。
+     *
+     * @param click クリック。コールバックは{@link CacheableClickCallback}であること
+     * @param frequency サンプリング周波数(Hz)
+     * @return クリック音の波形。配列の長さが、コールバックが書き込んだデータ数である
+     */
+    public short[] get(Click click, int frequency) {
+        short[] shared = ((CacheableClickCallback) click.callback).getSharedWaveform(frequency, click.length);
+        if (shared != null) {
+            return shared;
+        }
+        Key key = new Key(click.callback, click.length, frequency);
+        synchronized (this) {
+            short[] wave = map.get(key);
+            if (wave != null) {
+                return wave;
+            }
+        }
+        // 生成には時間がかかるので、ロックの外で行う
+        short[] buffer = new short[click.length];
+        int size = click.callback.writeClick(buffer, frequency, click);
+        short[] wave = Arrays.copyOf(buffer, size);
+        synchronized (this) {
+            short[] old = map.put(key, wave);
+            if (old != null) {
+                totalSamples -= old.length;
+            }
+            totalSamples += wave.length;
+            evict();
+        }
+        return wave;
+    }
+
+    /**
+     * 上限を超えていれば、古い波形から捨てる
+     */
+    private void evict() {
+        Iterator<Map.Entry<Key, short[]>> it = map.entrySet().iterator();
+        while ((map.size() > MAX_ENTRIES || totalSamples > MAX_SAMPLES) && map.size() > 1) {
+            totalSamples -= it.next().getValue().length;
+            it.remove();
+        }
+    }
+
+    /**
+     * 保持している波形をすべて捨てる
+     */
+    public synchronized void clear() {
+        map.clear();
+        totalSamples = 0;
+    }
+
+    /**
+     * キャッシュのキー
+     */
+    private static class Key {
+        /** コールバック */
+        final ClickCallback callback;
+        /** クリック音の長さ */
+        final int length;
+        /** サンプリング周波数 */
+        final int frequency;
+
+        Key(ClickCallback callback, int length, int frequency) {
+            this.callback = callback;
+            this.length = length;
+            this.frequency = frequency;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return length == k.length && frequency == k.frequency && callback.equals(k.callback);
+        }
+
+        @Override
+        public int hashCode() {
+            return (callback.hashCode() * 31 + length) * 31 + frequency;
+        }
+    }
+}